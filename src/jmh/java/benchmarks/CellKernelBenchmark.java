@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package benchmarks;
+
+import common.Network;
+import error.OTMException;
+import models.ctm.CellKernels;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import runner.OTM;
+import runner.Scenario;
+import runner.ScenarioFactory;
+import xml.JaxbLoader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar vs. vector cell kernels on a ctm network of about 100k cells: a test
+ * configuration with its links stretched, and 100 meter cells. The lanegroup updates
+ * are called as Network.update_macro_flow and update_macro_state call them.
+ * Run with:
+ *   mvn -Pjmh test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ *       -Dexec.args="-cp %classpath benchmarks.CellKernelBenchmark"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class CellKernelBenchmark {
+
+    @Param({"scalar","vector"})
+    public String cell_kernel;
+
+    @Param({"onramp_offramp_1"})
+    public String testname;
+
+    @Param({"100000"})
+    public int target_cells;
+
+    private static float sim_dt = 2f;
+    private static float cell_length = 100f;
+
+    private Scenario scenario;
+    private Network network;
+    private models.ctm.LinkModel [] models;
+    private float time;
+
+    @Setup
+    public void setup() throws OTMException {
+
+        // each fork loads the kernel once, before the first ctm lanegroup
+        System.setProperty("otm.cell_kernel",cell_kernel);
+        if(!CellKernels.kernel.name().startsWith(cell_kernel))
+            throw new OTMException("Requested the " + cell_kernel + " kernel, loaded " + CellKernels.kernel.name());
+
+        jaxb.Scenario js = JaxbLoader.load_test_scenario(testname,true);
+        double length = js.getNetwork().getLinks().getLink().stream().mapToDouble(link->link.getLength()).sum();
+        float stretch = (float) Math.max(1d,Math.ceil(target_cells*cell_length/length));
+        for(jaxb.Link link : js.getNetwork().getLinks().getLink())
+            link.setLength(link.getLength()*stretch);
+
+        scenario = ScenarioFactory.create_scenario(js,sim_dt,true,"ctm");
+        scenario.set_macro_threads(1);
+        OTM.initialize(scenario,0f);
+
+        network = scenario.network;
+        models = network.macro_link_models.toArray(new models.ctm.LinkModel[0]);
+        int num_cells = network.macro_link_models.stream()
+                .flatMap(m->m.link.lanegroups.values().stream())
+                .mapToInt(lg->((models.ctm.LaneGroup) lg).num_cells)
+                .sum();
+        System.out.println(String.format("%s kernel, %d cells",CellKernels.kernel.name(),num_cells));
+
+        // load the network
+        time = 0f;
+        for(int k=0;k<5000;k++)
+            tick();
+    }
+
+    @TearDown
+    public void teardown(){
+        scenario.network.shutdown_macro_workers();
+    }
+
+    /** demand and supply of all cells **/
+    @Benchmark
+    public void update_supply_demand(){
+        for(models.ctm.LinkModel m : models)
+            m.update_supply_demand();
+    }
+
+    /** demand and supply, cell boundary flows and state update of all cells. The node
+     * flows are left out, so vehicles collect at the ends of the internal links. The
+     * state update alone is the difference with update_supply_demand. **/
+    @Benchmark
+    public void update_state(){
+        time += sim_dt;
+        for(models.ctm.LinkModel m : models)
+            m.update_supply_demand();
+        for(models.ctm.LinkModel m : models)
+            m.update_cell_boundary_flows();
+        for(models.ctm.LinkModel m : models)
+            m.update_state(time);
+    }
+
+    /** full macroscopic step, including the node model and packet exchange **/
+    @Benchmark
+    public void tick() throws OTMException {
+        time += sim_dt;
+        network.update_macro_flow(time);
+        network.update_macro_state(time);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CellKernelBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
@@ -9,7 +9,6 @@ package actuator;
 
 import control.AbstractController;
 import dispatch.Dispatcher;
-import dispatch.EventPoke;
 import dispatch.InterfacePokable;
 import error.OTMErrorLog;
 import error.OTMException;
@@ -68,9 +67,9 @@ public abstract class AbstractActuator implements InterfacePokable, InterfaceSce
         // process the command
         process_controller_command(myController.get_current_command(),dispatcher,timestamp);
 
-        // wake up in dt, if dt is defined
+        // wake up every dt, if dt is defined
         if(dt>0)
-            dispatcher.register_event(new EventPoke(dispatcher,1,timestamp+dt,this));
+            dispatcher.register_periodic(this,timestamp+dt,dt,1);
     }
 
     /////////////////////////////////////////////////////////////////////
@@ -14,6 +14,7 @@ import commodity.Subnetwork;
 import common.AbstractLaneGroup;
 import common.RoadConnection;
 import control.AbstractController;
+import dispatch.Dispatcher;
 import dispatch.EventCreateVehicle;
 import dispatch.EventDemandChange;
 import error.OTMErrorLog;
@@ -124,7 +125,7 @@ public class API {
     }
 
     public void set_random_seed(long seed){
-        OTMUtils.set_random_seed(seed);
+        scenario.set_random_seed(seed);
     }
 
     ////////////////////////////////////////////////////////
@@ -157,6 +158,70 @@ public class API {
         scenario.set_stochastic_process(StochasticProcess.valueOf(str));
     }
 
+    /**
+     * Sets the type of event queue used by the dispatcher in subsequent runs.
+     * @param str in {"heap","calendar"}
+     */
+    public void set_event_queue(String str){
+        scenario.set_event_queue_type(Dispatcher.QueueType.valueOf(str));
+    }
+
+    /**
+     * Enables or disables the fixed step loop used to advance scenarios in which all
+     * links are macroscopic. Enabled by default. When disabled, macroscopic updates
+     * are dispatched as events.
+     * @param x boolean
+     */
+    public void set_macro_fixed_step(boolean x){
+        scenario.set_macro_fixed_step(x);
+    }
+
+    /**
+     * Sets the number of threads used for the macroscopic (ctm and mn) update in
+     * subsequent runs. The default, 1, runs the update sequentially. The threads are
+     * started by initialize(...) and stopped at the end of run(...). A scenario that is
+     * driven with initialize(...) and advance(...) keeps its threads until close() or
+     * the next initialize(...).
+     * @param x int
+     */
+    public void set_macro_threads(int x){
+        scenario.set_macro_threads(x);
+    }
+
+    /**
+     * Enables multi-rate stepping of ctm links in subsequent runs. Each link advances
+     * with the longest step, a power of two multiple of sim_dt up to x, allowed by its
+     * cell length and speeds. The default, 1, advances all links with sim_dt.
+     * @param x int
+     */
+    public void set_macro_max_period(int x){
+        scenario.set_macro_max_period(x);
+    }
+
+    /**
+     * Sets, for subsequent runs, the fraction of the free space in a ctm cell that lane
+     * changes may fill in one time step. It must be in [0,1]. NaN, the default, uses
+     * 0.5*(1-w) for each lanegroup, where w is its normalized congestion wave speed.
+     * @param x float
+     */
+    public void set_ctm_lane_change_xi(float x) throws OTMException {
+        if(!Float.isNaN(x) && (x<0f || x>1f))
+            throw new OTMException("Lane change xi must be in [0,1]");
+        scenario.set_ctm_lane_change_xi(x);
+    }
+
+    /**
+     * Enables lazy transit queues on point queue links in subsequent runs. Vehicles are
+     * moved from the transit queue to the waiting queue when the lanegroup attempts a
+     * release, rather than with one event per vehicle. Vehicle counts are not affected.
+     * Vehicles of commodities with vehicle event outputs keep their transit events, so
+     * that their moves are reported in order. Disabled by default.
+     * @param x boolean
+     */
+    public void set_pq_lazy_transit(boolean x){
+        scenario.set_pq_lazy_transit(x);
+    }
+
     ////////////////////////////////////////////////////////
     // commodities
     ////////////////////////////////////////////////////////
@@ -871,6 +936,16 @@ public class API {
     // animation
     ////////////////////////////////////////////////////////
 
+    /**
+     * Releases the resources held by the last initialization, i.e. the threads of the
+     * macroscopic update. Call this when done advancing a scenario with more than one
+     * macro thread. The scenario can be initialized again afterwards.
+     */
+    public void close(){
+        if(scenario!=null && scenario.network!=null)
+            scenario.network.shutdown_macro_workers();
+    }
+
     public void initialize(float start_time) throws OTMException{
         OTM.initialize(scenario,start_time);
     }
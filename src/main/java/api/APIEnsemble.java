@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package api;
+
+import error.OTMException;
+import models.ctm.EnsembleBatch;
+import output.LinkVehicles;
+import profiles.Profile1D;
+import runner.OTM;
+import runner.RunParameters;
+import runner.Scenario;
+import runner.ScenarioFactory;
+import xml.JaxbLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many variants of one scenario. The configuration file is parsed and
+ * validated once. Topologies (network, models and commodities, see
+ * ScenarioFactory.create_topology) are built from the parse one at a time, and each is
+ * reused by many members: a member configures a free topology with
+ * ScenarioFactory.configure_scenario and its InterfaceEnsembleMember, and allocates its
+ * own traffic state when it is initialized. Members run concurrently on a thread pool,
+ * with at most one topology per thread.
+ */
+public class APIEnsemble {
+
+    private final jaxb.Scenario jaxb_scenario;
+    private final float sim_dt;
+    public int num_threads;
+
+    // topologies not in use by a member
+    private final List<Scenario> free_topologies = new ArrayList<>();
+    private int num_topologies;
+
+    private long [] link_ids;
+    private float out_dt;
+
+    ////////////////////////////////////////////////////////
+    // construction
+    ////////////////////////////////////////////////////////
+
+    public APIEnsemble(String configfile,float sim_dt,boolean validate,String global_model) throws OTMException {
+        this(JaxbLoader.load_scenario(configfile,validate),sim_dt,validate,global_model);
+    }
+
+    /** Ensemble over one of the test configurations, as in OTM.load_test. **/
+    public static APIEnsemble load_test(String testname,float sim_dt,boolean validate,String global_model) throws OTMException {
+        if(!JaxbLoader.get_test_config_names().contains(testname))
+            return null;
+        return new APIEnsemble(JaxbLoader.load_test_scenario(testname,validate),sim_dt,validate,global_model);
+    }
+
+    private APIEnsemble(jaxb.Scenario jaxb_scenario,float sim_dt,boolean validate,String global_model) throws OTMException {
+        this.jaxb_scenario = jaxb_scenario;
+        this.sim_dt = sim_dt;
+        this.num_threads = Runtime.getRuntime().availableProcessors();
+
+        // Validate once and apply the global model to the shared configuration. This is the
+        // only change to the configuration: after it, topologies and members only read it.
+        // This first build also reads every list of the configuration, which jaxb creates
+        // on first access, so that later reads from several threads do not write to it.
+        free_topologies.add(ScenarioFactory.create_scenario(jaxb_scenario,sim_dt,validate,global_model));
+        num_topologies = 1;
+    }
+
+    public void set_num_threads(int num_threads){
+        this.num_threads = Math.max(1,num_threads);
+    }
+
+    ////////////////////////////////////////////////////////
+    // run
+    ////////////////////////////////////////////////////////
+
+    /**
+     * Run num_members members and return link vehicles as [member][link][time],
+     * sampled every out_dt. link_ids==null means all links.
+     */
+    public double [][][] run(int num_members,InterfaceEnsembleMember member,float start_time,float duration,List<Long> link_ids,float out_dt) throws OTMException {
+
+        this.link_ids = link_ids==null ?
+                jaxb_scenario.getNetwork().getLinks().getLink().stream().mapToLong(x->x.getId()).sorted().toArray() :
+                link_ids.stream().mapToLong(x->x).toArray();
+        this.out_dt = out_dt;
+
+        double [][][] result = new double[num_members][][];
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(num_threads,Math.max(1,num_members)));
+        try {
+            List<Future<double[][]>> futures = new ArrayList<>();
+            for(int k=0;k<num_members;k++){
+                final int kk = k;
+                futures.add(pool.submit(() -> run_member(kk,member,start_time,duration)));
+            }
+            for(int k=0;k<num_members;k++)
+                result[k] = futures.get(k).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OTMException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof OTMException ? (OTMException) e.getCause() : new OTMException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Same as run, but the members advance in lockstep on the calling thread, with the
+     * cell updates of all members done in one pass (see models.ctm.EnsembleBatch).
+     * Members may differ only in their demands: a member that requests outputs, or a
+     * configuration with sensors, controllers or actuators, is rejected. Requires ctm
+     * links and pathfull commodities.
+     */
+    public double [][][] run_batched(int num_members,InterfaceEnsembleMember member,float start_time,float duration,List<Long> link_ids,float out_dt) throws OTMException {
+
+        this.link_ids = link_ids==null ?
+                jaxb_scenario.getNetwork().getLinks().getLink().stream().mapToLong(x->x.getId()).sorted().toArray() :
+                link_ids.stream().mapToLong(x->x).toArray();
+        this.out_dt = out_dt;
+
+        Scenario [] scenarios = new Scenario[num_members];
+        List<double[][]> samples = new ArrayList<>();
+        try {
+            for (int k = 0; k < num_members; k++) {
+                scenarios[k] = take_topology();
+                API api = new API();
+                api.scenario = scenarios[k];
+                ScenarioFactory.configure_scenario(api.scenario,jaxb_scenario);
+                if (member != null)
+                    member.setup(k, api);
+                OTM.initialize(api.scenario, new RunParameters(null, null, null, start_time, duration));
+            }
+
+            EnsembleBatch batch = new EnsembleBatch(scenarios);
+
+            // sample as LinkVehicles does
+            final long [] ids = this.link_ids;
+            scenarios[0].dispatcher.register_periodic((dispatcher,timestamp) -> {
+                double [][] x = new double[num_members][ids.length];
+                for(int k=0;k<num_members;k++)
+                    for(int i=0;i<ids.length;i++)
+                        x[k][i] = batch.get_link_vehicles(ids[i],k);
+                samples.add(x);
+            },start_time,out_dt,2);
+
+            batch.advance(duration);
+
+        } finally {
+            for(Scenario scenario : scenarios)
+                if(scenario!=null) {
+                    scenario.network.shutdown_macro_workers();
+                    scenario.is_initialized = false;
+                    release_topology(scenario);
+                }
+        }
+
+        double [][][] result = new double[num_members][this.link_ids.length][];
+        for(int k=0;k<num_members;k++)
+            for(int i=0;i<this.link_ids.length;i++){
+                boolean has_link = scenarios[k].network.links.containsKey(this.link_ids[i]);
+                result[k][i] = new double[has_link ? samples.size() : 0];
+                if(has_link)
+                    for(int t=0;t<samples.size();t++)
+                        result[k][i][t] = samples.get(t)[k][i];
+            }
+        return result;
+    }
+
+    ////////////////////////////////////////////////////////
+    // get
+    ////////////////////////////////////////////////////////
+
+    /** Link ids in the order of the second index of the result. **/
+    public long [] get_link_ids(){
+        return link_ids;
+    }
+
+    public float get_out_dt(){
+        return out_dt;
+    }
+
+    /** Number of topologies built so far. **/
+    public synchronized int get_num_topologies(){
+        return num_topologies;
+    }
+
+    ////////////////////////////////////////////////////////
+    // private
+    ////////////////////////////////////////////////////////
+
+    // A free topology, or a new one. Topologies are built one at a time.
+    private synchronized Scenario take_topology() throws OTMException {
+        if(!free_topologies.isEmpty())
+            return free_topologies.remove(free_topologies.size()-1);
+        num_topologies++;
+        return ScenarioFactory.create_topology(jaxb_scenario,sim_dt);
+    }
+
+    private synchronized void release_topology(Scenario scenario){
+        free_topologies.add(scenario);
+    }
+
+    private double [][] run_member(int k,InterfaceEnsembleMember member,float start_time,float duration) throws OTMException {
+
+        Scenario scenario = take_topology();
+        double [][] x = new double[link_ids.length][];
+        try {
+            API api = new API();
+            api.scenario = scenario;
+            ScenarioFactory.configure_scenario(scenario,jaxb_scenario);
+
+            if (member != null)
+                member.setup(k, api);
+
+            List<Long> ids = new ArrayList<>();
+            for (long id : link_ids)
+                ids.add(id);
+            LinkVehicles output = new LinkVehicles(scenario, null, null, null, ids, out_dt);
+            scenario.outputs.add(output);
+
+            OTM.run(scenario, new RunParameters(null, null, null, start_time, duration));
+
+            for (int i = 0; i < link_ids.length; i++) {
+                Profile1D profile = output.linkprofiles.containsKey(link_ids[i]) ? output.get_profile_for_linkid(link_ids[i]) : null;
+                x[i] = profile == null ? new double[0] : profile.values.stream().mapToDouble(v -> v).toArray();
+            }
+        } finally {
+            scenario.network.shutdown_macro_workers();
+            scenario.is_initialized = false;
+            release_topology(scenario);
+        }
+        return x;
+    }
+
+}
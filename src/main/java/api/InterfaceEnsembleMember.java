@@ -0,0 +1,14 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package api;
+
+import error.OTMException;
+
+/** Configures member k of an ensemble (demands, controllers, outputs) before it runs. **/
+public interface InterfaceEnsembleMember {
+    void setup(int k,API api) throws OTMException;
+}
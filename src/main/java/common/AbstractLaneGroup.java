@@ -8,7 +8,6 @@ package common;
 
 import actuator.AbstractActuator;
 import commodity.Commodity;
-import commodity.Path;
 import error.OTMErrorLog;
 import error.OTMException;
 import keys.KeyCommPathOrLink;
@@ -87,7 +86,7 @@ public abstract class AbstractLaneGroup implements Comparable<AbstractLaneGroup>
 
     public AbstractLaneGroup(Link link,Set<Integer> lanes,Set<RoadConnection> out_rcs){
         this.link = link;
-        this.id = OTMUtils.get_lanegroup_id();
+        this.id = link.network.scenario.get_lanegroup_id();
         this.lanes = lanes;
         this.outlink2roadconnection = new HashMap<>();
         this.states = new HashSet<>();
@@ -149,8 +148,12 @@ public abstract class AbstractLaneGroup implements Comparable<AbstractLaneGroup>
 
         // add all states
         for (KeyCommPathOrLink key : states) {
-            Long outlink_id = key.isPath ? link.path2outlink.get(key.pathOrlink_id) :
-                    key.pathOrlink_id;
+            Long outlink_id;
+            if(key.isPath) {
+                Link next_link = link.get_next_link_on_path(key.pathOrlink_id);
+                outlink_id = next_link==null ? null : next_link.getId();
+            } else
+                outlink_id = key.pathOrlink_id;
 
             common.RoadConnection rc = get_roadconnection_for_outlink(outlink_id);
             if (rc!=null && roadconnection2states.containsKey(rc.getId()))
@@ -186,8 +189,7 @@ public abstract class AbstractLaneGroup implements Comparable<AbstractLaneGroup>
         }
         else {
             if (state.isPath) {
-                Path path = (Path) link.network.scenario.subnetworks.get(state.pathOrlink_id);
-                next_link = path.get_link_following(link).getId();
+                next_link = link.get_next_link_on_path(state.pathOrlink_id).getId();
             } else {
                 next_link = state.pathOrlink_id;
             }
@@ -25,9 +25,12 @@ import static java.util.stream.Collectors.toList;
 
 public abstract class AbstractLinkModel {
 
-    public Class myPacketClass;
     public common.Link link;
 
+    // lanegroup packets are recycled once add_vehicle_packet has passed them to the lanegroups
+    private final ArrayDeque<AbstractPacketLaneGroup> packet_pool = new ArrayDeque<>();
+    private final List<AbstractPacketLaneGroup> packets_in_use = new ArrayList<>();
+
     //////////////////////////////////////////////////////////////
     // abstract methods
     //////////////////////////////////////////////////////////////
@@ -38,6 +41,7 @@ public abstract class AbstractLinkModel {
     abstract public float get_ff_travel_time(); // seconds
     abstract public float get_capacity_vps();   // vps
     abstract public Map<AbstractLaneGroup,Double> lanegroup_proportions(Collection<AbstractLaneGroup> candidate_lanegroups);
+    abstract public AbstractPacketLaneGroup create_lanegroup_packet();
 
     //////////////////////////////////////////////////////////////
     // construction
@@ -50,7 +54,7 @@ public abstract class AbstractLinkModel {
     public void register_commodity(Commodity comm, Subnetwork subnet) throws OTMException {
 
         if(comm.pathfull) {
-            KeyCommPathOrLink state = new KeyCommPathOrLink(comm.getId(), subnet.getId(), true);
+            KeyCommPathOrLink state = link.network.scenario.state_registry.get(comm.getId(), subnet.getId(), true);
             for (AbstractLaneGroup lg : link.lanegroups.values())
                 lg.add_key(state);
         }
@@ -59,7 +63,7 @@ public abstract class AbstractLinkModel {
 
             // for pathless/sink, next link id is same as this id
             if (link.is_sink) {
-                KeyCommPathOrLink state = new KeyCommPathOrLink(comm.getId(), link.getId(), false);
+                KeyCommPathOrLink state = link.network.scenario.state_registry.get(comm.getId(), link.getId(), false);
                 for (AbstractLaneGroup lg : link.lanegroups.values())
                     lg.add_key(state);
 
@@ -69,7 +73,7 @@ public abstract class AbstractLinkModel {
                 for (AbstractLaneGroup lg : link.lanegroups.values()) {
                     for (Long next_link_id : lg.get_dwn_links())
                         if (subnet.has_link_id(next_link_id))
-                            lg.add_key(new KeyCommPathOrLink(comm.getId(), next_link_id, false));
+                            lg.add_key(link.network.scenario.state_registry.get(comm.getId(), next_link_id, false));
                 }
 
             }
@@ -97,20 +101,45 @@ public abstract class AbstractLinkModel {
         if(vp.isEmpty())
             return;
 
+        try {
+            add_vehicle_packet_to_lanegroups(timestamp,vp);
+        } finally {
+            release_lanegroup_packets();
+        }
+    }
+
+    /** An empty lanegroup packet, from the pool if possible. It is returned
+     * to the pool at the end of add_vehicle_packet. **/
+    public AbstractPacketLaneGroup take_lanegroup_packet(){
+        AbstractPacketLaneGroup packet = packet_pool.isEmpty() ? create_lanegroup_packet() : packet_pool.pop();
+        packets_in_use.add(packet);
+        return packet;
+    }
+
+    public float get_max_vehicles(){
+        return (float) link.lanegroups.values().stream().map(x->x.max_vehicles).mapToDouble(i->i).sum();
+    }
+
+    //////////////////////////////////////////////////////////////
+    // private
+    //////////////////////////////////////////////////////////////
+
+    private void add_vehicle_packet_to_lanegroups(float timestamp, PacketLink vp) throws OTMException {
+
         // sink or many-to-one
         // this implies that next-link is trivial
         // and (for now) target_lanegroup is trivial
         if(link.packet_splitter==null){
             // if sink, encode by using current link id as nextlink.
             Long outlink_id = link.is_sink ? link.getId() : link.end_node.out_links.values().iterator().next().getId();
-            AbstractPacketLaneGroup packet = PacketSplitter.cast_packet_null_splitter(myPacketClass,vp,outlink_id);
+            AbstractPacketLaneGroup packet = PacketSplitter.cast_packet_null_splitter(this,vp,outlink_id);
             AbstractLaneGroup join_lanegroup = vp.arrive_to_lanegroups.iterator().next();
             join_lanegroup.add_native_vehicle_packet(timestamp,packet);
             return;
         }
 
         // tag the packet with next_link and target_lanegroups
-        Map<Long, AbstractPacketLaneGroup> split_packets = link.packet_splitter.split_packet(myPacketClass,vp);
+        Map<Long, AbstractPacketLaneGroup> split_packets = link.packet_splitter.split_packet(vp);
 
         // process each split packet
         for(Map.Entry<Long, AbstractPacketLaneGroup> e : split_packets.entrySet()){
@@ -160,8 +189,11 @@ public abstract class AbstractLinkModel {
                         continue;
                     if (prop==1d)
                         laneGroup.add_native_vehicle_packet(timestamp, split_packet );
-                    else
-                        laneGroup.add_native_vehicle_packet(timestamp, split_packet.times(prop));
+                    else {
+                        AbstractPacketLaneGroup prop_packet = take_lanegroup_packet();
+                        prop_packet.add_scaled(split_packet,prop);
+                        laneGroup.add_native_vehicle_packet(timestamp, prop_packet);
+                    }
                 }
             }
 
@@ -183,14 +215,14 @@ public abstract class AbstractLinkModel {
 
     }
 
-    public float get_max_vehicles(){
-        return (float) link.lanegroups.values().stream().map(x->x.max_vehicles).mapToDouble(i->i).sum();
+    private void release_lanegroup_packets(){
+        for(AbstractPacketLaneGroup packet : packets_in_use){
+            packet.clear();
+            packet_pool.push(packet);
+        }
+        packets_in_use.clear();
     }
 
-    //////////////////////////////////////////////////////////////
-    // private
-    //////////////////////////////////////////////////////////////
-
     private AbstractLaneGroup choose_closest_that_is_not_full(Set<AbstractLaneGroup> arrive_to_lanegroups,Set<AbstractLaneGroup> candidate_lanegroups,Set<AbstractLaneGroup> target_lanegroups) throws OTMException {
 
         // these will be selected from among the lanegroups that do not directly connect to
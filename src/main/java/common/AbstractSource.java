@@ -28,7 +28,7 @@ public abstract class AbstractSource {
         this.link = link;
         this.profile = profile;
         this.commodity = commodity;
-        this.key = new KeyCommPathOrLink(commodity,path,link);
+        this.key = link.network.scenario.state_registry.get(commodity,path,link);
         this.source_demand = 0f;
     }
 
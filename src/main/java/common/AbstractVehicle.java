@@ -7,8 +7,8 @@
 package common;
 
 import keys.KeyCommPathOrLink;
+import keys.StateRegistry;
 import output.InterfaceVehicleListener;
-import utils.OTMUtils;
 
 import java.util.Set;
 
@@ -30,8 +30,8 @@ public abstract class AbstractVehicle {
         this.event_listeners = that.event_listeners;
     }
 
-    public AbstractVehicle(KeyCommPathOrLink key,Set<InterfaceVehicleListener> vehicle_event_listeners){
-        this.id = OTMUtils.get_vehicle_id();
+    public AbstractVehicle(long id,KeyCommPathOrLink key,Set<InterfaceVehicleListener> vehicle_event_listeners){
+        this.id = id;
         this.key = key;
         this.event_listeners = vehicle_event_listeners;
         this.my_lanegroup = null;
@@ -89,9 +89,9 @@ public abstract class AbstractVehicle {
     // NOTE: We do not update the next link id when it is null. This happens in
     // sinks. This means that the state in a sink needs to be interpreted
     // differently, which must be accounted for everywhere.
-    public void set_next_link_id(Long next_link_id){
+    public void set_next_link_id(StateRegistry states,Long next_link_id){
         if(!key.isPath && next_link_id!=null)
-            key = new KeyCommPathOrLink(key.commodity_id,next_link_id,false);
+            key = states.get(key.commodity_id,next_link_id,false);
     }
 
 }
@@ -48,8 +48,10 @@ public class Link implements InterfaceScenarioElement {
     // lane -> lane groups
     public Map<Integer, AbstractLaneGroup> lane2lanegroup;
 
-    // map from path id (uses this link) to next link id (exits this link)
-    public Map<Long,Long> path2outlink;
+    // next link for each path that uses this link (null for the last link of the path),
+    // sorted by path id. Built with the scenario, see get_next_link_on_path.
+    private long [] path_ids;
+    private Link [] path_next_links;
 
     // map from downstream link to candidate lanegroups
     public Map<Long, Set<AbstractLaneGroup>> outlink2lanegroups;
@@ -114,7 +116,8 @@ public class Link implements InterfaceScenarioElement {
         this.start_node.add_output_link(this);
         this.end_node.add_input_link(this);
 
-        this.path2outlink = new HashMap<>();
+        this.path_ids = new long[0];
+        this.path_next_links = new Link[0];
 
         // shape
         this.shape = new ArrayList<>();
@@ -157,7 +160,8 @@ public class Link implements InterfaceScenarioElement {
         this.start_node.add_output_link(this);
         this.end_node.add_input_link(this);
 
-        this.path2outlink = new HashMap<>();
+        this.path_ids = new long[0];
+        this.path_next_links = new Link[0];
 
         this.total_lanes = road_geom==null ?
                 this.full_lanes :
@@ -172,7 +176,8 @@ public class Link implements InterfaceScenarioElement {
             lanegroups.values().forEach(lg->lg.delete());
         lanegroups = null;
         lane2lanegroup = null;
-        path2outlink = null;
+        path_ids = null;
+        path_next_links = null;
         outlink2lanegroups = null;
         packet_splitter = null;
         if(sources!=null)
@@ -311,10 +316,32 @@ public class Link implements InterfaceScenarioElement {
 //            sources.forEach(x->x.initialize(scenario));
     }
 
+    /** path id -> next link, for the paths that use this link **/
+    public void set_path_next_links(Map<Long,Link> path2nextlink){
+        Long [] ids = path2nextlink.keySet().stream().sorted().toArray(Long[]::new);
+        path_ids = new long[ids.length];
+        path_next_links = new Link[ids.length];
+        for(int i=0;i<ids.length;i++){
+            path_ids[i] = ids[i];
+            path_next_links[i] = path2nextlink.get(ids[i]);
+        }
+    }
+
     ////////////////////////////////////////////
     // get
     ///////////////////////////////////////////
 
+    // Link following this one on the given path. Null if this is the last link of the path.
+    public Link get_next_link_on_path(long path_id){
+        int i = Arrays.binarySearch(path_ids,path_id);
+        if(i>=0)
+            return path_next_links[i];
+
+        // path not registered at scenario build
+        commodity.Path path = (commodity.Path) network.scenario.subnetworks.get(path_id);
+        return path==null ? null : path.get_link_following(this);
+    }
+
     // WARNING: possible inefficiency if this is called a lot
     public List<Integer> get_entry_lanes(){
         // find first lane
@@ -382,16 +409,16 @@ public class Link implements InterfaceScenarioElement {
                 reduce(0f,(i,j)->i+j);
     }
 
+    // lanegroups keep their vehicle counts up to date, so these are cheap
     public double get_veh() {
-        return lanegroups.values().stream()
-                .mapToDouble(x->x.get_total_vehicles())
-                .sum();
+        return get_veh_for_commodity(null);
     }
 
     public double get_veh_for_commodity(Long commodity_id) {
-        return lanegroups.values().stream()
-                .mapToDouble(x->x.vehicles_for_commodity(commodity_id))
-                .sum();
+        double veh = 0d;
+        for(AbstractLaneGroup lg : lanegroups.values())
+            veh += lg.vehicles_for_commodity(commodity_id);
+        return veh;
     }
 
     // links reached downstream by road connection
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package common;
+
+import error.OTMException;
+
+import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Runs the phases of the macroscopic update on a fixed set of threads. Links and
+ * nodes are split once into partitions of similar cost, one per thread. Each phase
+ * runs on all partitions, with a barrier before the next phase. The calling thread
+ * works on partition 0.
+ *
+ * The link phases write only to the state of their own link, and the node flow
+ * phase only to the state of its own node. The exchange phase writes the node's
+ * packets into the upstream boundary of its downstream links. This is safe because
+ * every link has a single start node, so no two nodes write into the same link,
+ * and because no link phase runs between the barriers around the exchange. Results
+ * are therefore identical to the sequential update. Packet exchange into
+ * non-macroscopic links creates vehicles and events; nodes that feed such links
+ * exchange their packets on the calling thread.
+ *
+ * The threads live until shutdown() is called: by OTM.run at the end of a run, by
+ * the next initialization of the network, or by API.close().
+ */
+public class MacroWorkerPool {
+
+    public enum Phase {
+        lane_changes,
+        intermediate_state,
+        supply_demand,
+        node_flows,
+        exchange_packets,
+        boundary_flows,
+        state
+    }
+
+    private final Network network;
+    private final int num_threads;
+
+    private final List<models.ctm.LinkModel> [] link_parts;
+    private final List<Node> [] node_parts;            // all macro internal nodes
+    private final List<Node> [] exchange_parts;        // nodes whose downstream links are all macroscopic
+    private final List<Node> serial_exchange_nodes;    // remaining nodes, exchanged on the calling thread
+
+    private final CyclicBarrier start;
+    private final CyclicBarrier done;
+    private final Thread [] workers;
+
+    private volatile Phase phase;
+    private volatile float timestamp;
+    private volatile boolean shutdown;
+    private volatile Throwable error;
+
+    ///////////////////////////////////////////
+    // construction
+    ///////////////////////////////////////////
+
+    public MacroWorkerPool(Network network,int num_threads){
+        this.network = network;
+        this.num_threads = num_threads;
+
+        // partition links by number of cell states
+        List<models.ctm.LinkModel> links = new ArrayList<>(network.macro_link_models);
+        link_parts = partition(links,num_threads,MacroWorkerPool::cost);
+
+        // partition nodes by number of upstream states
+        List<Node> nodes = new ArrayList<>(network.macro_internal_nodes);
+        node_parts = partition(nodes,num_threads,MacroWorkerPool::cost);
+
+        List<Node> exchange_nodes = new ArrayList<>();
+        serial_exchange_nodes = new ArrayList<>();
+        for(Node node : nodes){
+            boolean all_macro = node.out_links.values().stream().allMatch(link -> link.model instanceof models.ctm.LinkModel);
+            if(all_macro)
+                exchange_nodes.add(node);
+            else
+                serial_exchange_nodes.add(node);
+        }
+        exchange_parts = partition(exchange_nodes,num_threads,MacroWorkerPool::cost);
+
+        // start the workers
+        start = new CyclicBarrier(num_threads);
+        done = new CyclicBarrier(num_threads);
+        workers = new Thread[num_threads-1];
+        for(int k=1;k<num_threads;k++){
+            final int part = k;
+            Thread t = new Thread(() -> work(part),"otm-macro-" + k);
+            t.setDaemon(true);
+            workers[k-1] = t;
+            t.start();
+        }
+    }
+
+    ///////////////////////////////////////////
+    // public
+    ///////////////////////////////////////////
+
+    public void update_macro_flow(float timestamp) throws OTMException {
+        this.timestamp = timestamp;
+        run_phase(Phase.lane_changes);
+        run_phase(Phase.intermediate_state);
+        run_phase(Phase.supply_demand);
+        run_phase(Phase.node_flows);
+        run_phase(Phase.exchange_packets);
+        for(Node node : serial_exchange_nodes)
+            network.exchange_packets(node,timestamp);
+        run_phase(Phase.boundary_flows);
+    }
+
+    public void update_macro_state(float timestamp) throws OTMException {
+        this.timestamp = timestamp;
+        run_phase(Phase.state);
+    }
+
+    public void shutdown(){
+        if(shutdown)
+            return;
+        shutdown = true;
+        try {
+            start.await();
+            for(Thread t : workers)
+                t.join();
+        } catch (InterruptedException | BrokenBarrierException e) {
+            for(Thread t : workers)
+                t.interrupt();
+        }
+    }
+
+    public int get_num_threads(){
+        return num_threads;
+    }
+
+    ///////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////
+
+    private void run_phase(Phase phase) throws OTMException {
+        if(shutdown)
+            throw new OTMException("Macroscopic worker pool has been shut down.");
+        this.phase = phase;
+        try {
+            start.await();
+            execute(0);
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OTMException(e);
+        } catch (BrokenBarrierException e) {
+            throw new OTMException(e);
+        }
+        if(error!=null){
+            Throwable e = error;
+            error = null;
+            if(e instanceof OTMException)
+                throw (OTMException) e;
+            throw new OTMException(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+        }
+    }
+
+    private void work(int part){
+        try {
+            while(true){
+                start.await();
+                if(shutdown)
+                    return;
+                execute(part);
+                done.await();
+            }
+        } catch (InterruptedException | BrokenBarrierException e) {
+            // pool is going away
+        }
+    }
+
+    private void execute(int part){
+        try {
+            float now = timestamp;
+            switch(phase){
+                case lane_changes:
+                    for(models.ctm.LinkModel l : link_parts[part])
+                        if(l.link.lanegroups.size()>=2)
+                            l.update_lane_changes();
+                    break;
+                case intermediate_state:
+                    for(models.ctm.LinkModel l : link_parts[part])
+                        if(l.link.lanegroups.size()>=2)
+                            l.intermediate_state_update();
+                    break;
+                case supply_demand:
+                    for(models.ctm.LinkModel l : link_parts[part])
+                        l.update_supply_demand();
+                    break;
+                case node_flows:
+                    for(Node node : node_parts[part])
+                        node.node_model.update_flow(now);
+                    break;
+                case exchange_packets:
+                    for(Node node : exchange_parts[part])
+                        network.exchange_packets(node,now);
+                    break;
+                case boundary_flows:
+                    for(models.ctm.LinkModel l : link_parts[part])
+                        l.update_cell_boundary_flows();
+                    break;
+                case state:
+                    for(models.ctm.LinkModel l : link_parts[part])
+                        l.update_state(now);
+                    break;
+            }
+        } catch (Throwable e) {
+            error = e;
+        }
+    }
+
+    private static long cost(models.ctm.LinkModel model){
+        long c = 1;
+        for(AbstractLaneGroup lg : model.link.lanegroups.values()) {
+            models.ctm.LaneGroup ctmlg = (models.ctm.LaneGroup) lg;
+            c += (long) ctmlg.num_cells * (1 + ctmlg.states.size());
+        }
+        return c;
+    }
+
+    private static long cost(Node node){
+        long c = 1;
+        for(Link link : node.in_links.values())
+            for(AbstractLaneGroup lg : link.lanegroups.values())
+                c += lg.states.size();
+        return c;
+    }
+
+    // longest processing time first: largest items go to the least loaded partition.
+    // items keep their original relative order within a partition.
+    private static <T> List<T> [] partition(List<T> items,int n,java.util.function.ToLongFunction<T> cost){
+
+        Integer [] order = new Integer[items.size()];
+        long [] c = new long[items.size()];
+        for(int i=0;i<items.size();i++){
+            order[i] = i;
+            c[i] = cost.applyAsLong(items.get(i));
+        }
+        Arrays.sort(order,(a,b) -> Long.compare(c[b],c[a]));
+
+        long [] load = new long[n];
+        int [] assigned = new int[items.size()];
+        for(int i : order){
+            int best = 0;
+            for(int k=1;k<n;k++)
+                if(load[k]<load[best])
+                    best = k;
+            load[best] += c[i];
+            assigned[i] = best;
+        }
+
+        List<T> [] parts = new List[n];
+        for(int k=0;k<n;k++)
+            parts[k] = new ArrayList<>();
+        for(int i=0;i<items.size();i++)
+            parts[assigned[i]].add(items.get(i));
+        return parts;
+    }
+
+}
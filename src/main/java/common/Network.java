@@ -6,12 +6,11 @@
  */
 package common;
 
+import dispatch.InterfacePokable;
 import error.OTMErrorLog;
 import error.OTMException;
 import geometry.RoadGeometry;
 import models.ctm.NodeModel;
-import models.ctm.UpLaneGroup;
-import packet.PacketLink;
 import runner.RunParameters;
 import runner.Scenario;
 import utils.OTMUtils;
@@ -37,6 +36,18 @@ public class Network {
     public Set<Node> macro_internal_nodes = new HashSet<>();
     public Set<models.ctm.Source> macro_sources = new HashSet<>();
 
+    // periodic macroscopic updates, registered by OTM.advance
+    public final InterfacePokable macro_flow_update = (dispatcher,timestamp) -> update_macro_flow(timestamp);
+    public final InterfacePokable macro_state_update = (dispatcher,timestamp) -> update_macro_state(timestamp);
+
+    // runs the macroscopic update on several threads, null for sequential
+    private MacroWorkerPool macro_workers;
+
+    // macro_link_models and macro_internal_nodes as arrays, taken in initialize, so
+    // that the sequential update iterates without allocating
+    private models.ctm.LinkModel [] macro_link_array = new models.ctm.LinkModel[0];
+    private Node [] macro_node_array = new Node[0];
+
     ///////////////////////////////////////////
     // construction
     ///////////////////////////////////////////
@@ -329,6 +340,30 @@ public class Network {
 
         for(Node node: nodes.values())
             node.initialize(scenario,runParams);
+
+        // multi-rate: link periods, then node periods
+        int max_period = scenario.get_macro_max_period();
+        for(models.ctm.LinkModel model : macro_link_models)
+            model.set_period(max_period);
+        for(Node node : macro_internal_nodes)
+            node.node_model.set_period();
+
+        macro_link_array = macro_link_models.toArray(new models.ctm.LinkModel[0]);
+        macro_node_array = macro_internal_nodes.toArray(new Node[0]);
+
+        // worker threads for the macroscopic update
+        shutdown_macro_workers();
+        int num_threads = scenario.get_macro_threads();
+        if(num_threads>1 && !macro_link_models.isEmpty())
+            macro_workers = new MacroWorkerPool(this,num_threads);
+    }
+
+    /** Stops the threads of the macroscopic update, if any. The next initialization
+     * starts new ones. **/
+    public void shutdown_macro_workers(){
+        if(macro_workers!=null)
+            macro_workers.shutdown();
+        macro_workers = null;
     }
 
     // This assumes that there are no upstream add_lanes.
@@ -431,47 +466,78 @@ public class Network {
 
     public void update_macro_flow(float timestamp) throws OTMException {
 
+        if(macro_workers!=null){
+            macro_workers.update_macro_flow(timestamp);
+            return;
+        }
+
         // lane changes
         // (cell.veh_in_target,cell.veh_notin_target -> cell.lane_change_flow)
-        macro_link_models.stream()
-                .filter(l -> l.link.lanegroups.size() >= 2)
-                .forEach(l -> l.update_lane_changes());
+        for(models.ctm.LinkModel l : macro_link_array)
+            if(l.link.lanegroups.size()>=2)
+                l.update_lane_changes();
 
         // intermediate state update
         // (cell.lane_change_flow -> cell.veh_in_target,cell.veh_notin_target)
-        macro_link_models.stream()
-                .filter(l -> l.link.lanegroups.size()>=2)
-                .forEach(l -> l.intermediate_state_update());
+        for(models.ctm.LinkModel l : macro_link_array)
+            if(l.link.lanegroups.size()>=2)
+                l.intermediate_state_update();
 
         // update demand and supply
         // (cell.veh_in_target,cell.veh_notin_target -> cell.demand_in_target , cell.demand_notin_target)
         // (cell.veh_in_target,cell.veh_notin_target -> cell.supply)
-        macro_link_models.forEach(l -> l.update_supply_demand());
+        for(models.ctm.LinkModel l : macro_link_array)
+            l.update_supply_demand();
 
         // compute node inflow and outflow (all nodes except sources)
-        macro_internal_nodes.forEach(node->node.node_model.update_flow(timestamp));
+        for(Node node : macro_node_array)
+            node.node_model.update_flow(timestamp);
 
         // exchange packets
-        for(Node node : macro_internal_nodes) {
+        exchange_macro_packets(timestamp);
 
-            // flows on road connections arrive to links on give lanes
-            // convert to packets and send
-            for(models.ctm.RoadConnection rc : node.node_model.rcs.values())
-                rc.rc.end_link.model.add_vehicle_packet(timestamp,new PacketLink(rc.f_rs,rc.rc.out_lanegroups));
+        // update cell boundary flows
+        for(models.ctm.LinkModel l : macro_link_array)
+            l.update_cell_boundary_flows();
+
+    }
 
-            // set exit flows on non-sink lanegroups
-            for(UpLaneGroup ulg : node.node_model.ulgs.values())
-                ulg.lg.release_vehicles(ulg.f_is);
+    public void update_macro_state(float timestamp) throws OTMException {
+
+        if(macro_workers!=null){
+            macro_workers.update_macro_state(timestamp);
+            return;
         }
 
-        // update cell boundary flows
-        macro_link_models.forEach(l -> l.update_cell_boundary_flows());
-        
+        for(models.ctm.LinkModel linkModel : macro_link_array)
+            linkModel.update_state(timestamp);
     }
 
-    public void update_macro_state(float timestamp) {
-        for(models.ctm.LinkModel linkModel : macro_link_models)
-            linkModel.update_state(timestamp);
+    /** Send the road connection flows of all macroscopic nodes to their end links. **/
+    public void exchange_macro_packets(float timestamp) throws OTMException {
+        for(Node node : macro_node_array)
+            exchange_packets(node,timestamp);
+    }
+
+    protected void exchange_packets(Node node,float timestamp) throws OTMException {
+
+        // idle node: all flows are zero
+        if(node.node_model.is_idle())
+            return;
+
+        // all end links macroscopic: write the flows into their lanegroups
+        if(node.node_model.has_exchange_table()){
+            node.node_model.exchange_packets();
+            return;
+        }
+
+        // flows on road connections arrive to links on give lanes
+        // send the road connection packets
+        for(models.ctm.RoadConnection rc : node.node_model.rcs.values())
+            rc.rc.end_link.model.add_vehicle_packet(timestamp,rc.packet);
+
+        // set exit flows on non-sink lanegroups
+        node.node_model.release_vehicles();
     }
 
     ////////////////////////////////////////////
@@ -483,6 +549,12 @@ public class Network {
         this.road_connections = rcs;
     }
 
+    /** True if all links are macroscopic (ctm or mn). */
+    public boolean is_macro_only(){
+        return !links.isEmpty() && links.values().stream()
+                .allMatch(x->x.model_type==Link.ModelType.ctm || x.model_type==Link.ModelType.mn);
+    }
+
     public Set<AbstractLaneGroup> get_lanegroups(){
         return links.values().stream().flatMap(link->link.lanegroups.values().stream()).collect(toSet());
     }
@@ -21,7 +21,6 @@ import runner.ScenarioElementType;
 
 import java.util.*;
 
-import static java.util.stream.Collectors.toSet;
 
 public class Node implements InterfaceActuatorTarget, InterfaceScenarioElement {
 
@@ -153,7 +152,7 @@ public class Node implements InterfaceActuatorTarget, InterfaceScenarioElement {
 
     public void set_node_split(long commodity_id, long linkinid, Map<Long,Double> outlink2value) throws OTMException {
 
-        if(!commodities.stream().map(x->x.getId()).collect(toSet()).contains(commodity_id))
+        if(commodities.stream().noneMatch(x->x.getId()==commodity_id))
             throw new OTMException("Node " + getId() + "  does not support this commodity " + commodity_id);
 
         Link linkin = in_links.get(linkinid);
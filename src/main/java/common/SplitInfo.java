@@ -6,9 +6,9 @@
  */
 package common;
 
-import utils.OTMUtils;
 
 import java.util.*;
+import java.util.function.DoubleSupplier;
 
 /**
  * Each link model holds a map from each commodity (that uses the link)
@@ -25,12 +25,23 @@ public class SplitInfo {
     public Long sole_downstream_link;
 
     public Map<Long,Double> outlink2split;        // output link id -> split
-    public List<LinkCumSplit> link_cumsplit;        // output link id -> cummulative split
+
+    // alias table (Vose) for sampling the output link in O(1): column i is chosen uniformly,
+    // then outlink_ids[i] with probability alias_prob[i], otherwise outlink_ids[alias[i]].
+    public Long [] outlink_ids;
+    private double [] prob;          // normalized splits, in the order of outlink_ids
+    private double [] alias_prob;
+    private int [] alias;
 
     public SplitInfo(Long trivial_answer){
         this.sole_downstream_link = trivial_answer;
     }
 
+    /** The sampled splits are normalized by their sum, with negative values taken as zero,
+     * and all-zero splits are sampled uniformly. Splits that do not add up to one therefore
+     * behave differently than with the former cumulative lookup, where the last link took
+     * whatever was left over. The macroscopic split in PacketSplitter uses outlink2split as given.
+     */
     public void set_splits(Map<Long,Double> outlink2split) {
 
         this.outlink2split = outlink2split;
@@ -38,15 +49,62 @@ public class SplitInfo {
         if(outlink2split.size()==1)
             sole_downstream_link = outlink2split.keySet().iterator().next();
 
-
-        if(outlink2split.size()<=1)
+        if(outlink2split.size()<=1) {
+            outlink_ids = null;
+            prob = null;
+            alias_prob = null;
+            alias = null;
             return;
+        }
 
-        double s = 0d;
-        link_cumsplit = new ArrayList<>();
-        for(Map.Entry<Long,Double> e : outlink2split.entrySet()){
-            link_cumsplit.add(new LinkCumSplit(e.getKey(),s));
-            s += e.getValue();
+        sole_downstream_link = null;
+
+        // output links in a fixed order
+        int n = outlink2split.size();
+        outlink_ids = outlink2split.keySet().stream().sorted().toArray(Long[]::new);
+        double total = 0d;
+        for(Long id : outlink_ids)
+            total += Math.max(0d,outlink2split.get(id));
+
+        // probabilities, and scaled probabilities n*p
+        prob = new double[n];
+        double [] q = new double[n];
+        for(int i=0;i<n;i++) {
+            prob[i] = total>0d ? Math.max(0d,outlink2split.get(outlink_ids[i])) / total : 1d/n;
+            q[i] = n * prob[i];
+        }
+
+        // Vose's method
+        alias_prob = new double[n];
+        alias = new int[n];
+        int [] small = new int[n];
+        int [] large = new int[n];
+        int ns = 0, nl = 0;
+        for(int i=0;i<n;i++)
+            if(q[i]<1d)
+                small[ns++] = i;
+            else
+                large[nl++] = i;
+        while(ns>0 && nl>0){
+            int l = small[--ns];
+            int g = large[--nl];
+            alias_prob[l] = q[l];
+            alias[l] = g;
+            q[g] = (q[g]+q[l]) - 1d;
+            if(q[g]<1d)
+                small[ns++] = g;
+            else
+                large[nl++] = g;
+        }
+        while(nl>0) {
+            int g = large[--nl];
+            alias_prob[g] = 1d;
+            alias[g] = g;
+        }
+        while(ns>0) {       // round-off
+            int l = small[--ns];
+            alias_prob[l] = 1d;
+            alias[l] = l;
         }
     }
 
@@ -55,31 +113,83 @@ public class SplitInfo {
     }
 
     /** return an output link id according to split ratios
-     * for this commodity and link
+     * for this commodity and link. r is a uniform random number in [0,1).
      */
-    public Long sample_output_link(){
+    public Long sample_output_link(double r){
 
         // no splits have been specified
         // packet_splitter validation should check that this is a one-to-one link
-        if(link_cumsplit==null || link_cumsplit.size()<=1)
+        if(outlink_ids==null)
             return sole_downstream_link;
 
-        double r = OTMUtils.random_zero_to_one();
+        return outlink_ids[sample_index(r)];
+    }
 
-        Optional<LinkCumSplit> z = link_cumsplit.stream()
-                                    .filter(x->x.cumsplit<r)  // get all cumsplit < out
-                                    .reduce((a,b)->b);        // get last such vauue
+    /** k output link ids, drawn independently. **/
+    public Long [] sample_output_links(int k,DoubleSupplier uniform){
+        Long [] X = new Long[k];
+        for(int j=0;j<k;j++)
+            X[j] = sample_output_link(uniform.getAsDouble());
+        return X;
+    }
 
-        return z.isPresent() ? z.get().link_id : null;
+    /** Split n vehicles among the output links, multinomially with the split ratios.
+     * The counts are in the order of outlink_ids, or a single count for the sole
+     * downstream link. Each count is a binomial draw conditioned on the counts before
+     * it, so the cost grows with the number of output links, not with n.
+     */
+    public int [] split_vehicles(int n,DoubleSupplier uniform){
+        if(outlink_ids==null)
+            return new int[]{n};
+
+        // the last link with a positive split takes the remainder
+        int last = prob.length-1;
+        while(last>0 && prob[last]==0d)
+            last--;
+
+        int [] count = new int[outlink_ids.length];
+        int remaining = n;
+        double remaining_prob = 1d;
+        for(int i=0;i<last && remaining>0;i++){
+            double p = remaining_prob>0d ? Math.min(1d,prob[i]/remaining_prob) : 1d;
+            count[i] = binomial(remaining,p,uniform);
+            remaining -= count[i];
+            remaining_prob -= prob[i];
+        }
+        count[last] += remaining;
+        return count;
     }
 
-    class LinkCumSplit{
-        public Long link_id;
-        public Double cumsplit;
-        public LinkCumSplit(Long link_id, Double cumsplit) {
-            this.link_id = link_id;
-            this.cumsplit = cumsplit;
+    ///////////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////////
+
+    // number of successes in n trials with probability p. Counts the successes by
+    // their geometric gaps, which takes about n*min(p,1-p) uniforms.
+    private static int binomial(int n,double p,DoubleSupplier uniform){
+        if(n<=0 || p<=0d)
+            return 0;
+        if(p>=1d)
+            return n;
+        if(p>0.5d)
+            return n - binomial(n,1d-p,uniform);
+        double log_q = Math.log1p(-p);
+        int x = 0;
+        double trial = 0d;
+        while(true){
+            trial += 1d + Math.floor(Math.log(1d-uniform.getAsDouble()) / log_q);
+            if(trial>n)
+                return x;
+            x++;
         }
     }
 
+    // one uniform number gives both the column and the coin
+    private int sample_index(double r){
+        int n = outlink_ids.length;
+        double x = r * n;
+        int i = Math.min((int) x, n-1);
+        return (x-i) < alias_prob[i] ? i : alias[i];
+    }
+
 }
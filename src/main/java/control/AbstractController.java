@@ -8,7 +8,6 @@ package control;
 
 import actuator.AbstractActuator;
 import dispatch.Dispatcher;
-import dispatch.EventPoke;
 import dispatch.InterfacePokable;
 import error.OTMErrorLog;
 import error.OTMException;
@@ -179,9 +178,9 @@ public abstract class AbstractController implements InterfacePokable, InterfaceS
     public void poke(Dispatcher dispatcher, float timestamp) throws OTMException  {
         update_controller(dispatcher,timestamp);
 
-        // wake up in dt, if dt is defined
-        if(dt >0)
-            dispatcher.register_event(new EventPoke(dispatcher,1,timestamp+ dt,this));
+        // wake up every dt, if dt is defined
+        if(dt>0)
+            dispatcher.register_periodic(this,timestamp+dt,dt,1);
     }
 
     ////////////////////////////////////////////
@@ -8,18 +8,38 @@ package dispatch;
 
 import error.OTMException;
 
-public abstract class AbstractEvent implements InterfaceEvent {
+public abstract class AbstractEvent implements InterfaceEvent, Comparable<AbstractEvent> {
 
     public Dispatcher dispatcher;
     public float timestamp;
     public Object recipient;
     public int dispatch_order;
 
+    // registration sequence number, assigned by the dispatcher. breaks ties between events
+    // with equal timestamp and dispatch order so that event order is reproducible.
+    long seq;
+
+    // set by Dispatcher.cancel_event. cancelled events are skipped when they reach the head of the queue.
+    boolean cancelled;
+
+    // link to the next event in the same EventQueueCalendar bucket
+    AbstractEvent next_in_bucket;
+
     public AbstractEvent(Dispatcher dispatcher,int dispatch_order, float timestamp, Object recipient){
         this.dispatcher = dispatcher;
         this.dispatch_order = dispatch_order;
         this.timestamp = timestamp;
         this.recipient = recipient;
+        this.cancelled = false;
+    }
+
+    /** Cancellable events are indexed by the dispatcher by class and recipient. */
+    public boolean is_cancellable(){
+        return false;
+    }
+
+    public boolean is_cancelled(){
+        return cancelled;
     }
 
     @Override
@@ -28,6 +48,18 @@ public abstract class AbstractEvent implements InterfaceEvent {
             System.out.println(timestamp + "\t" + dispatch_order + "\t" + getClass().getName() + "\t" + recipient.getClass().getName());
     }
 
+    /** Order by timestamp, then dispatch order, then registration sequence. */
+    @Override
+    public int compareTo(AbstractEvent that) {
+        int c = Float.compare(this.timestamp,that.timestamp);
+        if(c!=0)
+            return c;
+        c = Integer.compare(this.dispatch_order,that.dispatch_order);
+        if(c!=0)
+            return c;
+        return Long.compare(this.seq,that.seq);
+    }
+
     @Override
     public String toString() {
         return timestamp + "\t" + dispatch_order + "\t" + this.getClass();
@@ -12,31 +12,59 @@ import runner.Scenario;
 
 import java.util.*;
 
-import static java.util.stream.Collectors.toSet;
-
 public  class Dispatcher {
 
     public Scenario scenario;
     public float current_time;
     public float start_time;
     public float stop_time;
-    public PriorityQueue<AbstractEvent> events;
+    public InterfaceEventQueue events;
     private boolean continue_simulation;
 
+    // registration counter, see AbstractEvent.seq
+    private long event_seq;
+
+    // reusable buffer for the events of one timestamp
+    private AbstractEvent[] batch;
+
+    // pending cancellable events, class -> recipient -> events
+    private Map<Class<? extends AbstractEvent>,Map<Object,Set<AbstractEvent>>> cancellable_events;
+
+    // periodic tasks
+    private List<EventPeriodic> periodic_events;
+    private Map<InterfacePokable,EventPeriodic> periodic_recipients;
+
     // references to vehicle release events,
     // used by disable_future_vehicle_release_events
 //    public Map<Long,Set<EventReleaseVehicleFromLaneGroup>> vehicle_release_events;
 
     public boolean verbose = false;
 
+    public enum QueueType {heap,calendar}
+
     ///////////////////////////////////////////////////
     // construction
     ///////////////////////////////////////////////////
 
     public Dispatcher(float start_time){
+        this(start_time,QueueType.heap);
+    }
+
+    public Dispatcher(float start_time,QueueType queue_type){
         this.start_time = start_time;
-        this.events = new PriorityQueue<>((AbstractEvent e1, AbstractEvent e2) ->
-                    e1.timestamp>e2.timestamp ? 1 : -1 ) ;
+        switch(queue_type){
+            case calendar:
+                this.events = new EventQueueCalendar();
+                break;
+            default:
+                this.events = new EventQueueHeap();
+                break;
+        }
+        this.cancellable_events = new HashMap<>();
+        this.periodic_events = new ArrayList<>();
+        this.periodic_recipients = new HashMap<>();
+        this.batch = new AbstractEvent[256];
+        this.event_seq = 0;
         this.continue_simulation = false;
     }
 
@@ -51,6 +79,10 @@ public  class Dispatcher {
     public void initialize(float current_time) throws OTMException {
         this.current_time = current_time;
         this.events.clear();
+        this.cancellable_events.clear();
+        this.periodic_events.clear();
+        this.periodic_recipients.clear();
+        this.event_seq = 0;
         this.continue_simulation = true;
     }
 
@@ -58,26 +90,56 @@ public  class Dispatcher {
         this.continue_simulation = x;
     }
 
+    public boolean get_continue_simulation(){
+        return continue_simulation;
+    }
+
     ///////////////////////////////////////////////////
     // update
     ///////////////////////////////////////////////////
 
+    /** Cancel all pending events of the given class. */
     public void remove_events_for_recipient(Class<? extends AbstractEvent> clazz){
 
-        Set<AbstractEvent> remove = events.stream()
-                .filter(x-> x.getClass()==clazz)
-                .collect(toSet());
+        // scan the queue for classes that are not indexed
+        if(!cancellable_events.containsKey(clazz)) {
+            events.stream()
+                    .filter(x -> x.getClass() == clazz)
+                    .forEach(x -> x.cancelled = true);
+            return;
+        }
 
-        events.removeAll(remove);
+        for(Set<AbstractEvent> es : cancellable_events.get(clazz).values()) {
+            es.forEach(x -> x.cancelled = true);
+            es.clear();
+        }
     }
 
+    /** Cancel all pending events of the given class for the given recipient. */
     public void remove_events_for_recipient(Class<? extends AbstractEvent> clazz, Object recipient){
 
-        Set<AbstractEvent> remove = events.stream()
-                .filter(x->x.recipient==recipient && x.getClass()==clazz)
-                .collect(toSet());
+        // scan the queue for classes that are not indexed
+        if(!cancellable_events.containsKey(clazz)) {
+            events.stream()
+                    .filter(x -> x.recipient == recipient && x.getClass() == clazz)
+                    .forEach(x -> x.cancelled = true);
+            return;
+        }
+
+        Set<AbstractEvent> es = cancellable_events.get(clazz).get(recipient);
+        if(es==null)
+            return;
+        es.forEach(x -> x.cancelled = true);
+        es.clear();
+    }
 
-        events.removeAll(remove);
+    /** Cancel a single pending event. The event is left in the queue and skipped when reached. */
+    public void cancel_event(AbstractEvent event){
+        if(event==null || event.cancelled)
+            return;
+        event.cancelled = true;
+        if(event.is_cancellable())
+            unindex(event);
     }
 
 //    public void disable_future_vehicle_release_events(models.ctm.pq.LaneGroup lanegroup){
@@ -89,25 +151,94 @@ public  class Dispatcher {
     public void register_event(AbstractEvent event){
         if(event.timestamp<current_time) // || event.timestamp>end_time)
             return;
+        event.seq = event_seq++;
         events.offer(event);
+        if(event.is_cancellable())
+            cancellable_events
+                    .computeIfAbsent(event.getClass(),c->new HashMap<>())
+                    .computeIfAbsent(event.recipient,r->new HashSet<>())
+                    .add(event);
+    }
+
+    /**
+     * Poke the recipient every 'period' seconds starting at 'first_time'. Recipients with
+     * equal period, dispatch order and next firing time are poked together by a single
+     * EventPeriodic. A recipient may belong to only one periodic group.
+     */
+    public void register_periodic(InterfacePokable recipient,float first_time,float period,int dispatch_order){
+
+        if(first_time<current_time || period<=0 || periodic_recipients.containsKey(recipient))
+            return;
+
+        EventPeriodic group = null;
+        for(EventPeriodic e : periodic_events)
+            if(e.period==period && e.dispatch_order==dispatch_order && e.timestamp==first_time){
+                group = e;
+                break;
+            }
+
+        if(group==null){
+            group = new EventPeriodic(this,dispatch_order,first_time,period);
+            periodic_events.add(group);
+            register_event(group);
+        }
+
+        group.add_recipient(recipient);
+        periodic_recipients.put(recipient,group);
+    }
+
+    public void remove_periodic(InterfacePokable recipient){
+        EventPeriodic group = periodic_recipients.remove(recipient);
+        if(group==null)
+            return;
+        group.remove_recipient(recipient);
+        if(group.recipients.length==0){
+            cancel_event(group);
+            periodic_events.remove(group);
+        }
+    }
+
+    public boolean is_periodic(InterfacePokable recipient){
+        return periodic_recipients.containsKey(recipient);
     }
 
     public void dispatch_events_to_stop() throws OTMException {
+        dispatch_events_to(Float.POSITIVE_INFINITY,Integer.MAX_VALUE);
+    }
+
+    /**
+     * Dispatch all events up to and including the given timestamp and dispatch order.
+     * Events with this timestamp and a larger dispatch order are left in the queue.
+     */
+    public void dispatch_events_to(float timestamp,int dispatch_order) throws OTMException {
 
         while( !events.isEmpty() && continue_simulation ) {
-            float timestamp = events.peek().timestamp;
-            current_time = timestamp;
-
-            // get all events with this timestamp
-            // put into priority queue ordered by dispatch order
-            PriorityQueue<AbstractEvent> es = new PriorityQueue<>(
-                    (AbstractEvent e1, AbstractEvent e2) -> e1.dispatch_order>e2.dispatch_order ? 1 : -1 ) ;
-            while(!events.isEmpty() && events.peek().timestamp==timestamp)
-                es.offer(events.poll());
-
-            // dispatch the priority queue
-            while(!es.isEmpty())
-                es.poll().action(verbose);
+            AbstractEvent first = events.peek();
+            if(!precedes(first,timestamp,dispatch_order))
+                break;
+
+            float t = first.timestamp;
+            current_time = t;
+
+            // get all events with this timestamp.
+            // these come out of the queue sorted by dispatch order and registration.
+            int n = 0;
+            while(!events.isEmpty() && events.peek().timestamp==t && precedes(events.peek(),timestamp,dispatch_order)) {
+                if(n==batch.length)
+                    batch = Arrays.copyOf(batch,2*n);
+                batch[n++] = events.poll();
+            }
+
+            // dispatch the batch
+            for(int i=0;i<n;i++) {
+                AbstractEvent event = batch[i];
+                batch[i] = null;
+                if(event.cancelled)
+                    continue;
+                if(event.is_cancellable())
+                    unindex(event);
+                event.action(verbose);
+            }
         }
     }
 
@@ -116,7 +247,24 @@ public  class Dispatcher {
     }
 
     public void print_events(){
-        this.events.stream().forEach(x->System.out.println(x.toString()));
+        this.events.stream().filter(x->!x.cancelled).forEach(x->System.out.println(x.toString()));
+    }
+
+    ///////////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////////
+
+    private static boolean precedes(AbstractEvent event,float timestamp,int dispatch_order){
+        return event.timestamp<timestamp || (event.timestamp==timestamp && event.dispatch_order<=dispatch_order);
+    }
+
+    private void unindex(AbstractEvent event){
+        Map<Object,Set<AbstractEvent>> x = cancellable_events.get(event.getClass());
+        if(x==null)
+            return;
+        Set<AbstractEvent> es = x.get(event.recipient);
+        if(es!=null)
+            es.remove(event);
     }
 
 }
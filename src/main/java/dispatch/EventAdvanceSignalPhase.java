@@ -15,6 +15,11 @@ public class EventAdvanceSignalPhase extends AbstractEvent {
         super(dispatcher,0, timestamp,phase);
     }
 
+    @Override
+    public boolean is_cancellable() {
+        return true;
+    }
+
     @Override
     public void action(boolean verbose) throws OTMException {
         super.action(verbose);
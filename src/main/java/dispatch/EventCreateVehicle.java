@@ -16,6 +16,11 @@ public class EventCreateVehicle extends AbstractEvent {
         super(dispatcher,0, timestamp,source);
     }
 
+    @Override
+    public boolean is_cancellable() {
+        return true;
+    }
+
     @Override
     public void action(boolean verbose) throws OTMException {
         super.action(verbose);
@@ -19,6 +19,11 @@ public class EventDemandChange extends AbstractEvent {
         this.demand_veh_per_timestep = demand_vps*dispatcher.scenario.sim_dt;
     }
 
+    @Override
+    public boolean is_cancellable() {
+        return true;
+    }
+
     @Override
     public void action(boolean verbose) throws OTMException {
         super.action(verbose);
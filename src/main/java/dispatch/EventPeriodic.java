@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package dispatch;
+
+import error.OTMException;
+
+import java.util.Arrays;
+
+/**
+ * Pokes a group of recipients that share a period, dispatch order and firing time.
+ * After firing the event re-registers itself for the next period, so that there is
+ * a single pending event per group. See Dispatcher.register_periodic.
+ */
+public class EventPeriodic extends AbstractEvent {
+
+    public final float period;
+
+    // copied on change, so that membership may change while the group is firing
+    InterfacePokable[] recipients;
+
+    public EventPeriodic(Dispatcher dispatcher, int dispatch_order, float timestamp, float period) {
+        super(dispatcher, dispatch_order, timestamp, null);
+        this.period = period;
+        this.recipients = new InterfacePokable[0];
+    }
+
+    void add_recipient(InterfacePokable recipient){
+        recipients = Arrays.copyOf(recipients,recipients.length+1);
+        recipients[recipients.length-1] = recipient;
+    }
+
+    void remove_recipient(InterfacePokable recipient){
+        recipients = Arrays.stream(recipients).filter(x->x!=recipient).toArray(InterfacePokable[]::new);
+    }
+
+    @Override
+    public void action(boolean verbose) throws OTMException {
+
+        if(verbose)
+            System.out.println(timestamp + "\t" + dispatch_order + "\t" + getClass().getName() + "\t" + recipients.length + " recipients");
+
+        // move to the next firing first, so that recipients registered
+        // during this one join the group
+        float now = timestamp;
+        timestamp += period;
+
+        InterfacePokable [] x = recipients;
+        for(InterfacePokable recipient : x)
+            recipient.poke(dispatcher,now);
+
+        if(recipients.length>0)
+            dispatcher.register_event(this);
+    }
+
+}
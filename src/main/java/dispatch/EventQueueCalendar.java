@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package dispatch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Calendar queue (R. Brown, CACM 1988). Events are hashed by timestamp into a circular
+ * array of buckets, each covering an interval of length 'width' (a "day"). The number of
+ * buckets follows the queue size and the width is re-estimated from the spacing of the
+ * earliest events whenever the calendar is resized, so that insert and extract are
+ * amortized O(1) for the dense near-future timestamps produced by the simulation.
+ */
+public class EventQueueCalendar implements InterfaceEventQueue {
+
+    private static final int min_buckets = 16;
+    private static final int width_sample = 25;
+
+    // each bucket is a list of events linked through AbstractEvent.next_in_bucket,
+    // sorted so that its earliest event is at the head
+    private AbstractEvent[] buckets;
+    private int mask;
+    private double width;
+    private double inv_width;
+    private int size;
+
+    // scan position: no pending event belongs to a day before current_day
+    private long current_day;
+    private int current_bucket;
+
+    ///////////////////////////////////////////////////
+    // construction
+    ///////////////////////////////////////////////////
+
+    public EventQueueCalendar(){
+        this(1d);
+    }
+
+    public EventQueueCalendar(double width){
+        set_width(width);
+        this.buckets = new AbstractEvent[min_buckets];
+        this.mask = min_buckets-1;
+        this.size = 0;
+        this.current_day = 0;
+        this.current_bucket = 0;
+    }
+
+    ///////////////////////////////////////////////////
+    // InterfaceEventQueue
+    ///////////////////////////////////////////////////
+
+    @Override
+    public void offer(AbstractEvent event) {
+        insert(event);
+        if(size>2*buckets.length)
+            resize(2*buckets.length);
+    }
+
+    @Override
+    public AbstractEvent peek() {
+        int i = locate();
+        return i<0 ? null : buckets[i];
+    }
+
+    @Override
+    public AbstractEvent poll() {
+        AbstractEvent event = remove_first();
+        if(buckets.length>min_buckets && size<buckets.length/2)
+            resize(buckets.length/2);
+        return event;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(int i=0;i<buckets.length;i++){
+            AbstractEvent e = buckets[i];
+            while(e!=null){
+                AbstractEvent next = e.next_in_bucket;
+                e.next_in_bucket = null;
+                e = next;
+            }
+            buckets[i] = null;
+        }
+        size = 0;
+        current_day = 0;
+        current_bucket = 0;
+    }
+
+    @Override
+    public boolean removeAll(Collection<AbstractEvent> events) {
+        boolean changed = false;
+        for(int i=0;i<buckets.length;i++){
+            AbstractEvent prev = null;
+            AbstractEvent e = buckets[i];
+            while(e!=null){
+                AbstractEvent next = e.next_in_bucket;
+                if(events.contains(e)){
+                    if(prev==null)
+                        buckets[i] = next;
+                    else
+                        prev.next_in_bucket = next;
+                    e.next_in_bucket = null;
+                    size--;
+                    changed = true;
+                }
+                else
+                    prev = e;
+                e = next;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public Stream<AbstractEvent> stream() {
+        List<AbstractEvent> x = new ArrayList<>(size);
+        for(AbstractEvent head : buckets)
+            for(AbstractEvent e=head;e!=null;e=e.next_in_bucket)
+                x.add(e);
+        return x.stream();
+    }
+
+    ///////////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////////
+
+    private void set_width(double width){
+        this.width = width;
+        this.inv_width = 1d/width;
+    }
+
+    private long day_of(float timestamp){
+        return (long) Math.floor(timestamp*inv_width);
+    }
+
+    private void insert(AbstractEvent event){
+        long day = day_of(event.timestamp);
+        int i = (int) (day & mask);
+
+        // walk past all events that precede this one
+        AbstractEvent prev = null;
+        AbstractEvent e = buckets[i];
+        while(e!=null && e.compareTo(event)<=0){
+            prev = e;
+            e = e.next_in_bucket;
+        }
+        event.next_in_bucket = e;
+        if(prev==null)
+            buckets[i] = event;
+        else
+            prev.next_in_bucket = event;
+        size++;
+
+        if(day<current_day){
+            current_day = day;
+            current_bucket = i;
+        }
+    }
+
+    private AbstractEvent remove_first(){
+        int i = locate();
+        if(i<0)
+            return null;
+        AbstractEvent event = buckets[i];
+        buckets[i] = event.next_in_bucket;
+        event.next_in_bucket = null;
+        size--;
+        return event;
+    }
+
+    /** Advance the scan position to the bucket holding the earliest event and return its index. */
+    private int locate(){
+
+        if(size==0)
+            return -1;
+
+        // scan at most one year of days starting from the current one
+        int i = current_bucket;
+        long day = current_day;
+        for(int n=0;n<buckets.length;n++){
+            AbstractEvent head = buckets[i];
+            if(head!=null && day_of(head.timestamp)<=day){
+                current_bucket = i;
+                current_day = day;
+                return i;
+            }
+            i = (i+1) & mask;
+            day++;
+        }
+
+        // nothing within a year: jump directly to the earliest event
+        int imin = -1;
+        for(int j=0;j<buckets.length;j++){
+            AbstractEvent head = buckets[j];
+            if(head!=null && (imin<0 || head.compareTo(buckets[imin])<0))
+                imin = j;
+        }
+        current_bucket = imin;
+        current_day = day_of(buckets[imin].timestamp);
+        return imin;
+    }
+
+    private void resize(int num_buckets){
+
+        double new_width = estimate_width();
+
+        AbstractEvent[] old_buckets = buckets;
+        buckets = new AbstractEvent[num_buckets];
+        mask = num_buckets-1;
+        set_width(new_width);
+        size = 0;
+        current_day = Long.MAX_VALUE;
+        current_bucket = 0;
+
+        for(AbstractEvent head : old_buckets){
+            AbstractEvent e = head;
+            while(e!=null){
+                AbstractEvent next = e.next_in_bucket;
+                insert(e);
+                e = next;
+            }
+        }
+
+        if(size==0)
+            current_day = 0;
+    }
+
+    /** Three times the average separation of the earliest events, ignoring outliers. */
+    private double estimate_width(){
+
+        int n = Math.min(size,width_sample);
+        if(n<2)
+            return width;
+
+        AbstractEvent [] sample = new AbstractEvent[n];
+        for(int k=0;k<n;k++)
+            sample[k] = remove_first();
+        for(int k=n-1;k>=0;k--)
+            push_first(sample[k]);
+
+        double avg = ((double)sample[n-1].timestamp - sample[0].timestamp) / (n-1);
+        double sum = 0d;
+        int count = 0;
+        for(int k=1;k<n;k++){
+            double sep = (double)sample[k].timestamp - sample[k-1].timestamp;
+            if(sep<=2*avg){
+                sum += sep;
+                count++;
+            }
+        }
+
+        double new_width = count>0 ? 3d*sum/count : 0d;
+        return new_width>0 ? new_width : width;
+    }
+
+    /** Undo remove_first: put the event back at the head of its bucket. */
+    private void push_first(AbstractEvent event){
+        long day = day_of(event.timestamp);
+        int i = (int) (day & mask);
+        event.next_in_bucket = buckets[i];
+        buckets[i] = event;
+        size++;
+        if(day<current_day){
+            current_day = day;
+            current_bucket = i;
+        }
+    }
+
+}
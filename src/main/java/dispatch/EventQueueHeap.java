@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package dispatch;
+
+import java.util.Collection;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * Binary heap event queue. O(log n) insert and extract.
+ */
+public class EventQueueHeap implements InterfaceEventQueue {
+
+    private PriorityQueue<AbstractEvent> events;
+
+    public EventQueueHeap(){
+        this.events = new PriorityQueue<>();
+    }
+
+    @Override
+    public void offer(AbstractEvent event) {
+        events.offer(event);
+    }
+
+    @Override
+    public AbstractEvent peek() {
+        return events.peek();
+    }
+
+    @Override
+    public AbstractEvent poll() {
+        return events.poll();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+    @Override
+    public void clear() {
+        events.clear();
+    }
+
+    @Override
+    public boolean removeAll(Collection<AbstractEvent> x) {
+        return events.removeAll(x);
+    }
+
+    @Override
+    public Stream<AbstractEvent> stream() {
+        return events.stream();
+    }
+
+}
@@ -24,6 +24,10 @@ public class EventTransitToWaiting extends AbstractEvent {
         if(verbose)
             System.out.println(String.format("\tvehicle %d, link %d, lanegroup %d",vehicle.getId(),lanegroup.link.getId(),lanegroup.id));
 
+        // with lazy transit, vehicles ahead of this one reach the waiting queue first
+        if(lanegroup.lazy_transit)
+            lanegroup.promote_transit_vehicles(timestamp);
+
         vehicle.move_to_queue(timestamp,lanegroup.waiting_queue);
     }
 
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package dispatch;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * Pending event set used by the Dispatcher. Implementations return events
+ * in the order given by AbstractEvent.compareTo.
+ */
+public interface InterfaceEventQueue {
+
+    void offer(AbstractEvent event);
+
+    AbstractEvent peek();
+
+    AbstractEvent poll();
+
+    boolean isEmpty();
+
+    int size();
+
+    void clear();
+
+    boolean removeAll(Collection<AbstractEvent> events);
+
+    /** Pending events, in no particular order. */
+    Stream<AbstractEvent> stream();
+
+}
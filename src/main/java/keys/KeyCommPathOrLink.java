@@ -17,17 +17,23 @@ public class KeyCommPathOrLink implements Comparable<KeyCommPathOrLink> {
     public final long commodity_id;
     public final long pathOrlink_id;    // id of either a link or a path
     public final boolean isPath;        // true is pathOrlink_id is path, false otherwise
+    public final int id;                // dense ordinal assigned by a StateRegistry, -1 if not interned
+    private final int hash;
 
     public KeyCommPathOrLink(Commodity comm, Path path, Link link) {
-        this.commodity_id = comm.getId();
-        this.isPath = comm.pathfull;
-        this.pathOrlink_id = isPath ? path.getId() : link.getId();
+        this(comm.getId(), comm.pathfull ? path.getId() : link.getId(), comm.pathfull);
     }
 
     public KeyCommPathOrLink(long commodity_id, long pathOrlink_id, boolean isPath) {
+        this(commodity_id,pathOrlink_id,isPath,-1);
+    }
+
+    KeyCommPathOrLink(long commodity_id, long pathOrlink_id, boolean isPath, int id) {
         this.commodity_id = commodity_id;
         this.pathOrlink_id = pathOrlink_id;
         this.isPath = isPath;
+        this.id = id;
+        this.hash = Objects.hash(commodity_id, pathOrlink_id, isPath);
     }
 
     @Override
@@ -42,7 +48,7 @@ public class KeyCommPathOrLink implements Comparable<KeyCommPathOrLink> {
 
     @Override
     public int hashCode() {
-        return Objects.hash(commodity_id, pathOrlink_id, isPath);
+        return hash;
     }
 
     @Override
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package keys;
+
+import commodity.Commodity;
+import commodity.Path;
+import common.Link;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interns state keys for a scenario. Each (commodity, path|link, isPath) triple
+ * is created once and given a dense ordinal, so that hot paths can look up a
+ * key without allocating, and index arrays by KeyCommPathOrLink.id.
+ * Lookups of existing keys are lock free; new keys are added under a lock.
+ */
+public class StateRegistry {
+
+    private volatile KeyCommPathOrLink [] table;    // open addressing, linear probing
+    private final List<KeyCommPathOrLink> keys;     // id -> key
+
+    public StateRegistry(){
+        table = new KeyCommPathOrLink[64];
+        keys = new ArrayList<>();
+    }
+
+    ///////////////////////////////////////////////////
+    // get
+    ///////////////////////////////////////////////////
+
+    public KeyCommPathOrLink get(long commodity_id, long pathOrlink_id, boolean isPath){
+        KeyCommPathOrLink key = find(table,commodity_id,pathOrlink_id,isPath);
+        return key!=null ? key : add(commodity_id,pathOrlink_id,isPath);
+    }
+
+    public KeyCommPathOrLink get(Commodity comm, Path path, Link link){
+        return comm.pathfull ? get(comm.getId(),path.getId(),true) : get(comm.getId(),link.getId(),false);
+    }
+
+    public synchronized KeyCommPathOrLink get_key(int id){
+        return id<0 || id>=keys.size() ? null : keys.get(id);
+    }
+
+    public synchronized int size(){
+        return keys.size();
+    }
+
+    ///////////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////////
+
+    private synchronized KeyCommPathOrLink add(long commodity_id, long pathOrlink_id, boolean isPath){
+
+        // another thread may have added it
+        KeyCommPathOrLink key = find(table,commodity_id,pathOrlink_id,isPath);
+        if(key!=null)
+            return key;
+
+        key = new KeyCommPathOrLink(commodity_id,pathOrlink_id,isPath,keys.size());
+        keys.add(key);
+
+        // keep the load factor under 1/2
+        KeyCommPathOrLink [] t = table;
+        if(2*keys.size() > t.length){
+            KeyCommPathOrLink [] bigger = new KeyCommPathOrLink[2*t.length];
+            for(KeyCommPathOrLink k : keys)
+                insert(bigger,k);
+            table = bigger;
+        } else {
+            insert(t,key);
+        }
+
+        return key;
+    }
+
+    private static KeyCommPathOrLink find(KeyCommPathOrLink [] t, long commodity_id, long pathOrlink_id, boolean isPath){
+        int mask = t.length-1;
+        int i = slot(commodity_id,pathOrlink_id,isPath) & mask;
+        KeyCommPathOrLink k;
+        while((k=t[i])!=null){
+            if(k.commodity_id==commodity_id && k.pathOrlink_id==pathOrlink_id && k.isPath==isPath)
+                return k;
+            i = (i+1) & mask;
+        }
+        return null;
+    }
+
+    private static void insert(KeyCommPathOrLink [] t, KeyCommPathOrLink key){
+        int mask = t.length-1;
+        int i = slot(key.commodity_id,key.pathOrlink_id,key.isPath) & mask;
+        while(t[i]!=null)
+            i = (i+1) & mask;
+        t[i] = key;
+    }
+
+    private static int slot(long commodity_id, long pathOrlink_id, boolean isPath){
+        long h = commodity_id * 0x9E3779B97F4A7C15L + pathOrlink_id;
+        h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L + (isPath ? 1 : 0);
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
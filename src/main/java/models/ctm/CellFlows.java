@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package models.ctm;
+
+import utils.OTMUtils;
+
+/**
+ * The cell equations of the ctm lanegroup, for one cell. LaneGroup and the K-wide
+ * stripes of EnsembleBatch store their cells differently, but compute demand, supply,
+ * boundary flows and lane changes with these, and apply the resulting factors to their
+ * states with CellKernels.kernel.
+ */
+public final class CellFlows {
+
+    private static final double gamma_lane_change = 0.9d;
+
+    private CellFlows(){}
+
+    /** Fraction of the vehicles of a cell that leave it in one step, before the supply
+     * downstream is considered. Zero for an empty cell. **/
+    public static double demand_factor(LaneGroup lg,double vehicles_in_target,double vehicles_notin_target,boolean am_dnstrm,double max_speed){
+
+        double total_vehicles = vehicles_in_target + vehicles_notin_target;
+
+        // case empty cell
+        if (total_vehicles < OTMUtils.epsilon)
+            return 0d;
+
+        double total_demand;
+
+        // compute total flow leaving the cell in the absence of flow control
+        if (lg.link.is_source)
+            // sources discharge at capacity
+            total_demand = Math.min(total_vehicles, lg.capacity_veh);
+        else {
+            // assume speed control acts equally on all cells in the link
+            double ffspeed = Math.min(lg.ffspeed_norm, max_speed);
+            if(am_dnstrm)
+                total_demand = Math.min(ffspeed * total_vehicles, lg.capacity_veh);
+            else
+                total_demand = ffspeed * total_vehicles;
+        }
+
+        // downstream cell: flow controller and lane change blocking
+        if (am_dnstrm && vehicles_notin_target>OTMUtils.epsilon)
+            total_demand *= Math.max(0d,1d-gamma_lane_change*vehicles_notin_target);
+
+        // split among in|out target, commodities, paths|nextlinks
+        return total_demand / total_vehicles;
+    }
+
+    /** Vehicles a cell with total_vehicles can receive in one step. **/
+    public static double supply(LaneGroup lg,double total_vehicles,boolean am_dnstrm){
+        if (lg.link.is_sink)
+            return lg.capacity_veh;
+        switch (lg.link.model_type) {
+            case ctm:
+                double supply = lg.wspeed_norm * (lg.jam_density_veh - total_vehicles);
+                return am_dnstrm ? Math.min(supply, lg.capacity_veh) : supply;
+            case mn:
+                return Float.POSITIVE_INFINITY;
+            default:
+                System.err.println("Wha??");
+                return Double.NaN;
+        }
+    }
+
+    /** Supply of the upstream cell, as seen by the node model. **/
+    public static double upstream_supply(LaneGroup lg,double first_cell_vehicles){
+        return lg.wspeed_norm * (lg.jam_density_veh - first_cell_vehicles);
+    }
+
+    /** Fraction of the demand of a cell that crosses into the next cell. **/
+    public static double boundary_factor(double total_demand,double next_supply){
+        return total_demand>OTMUtils.epsilon ? Math.min(total_demand,next_supply) / total_demand : 0d;
+    }
+
+    /** Fraction of the vehicles requesting to change into cell i of lanegroup x that
+     * change in one step. x_vehicles is the content of that cell, and total_request
+     * includes request and the requests from the other side of x. **/
+    public static double lane_change_ratio(LaneGroup x,double x_vehicles,double request,double total_request){
+        if(request<=OTMUtils.epsilon)
+            return 0d;
+        double space = x.lc_xi * (x.jam_density_veh - x_vehicles);
+        return space>0d ? Math.min(space,total_request) / total_request : 0d;
+    }
+
+}
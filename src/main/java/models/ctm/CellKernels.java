@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package models.ctm;
+
+/**
+ * Selects the cell kernel once, when the class is loaded. The multi-release jar carries
+ * models.ctm.VectorCellKernel for Java 17+, which uses the jdk.incubator.vector module.
+ * It is used when it loads, that is, on Java 17+ started with
+ * --add-modules jdk.incubator.vector. Otherwise the scalar kernel is used.
+ * -Dotm.cell_kernel=scalar forces the scalar kernel.
+ */
+public final class CellKernels {
+
+    public static final InterfaceCellKernel kernel = select();
+
+    private CellKernels(){}
+
+    private static InterfaceCellKernel select(){
+        if("scalar".equals(System.getProperty("otm.cell_kernel")))
+            return new ScalarCellKernel();
+        try {
+            Class<?> clazz = Class.forName("models.ctm.VectorCellKernel");
+            return (InterfaceCellKernel) clazz.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarCellKernel();
+        }
+    }
+
+}
@@ -0,0 +1,608 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package models.ctm;
+
+import commodity.Commodity;
+import common.AbstractLaneGroup;
+import common.Link;
+import common.Network;
+import common.Node;
+import dispatch.Dispatcher;
+import dispatch.EventStopSimulation;
+import error.OTMException;
+import runner.Scenario;
+import utils.OTMUtils;
+
+import java.util.*;
+
+/**
+ * Advances K replicas of a ctm network in lockstep. The replicas are initialized
+ * scenarios built from the same configuration, which may differ only in their demands.
+ * Their dispatchers process the events (demand changes, stop), while the cell
+ * state of all replicas is held here in K-wide stripes, [cell][state][replica], and
+ * updated in one pass over the topology of the first replica. Each replica follows the
+ * same computation as a single run of OTM.
+ *
+ * The lanegroups of the replicas are not updated, so anything that reads them during
+ * the run (outputs, sensors, controllers, actuators) is rejected. State is read with
+ * get_link_vehicles.
+ *
+ * Supported networks: ctm links only, pathfull commodities, and period 1 for all links.
+ */
+public class EnsembleBatch {
+
+    public final int K;
+    private final Scenario [] replicas;
+    private final Network network;
+    private final float sim_dt;
+
+    private final Stripe [] stripes;                    // all ctm lanegroups of the first replica
+    private final Map<AbstractLaneGroup,Stripe> lg2stripe;
+    private final Junction [] junctions;                // internal nodes
+
+    // work arrays for the node model
+    private double [] d;
+    private double [] s;
+
+    ////////////////////////////////////////////
+    // construction
+    ////////////////////////////////////////////
+
+    public EnsembleBatch(Scenario [] replicas) throws OTMException {
+
+        if(replicas==null || replicas.length==0)
+            throw new OTMException("No replicas.");
+
+        this.K = replicas.length;
+        this.replicas = replicas;
+        this.network = replicas[0].network;
+        this.sim_dt = replicas[0].sim_dt;
+
+        for(Scenario scenario : replicas) {
+            if (!scenario.is_initialized)
+                throw new OTMException("Replicas must be initialized.");
+            if (scenario.sim_dt != sim_dt)
+                throw new OTMException("Replicas must have the same sim_dt.");
+            if (!scenario.outputs.isEmpty() || !scenario.sensors.isEmpty() || !scenario.controllers.isEmpty() || !scenario.actuators.isEmpty())
+                throw new OTMException("Batched runs do not support outputs, sensors, controllers or actuators.");
+        }
+
+        for(Link link : network.links.values())
+            if(link.model_type!=Link.ModelType.ctm)
+                throw new OTMException("Batched runs require ctm links. Link " + link.getId() + " is " + link.model_type);
+        for(Commodity commodity : replicas[0].commodities.values())
+            if(!commodity.pathfull)
+                throw new OTMException("Batched runs require pathfull commodities. Commodity " + commodity.getId() + " is pathless.");
+        for(models.ctm.LinkModel model : network.macro_link_models)
+            if(model.period!=1)
+                throw new OTMException("Batched runs do not support multi-rate links.");
+
+        // stripes, in the order of the network update
+        List<Stripe> X = new ArrayList<>();
+        lg2stripe = new HashMap<>();
+        for(models.ctm.LinkModel model : network.macro_link_models)
+            for(AbstractLaneGroup alg : model.link.lanegroups.values()) {
+                Stripe stripe = new Stripe((models.ctm.LaneGroup) alg);
+                X.add(stripe);
+                lg2stripe.put(alg,stripe);
+            }
+        stripes = X.toArray(new Stripe[0]);
+        for(Stripe stripe : stripes)
+            stripe.link_replicas();
+
+        // junctions
+        int max_d = 0;
+        int max_s = 0;
+        List<Junction> J = new ArrayList<>();
+        for(Node node : network.macro_internal_nodes){
+            Junction junction = new Junction(node.node_model);
+            J.add(junction);
+            max_d = Math.max(max_d,junction.nm.u_off[junction.nm.u_lg.length]);
+            max_s = Math.max(max_s,junction.nm.j_lg.length);
+        }
+        junctions = J.toArray(new Junction[0]);
+        d = new double[max_d];
+        s = new double[max_s];
+    }
+
+    ////////////////////////////////////////////
+    // run
+    ////////////////////////////////////////////
+
+    /** Same sequence of events and updates as OTM.advance with a fixed macro step. **/
+    public void advance(float duration) throws OTMException {
+
+        Dispatcher lead = replicas[0].dispatcher;
+        float now = lead.current_time;
+
+        for(Scenario scenario : replicas){
+            Dispatcher dispatcher = scenario.dispatcher;
+            dispatcher.set_continue_simulation(true);
+            dispatcher.set_stop_time(now+duration);
+            dispatcher.register_event(new EventStopSimulation(scenario,dispatcher,now+duration));
+        }
+
+        float timestamp = now + sim_dt;
+        while(timestamp<=lead.stop_time && lead.get_continue_simulation()){
+
+            for(Scenario scenario : replicas) {
+                scenario.dispatcher.dispatch_events_to(timestamp, 1);
+                scenario.dispatcher.current_time = timestamp;
+            }
+
+            update_flow();
+
+            for(Scenario scenario : replicas)
+                scenario.dispatcher.dispatch_events_to(timestamp,3);
+
+            update_state();
+
+            timestamp += sim_dt;
+        }
+
+        for(Scenario scenario : replicas)
+            scenario.dispatcher.dispatch_events_to_stop();
+    }
+
+    ////////////////////////////////////////////
+    // get
+    ////////////////////////////////////////////
+
+    /** Vehicles in link link_id for replica k, as in Link.get_veh_for_commodity(null). **/
+    public double get_link_vehicles(long link_id,int k){
+        Link link = network.links.get(link_id);
+        if(link==null)
+            return Double.NaN;
+        return link.lanegroups.values().stream()
+                .mapToDouble(lg->lg2stripe.get(lg).get_vehicles(k))
+                .sum();
+    }
+
+    ////////////////////////////////////////////
+    // update
+    ////////////////////////////////////////////
+
+    private void update_flow() {
+
+        // source inflows, held by the replicas' own lanegroups
+        for(Stripe stripe : stripes)
+            if(stripe.lg.link.is_source)
+                stripe.load_source_inflow();
+
+        for(Stripe stripe : stripes)
+            if(stripe.ns>0 && stripe.nn>0)
+                stripe.update_lane_change_requests();
+
+        for(Stripe stripe : stripes)
+            if(stripe.ns>0 && stripe.nn>0)
+                stripe.update_lane_change_flow();
+
+        for(Stripe stripe : stripes)
+            if(stripe.ns>0 && stripe.nn>0)
+                stripe.intermediate_state_update();
+
+        for(Stripe stripe : stripes)
+            if(stripe.ns>0)
+                stripe.update_supply_demand();
+
+        for(Junction junction : junctions)
+            junction.update_and_exchange();
+
+        for(Stripe stripe : stripes)
+            stripe.update_cell_boundary_flows();
+    }
+
+    private void update_state(){
+        for(Stripe stripe : stripes)
+            stripe.update_state();
+    }
+
+    ////////////////////////////////////////////
+    // class
+    ////////////////////////////////////////////
+
+    // state of one lanegroup for all replicas, with the replica as the innermost index.
+    // The cell equations are those of models.ctm.LaneGroup, in CellFlows, and the factors
+    // they give for each replica are applied to the states with the cell kernel.
+    private class Stripe {
+
+        final models.ctm.LaneGroup lg;
+        final int nc, ns, nn, split;
+        final Stripe [] neighbors = new Stripe[2];
+        models.ctm.LaneGroup [] source_lgs;     // this lanegroup in each replica, for sources
+
+        final double [] veh_in_target;
+        final double [] demand_in_target;
+        final double [] flow_in_target;
+        final double [] veh_notin_target;
+        final double [] demand_notin_target;
+        final double [] lane_change_flow;
+        final double [] lc_request;
+        final double [] flow_notin_target;
+        final double [] supply;
+
+        // per replica work arrays
+        final double [] a;
+        final double [] b;
+        final double [] factor;
+
+        Stripe(models.ctm.LaneGroup lg){
+            this.lg = lg;
+            this.nc = lg.num_cells;
+            this.ns = lg.state_keys.length;
+            this.nn = lg.notin_keys.length;
+            this.split = lg.notin_split;
+
+            veh_in_target = new double[nc*ns*K];
+            demand_in_target = new double[nc*ns*K];
+            flow_in_target = new double[(nc+1)*ns*K];
+            supply = new double[nc*K];
+            if(nn>0){
+                veh_notin_target = new double[nc*nn*K];
+                demand_notin_target = new double[nc*nn*K];
+                lane_change_flow = new double[nc*nn*K];
+                lc_request = new double[nc*2*K];
+                flow_notin_target = new double[(nc+1)*nn*K];
+            } else {
+                veh_notin_target = null;
+                demand_notin_target = null;
+                lane_change_flow = null;
+                lc_request = null;
+                flow_notin_target = null;
+            }
+            a = new double[K];
+            b = new double[K];
+            factor = new double[K];
+        }
+
+        // neighbor stripes, source lanegroups and initial vehicles of each replica
+        void link_replicas() throws OTMException {
+            for(int side=LaneGroup.INSIDE;side<=LaneGroup.OUTSIDE;side++)
+                neighbors[side] = lg.neighbors[side]==null ? null : lg2stripe.get(lg.neighbors[side]);
+            if(lg.link.is_source)
+                source_lgs = new models.ctm.LaneGroup[K];
+            for(int k=0;k<K;k++){
+                models.ctm.LaneGroup x = find(replicas[k]);
+                stripe_in(x.veh_in_target,veh_in_target,k);
+                if(veh_notin_target!=null)
+                    stripe_in(x.veh_notin_target,veh_notin_target,k);
+                if(source_lgs!=null)
+                    source_lgs[k] = x;
+            }
+        }
+
+        private models.ctm.LaneGroup find(Scenario scenario) throws OTMException {
+            Link link = scenario.network.links.get(lg.link.getId());
+            AbstractLaneGroup x = link==null ? null : link.lanegroups.get(lg.id);
+            if(!(x instanceof models.ctm.LaneGroup) || ((models.ctm.LaneGroup)x).state_keys.length!=ns || ((models.ctm.LaneGroup)x).notin_keys.length!=nn)
+                throw new OTMException("Replicas must have the same network. Lanegroup " + lg.id + " differs.");
+            return (models.ctm.LaneGroup) x;
+        }
+
+        private void stripe_in(double [] x,double [] y,int k){
+            for(int i=0;i<x.length;i++)
+                y[i*K+k] = x[i];
+        }
+
+        void load_source_inflow(){
+            for(int k=0;k<K;k++){
+                double [] f = source_lgs[k].flow_in_target;
+                for(int q=0;q<ns;q++)
+                    flow_in_target[q*K+k] = f[q];
+            }
+        }
+
+        // vehicles in cell i, in and not in target, into x
+        void cell_vehicles(int i,double [] x){
+            Arrays.fill(x,0d);
+            sum_into(veh_in_target,i*ns,ns,x);
+            if(veh_notin_target!=null){
+                Arrays.fill(b,0d);
+                sum_into(veh_notin_target,i*nn,nn,b);
+                for(int k=0;k<K;k++)
+                    x[k] += b[k];
+            }
+        }
+
+        double get_supply(int k){
+            double veh_in = 0d;
+            for(int q=0;q<ns;q++)
+                veh_in += veh_in_target[q*K+k];
+            double veh_notin = 0d;
+            if(veh_notin_target!=null)
+                for(int q=0;q<nn;q++)
+                    veh_notin += veh_notin_target[q*K+k];
+            return CellFlows.upstream_supply(lg,veh_in + veh_notin);
+        }
+
+        float get_vehicles(int k){
+            double veh = 0d;
+            for(int i=0;i<nc;i++){
+                double veh_in = 0d;
+                for(int q=0;q<ns;q++)
+                    veh_in += veh_in_target[(i*ns+q)*K+k];
+                double veh_notin = 0d;
+                if(veh_notin_target!=null)
+                    for(int q=0;q<nn;q++)
+                        veh_notin += veh_notin_target[(i*nn+q)*K+k];
+                veh += veh_in + veh_notin;
+            }
+            return (float) veh;
+        }
+
+        // vehicles in cell i of the neighbor stripes requesting to change into this one, replica k
+        double get_lane_change_request(int i,int k){
+            double request = 0d;
+            for(int side=LaneGroup.INSIDE;side<=LaneGroup.OUTSIDE;side++){
+                Stripe x = neighbors[side];
+                if(x!=null && x.neighbors[1-side]==this && x.lc_request!=null && i<x.nc)
+                    request += x.lc_request[(2*i+1-side)*K+k];
+            }
+            return request;
+        }
+
+        void update_lane_change_requests(){
+            for(int i=0;i<nc;i++){
+                Arrays.fill(a,0d);
+                Arrays.fill(b,0d);
+                sum_into(veh_notin_target,i*nn,split,a);
+                sum_into(veh_notin_target,i*nn+split,nn-split,b);
+                for(int k=0;k<K;k++){
+                    lc_request[(2*i+LaneGroup.INSIDE)*K+k] = a[k];
+                    lc_request[(2*i+LaneGroup.OUTSIDE)*K+k] = b[k];
+                }
+            }
+        }
+
+        void update_lane_change_flow(){
+            for(int i=0;i<nc;i++){
+                update_lane_change_flow(i,LaneGroup.INSIDE,i*nn,split);
+                update_lane_change_flow(i,LaneGroup.OUTSIDE,i*nn+split,nn-split);
+            }
+        }
+
+        private void update_lane_change_flow(int i,int side,int from,int n){
+
+            if(n==0)
+                return;
+
+            Stripe x = neighbors[side];
+            boolean reach = i<x.nc;
+            if(reach)
+                x.cell_vehicles(i,x.a);
+
+            for(int k=0;k<K;k++){
+                double ratio = 0d;
+                double request = lc_request[(2*i+side)*K+k];
+                if(request>OTMUtils.epsilon && reach){
+                    double total_request = x.get_lane_change_request(i,k);
+                    if(x.neighbors[1-side]!=this)
+                        total_request += request;
+                    ratio = CellFlows.lane_change_ratio(x.lg,x.a[k],request,total_request);
+                }
+                factor[k] = ratio;
+            }
+
+            for(int q=from;q<from+n;q++)
+                CellKernels.kernel.scale_rows(veh_notin_target,q*K,factor,lane_change_flow,q*K,K,1);
+        }
+
+        void intermediate_state_update(){
+            for(int i=0;i<nc;i++){
+                for(int f=0;f<nn;f++){
+                    int dest = lg.notin_dest[f];
+                    if(dest<0)
+                        continue;
+                    Stripe x = neighbors[f<split ? LaneGroup.INSIDE : LaneGroup.OUTSIDE];
+                    double [] X = lg.notin_arrives[f] ? x.veh_in_target : x.veh_notin_target;
+                    int o = (i*(lg.notin_arrives[f] ? x.ns : x.nn)+dest)*K;
+                    for(int k=0;k<K;k++){
+                        int y = (i*nn+f)*K+k;
+                        double veh = lane_change_flow[y];
+                        if(veh>0){
+                            veh_notin_target[y] -= veh;
+                            X[o+k] += veh;
+                        }
+                    }
+                }
+            }
+        }
+
+        void update_supply_demand(){
+
+            InterfaceCellKernel kernel = CellKernels.kernel;
+
+            for(int i=0;i<nc;i++){
+
+                boolean am_dnstrm = i==nc-1;
+
+                // a: vehicles in target, b: vehicles not in target
+                Arrays.fill(a,0d);
+                sum_into(veh_in_target,i*ns,ns,a);
+                Arrays.fill(b,0d);
+                if(veh_notin_target!=null)
+                    sum_into(veh_notin_target,i*nn,nn,b);
+
+                for(int k=0;k<K;k++){
+                    factor[k] = CellFlows.demand_factor(lg,a[k],b[k],am_dnstrm,Double.POSITIVE_INFINITY);
+                    supply[i*K+k] = CellFlows.supply(lg,a[k]+b[k],am_dnstrm);
+                }
+
+                // demand = vehicles * alpha of the cell and replica
+                for(int q=0;q<ns;q++)
+                    kernel.scale_rows(veh_in_target,(i*ns+q)*K,factor,demand_in_target,(i*ns+q)*K,K,1);
+                if(demand_notin_target!=null)
+                    for(int q=0;q<nn;q++)
+                        kernel.scale_rows(veh_notin_target,(i*nn+q)*K,factor,demand_notin_target,(i*nn+q)*K,K,1);
+            }
+        }
+
+        void update_cell_boundary_flows(){
+
+            if(ns==0)
+                return;
+
+            InterfaceCellKernel kernel = CellKernels.kernel;
+
+            for(int i=0;i<nc-1;i++){
+
+                Arrays.fill(a,0d);
+                sum_into(demand_in_target,i*ns,ns,a);
+                if(demand_notin_target!=null){
+                    Arrays.fill(b,0d);
+                    sum_into(demand_notin_target,i*nn,nn,b);
+                    for(int k=0;k<K;k++)
+                        a[k] += b[k];
+                }
+
+                for(int k=0;k<K;k++)
+                    factor[k] = CellFlows.boundary_factor(a[k],supply[(i+1)*K+k]);
+
+                // flow across the downstream boundary of cell i = demand * gamma of the cell and replica
+                for(int q=0;q<ns;q++)
+                    kernel.scale_rows(demand_in_target,(i*ns+q)*K,factor,flow_in_target,((i+1)*ns+q)*K,K,1);
+                if(flow_notin_target!=null)
+                    for(int q=0;q<nn;q++)
+                        kernel.scale_rows(demand_notin_target,(i*nn+q)*K,factor,flow_notin_target,((i+1)*nn+q)*K,K,1);
+            }
+
+            if(lg.link.end_node.is_sink) {
+                System.arraycopy(demand_in_target,(nc-1)*ns*K,flow_in_target,nc*ns*K,ns*K);
+                if(flow_notin_target!=null)
+                    System.arraycopy(demand_notin_target,(nc-1)*nn*K,flow_notin_target,nc*nn*K,nn*K);
+            }
+        }
+
+        void update_state(){
+
+            if(ns==0)
+                return;
+
+            CellKernels.kernel.advance(veh_in_target,flow_in_target,ns*K,nc*ns*K);
+            Arrays.fill(flow_in_target,0,ns*K,0d);
+            Arrays.fill(flow_in_target,nc*ns*K,(nc+1)*ns*K,0d);
+
+            if(flow_notin_target!=null){
+                CellKernels.kernel.advance(veh_notin_target,flow_notin_target,nn*K,nc*nn*K);
+                Arrays.fill(flow_notin_target,0,nn*K,0d);
+                Arrays.fill(flow_notin_target,nc*nn*K,(nc+1)*nn*K,0d);
+            }
+        }
+
+        // x[k] += sum of rows from..from+n of stripe X, for each replica
+        private void sum_into(double [] X,int from,int n,double [] x){
+            for(int q=from;q<from+n;q++){
+                int o = q*K;
+                for(int k=0;k<K;k++)
+                    x[k] += X[o+k];
+            }
+        }
+    }
+
+    // a node, with the exchange table of its node model mapped to stripes
+    private class Junction {
+
+        final NodeModel nm;
+        final Stripe [] ups;
+        final Stripe [] dns;
+
+        // arrival stripes of each road connection, and the destination of each road
+        // connection state in nm's exchange table. Pathfull states have one.
+        final Stripe [][] arrive;
+        final int [] q_d;
+
+        Junction(NodeModel nm) throws OTMException {
+            this.nm = nm;
+
+            ups = new Stripe[nm.u_lg.length];
+            for(int u=0;u<ups.length;u++)
+                ups[u] = lg2stripe.get(nm.u_lg[u]);
+            dns = new Stripe[nm.j_lg.length];
+            for(int j=0;j<dns.length;j++)
+                dns[j] = lg2stripe.get(nm.j_lg[j]);
+
+            if(!nm.has_exchange_table())
+                throw new OTMException("Batched runs require macroscopic links downstream of node " + nm.node.getId());
+
+            arrive = new Stripe[nm.x_lg.length][];
+            for(int r=0;r<arrive.length;r++){
+                arrive[r] = new Stripe[nm.x_lg[r].length];
+                for(int c=0;c<arrive[r].length;c++)
+                    arrive[r][c] = lg2stripe.get(nm.x_lg[r][c]);
+            }
+
+            q_d = new int[nm.q_key.length];
+            for(int q=0;q<q_d.length;q++){
+                if(nm.q_d_off[q+1]-nm.q_d_off[q]!=1)
+                    throw new OTMException("Batched runs require pathfull commodities.");
+                q_d[q] = nm.q_d_off[q];
+                if(nm.d_missing[q_d[q]])
+                    throw new OTMException("target_lanegroups==null. Node " + nm.node.getId() + " sends state " + nm.q_key[q] + " to a link with no access to the next link on its path.");
+            }
+        }
+
+        void update_and_exchange(){
+
+            for(int k=0;k<K;k++){
+
+                // demands and supplies of replica k
+                for(int u=0;u<ups.length;u++){
+                    Stripe x = ups[u];
+                    int o = (x.nc-1)*x.ns;
+                    for(int q=0;q<x.ns;q++)
+                        d[nm.u_off[u]+q] = x.demand_in_target[(o+q)*K+k];
+                }
+                for(int j=0;j<dns.length;j++)
+                    s[j] = dns[j].get_supply(k);
+
+                nm.solve(d,s);
+
+                // road connection flows to the arrival lanegroups, as in NodeModel.exchange_packets
+                for(int r=0;r<arrive.length;r++){
+                    Stripe [] C = arrive[r];
+                    double total_supply = 0d;
+                    if(C.length>1)
+                        for(Stripe x : C)
+                            total_supply += x.get_supply(k);
+                    for(int q=nm.r_q_off[r];q<nm.r_q_off[r+1];q++){
+                        double vehicles = nm.f_rs[q];
+                        if(vehicles==0d)
+                            continue;
+                        int o = nm.d_c_off[q_d[q]];
+                        if(C.length==1)
+                            add(C[0],nm.c_in_target[o],nm.c_ordinal[o],vehicles,k);
+                        else
+                            for(int c=0;c<C.length;c++){
+                                double prop = C[c].get_supply(k) / total_supply;
+                                if(prop<=0d)
+                                    continue;
+                                add(C[c],nm.c_in_target[o+c],nm.c_ordinal[o+c],prop==1d ? vehicles : vehicles*prop,k);
+                            }
+                    }
+                }
+
+                // exit flows of the upstream lanegroups
+                for(int u=0;u<ups.length;u++){
+                    Stripe x = ups[u];
+                    int o = x.nc*x.ns;
+                    for(int q=0;q<x.ns;q++)
+                        x.flow_in_target[(o+q)*K+k] += nm.f_is[nm.u_off[u]+q];
+                }
+            }
+        }
+
+        private void add(Stripe x,boolean in_target,int ordinal,double vehicles,int k){
+            if(ordinal<0)
+                return;
+            if(in_target)
+                x.flow_in_target[ordinal*K+k] += vehicles;
+            else if(x.flow_notin_target!=null)
+                x.flow_notin_target[ordinal*K+k] += vehicles;
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package models.ctm;
+
+/** Element-wise operations on the flat cell arrays of a lanegroup. **/
+public interface InterfaceCellKernel {
+
+    /** y[to+i] = x[from+i] * a, for i in 0..n-1 **/
+    void scale(double [] x,int from,double a,double [] y,int to,int n);
+
+    /** y[to+i*w+q] = x[from+i*w+q] * a[i], for i in 0..rows-1 and q in 0..w-1 **/
+    void scale_rows(double [] x,int from,double [] a,double [] y,int to,int rows,int w);
+
+    /** veh[i] += flow[i]; veh[i] -= flow[i+shift], for i in 0..n-1 **/
+    void advance(double [] veh,double [] flow,int shift,int n);
+
+    String name();
+
+}
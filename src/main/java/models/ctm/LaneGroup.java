@@ -20,19 +20,81 @@ import utils.OTMUtils;
 
 import java.util.*;
 
-import static java.util.stream.Collectors.toSet;
-
 public class LaneGroup extends AbstractLaneGroup {
 
-    public double cell_length_meters;
-
-    public List<Cell> cells;     // sequence of cells
-
-    // transversal flow of vehicles already in their target lanegroup
-    public List<Map<KeyCommPathOrLink,Double>> flow_in_target;
+    private static final InterfaceCellKernel kernel = CellKernels.kernel;
 
-    // transversal flow of vehicles not in their target lanegroup
-    public List<Map<KeyCommPathOrLink,Double>> flow_notin_target;
+    public double cell_length_meters;
+    public int num_cells;
+
+    public List<Cell> cells;     // views of the cells, for the api and animation
+
+    // road params, same for all cells
+    public double capacity_veh;         // [veh]
+    public double wspeed_norm;          // [-]
+    public double ffspeed_norm;         // [-]
+    public double jam_density_veh;      // [veh]
+    public double lc_xi;                // [-] fraction of the free space filled by lane changes in one step
+    public int period = 1;              // road params are normalized with period*sim_dt
+
+    // state ordinals: state_keys[s] is the state with ordinal s
+    public KeyCommPathOrLink [] state_keys;
+    public Map<KeyCommPathOrLink,Integer> state_ordinal;
+    private long [] state_commodity;
+    private int [] state_commodity_ordinal;
+    private Map<Long,Integer> commodity_ordinal;
+
+    // adjacent lanegroups toward the inside (lower lane numbers) and the outside, or null
+    public static final int INSIDE = 0;
+    public static final int OUTSIDE = 1;
+    public final LaneGroup [] neighbors = new LaneGroup[2];
+
+    // states of the other lanegroups of the link, carried here as not-in-target. notin_keys[f]
+    // is the state with not-in-target ordinal f. Ordinals below notin_split move toward the
+    // inside, the rest toward the outside, one lanegroup per lane change. In the adjacent
+    // lanegroup, f is in target ordinal notin_dest[f] if notin_arrives[f], otherwise it is
+    // not in target ordinal notin_dest[f].
+    public KeyCommPathOrLink [] notin_keys;
+    public Map<KeyCommPathOrLink,Integer> notin_ordinal;
+    public int notin_split;
+    int [] notin_dest;
+    boolean [] notin_arrives;
+
+    // cell state, [cell][state ordinal] flattened.
+    // "in target" arrays are indexed by state ordinals, "not in target" arrays by
+    // not-in-target ordinals.
+    public double [] veh_in_target;
+    public double [] demand_in_target;
+    public double [] veh_notin_target;
+    public double [] demand_notin_target;
+    public double [] lane_change_flow;
+    public double [] lc_request;            // [cell][side], vehicles not in target moving to each side
+    public double [] supply;                // [cell]
+
+    // transversal flows, [boundary][state ordinal], there are (#cells)+1 boundaries.
+    // Double buffered: update_state applies the front buffer and swaps it with the
+    // back buffer, which then only needs its end boundaries cleared.
+    public double [] flow_in_target;
+    public double [] flow_notin_target;
+    private double [] back_flow_in_target;
+    private double [] back_flow_notin_target;
+
+    // factors of the demand and boundary flow updates, one per cell. Each update is then
+    // a single kernel call over the whole lanegroup array.
+    private double [] cell_factor;          // [cell]
+
+    // true when all cells are empty and nothing flows in. The link update skips dormant
+    // lanegroups. Incoming packets, source inflow and lane changes wake them up.
+    public boolean dormant;
+
+    // aggregates for outputs and sensors. veh_total and travel_time are computed with the
+    // cell totals in update_state, veh_commodity (in target, by commodity ordinal) changes
+    // with the boundary flows and lane changes.
+    private double veh_total;
+    private double [] veh_commodity;
+    private double travel_time;         // NaN until the first state update
+    private double in_flow;             // boundary flows of the last state update
+    private double out_flow;
 
     ////////////////////////////////////////////
     // construction
@@ -44,28 +106,77 @@ public class LaneGroup extends AbstractLaneGroup {
 
     protected void create_cells(int num_cells,double cell_length_meters){
 
-        this.cells = new ArrayList<>();
-
+        this.num_cells = num_cells;
         this.cell_length_meters = cell_length_meters;
 
+        this.cells = new ArrayList<>();
         for(int i=0;i<num_cells;i++)
-            this.cells.add(new Cell((models.ctm.LinkModel)link.model, cell_length_meters, this));
+            this.cells.add(new Cell(this,i));
 
         // designate first and last
         this.cells.get(0).am_upstrm = true;
         this.cells.get(num_cells-1).am_dnstrm = true;
+    }
 
-//        // populate boundary flows
-//        flow_in_target = new ArrayList<>();
-//        for(int i=0;i<num_cells+1;i++)
-//            flow_in_target.add(new HashMap<>());
-
+    public void set_road_params(float capacity_vehperlane, float jam_density_vehperlane, float ffspeed_veh) {
+        int lanes = num_lanes();
+        if (link.is_source) {
+            this.capacity_veh = capacity_vehperlane * lanes;
+            this.ffspeed_norm = Double.NaN;
+            this.jam_density_veh = Double.NaN;
+            this.wspeed_norm = Double.NaN;
+            this.lc_xi = Double.NaN;
+        } else {
+            this.capacity_veh = capacity_vehperlane * lanes;
+            this.ffspeed_norm = ffspeed_veh;
+            this.jam_density_veh = jam_density_vehperlane * lanes;
+            double critical_veh = capacity_veh / ffspeed_norm;
+            this.wspeed_norm = capacity_veh / (jam_density_veh - critical_veh);
+            float xi = link.network.scenario.get_ctm_lane_change_xi();
+            this.lc_xi = Float.isNaN(xi) ? 0.5*(1-wspeed_norm) : xi;
+        }
     }
 
     @Override
     public void allocate_state() {
         super.allocate_state();
-        cells.forEach(c -> c.allocate_state());
+
+        index_states();
+        int ns = state_keys.length;
+
+        veh_in_target = new double[num_cells*ns];
+        demand_in_target = new double[num_cells*ns];
+        flow_in_target = new double[(num_cells+1)*ns];
+        back_flow_in_target = new double[(num_cells+1)*ns];
+        supply = new double[num_cells];
+        cell_factor = new double[num_cells];
+
+        veh_total = 0d;
+        veh_commodity = new double[commodity_ordinal.size()];
+        travel_time = Double.NaN;
+        in_flow = 0d;
+        out_flow = 0d;
+
+        if(notin_ordinal==null)     // may have been indexed already by a neighbor
+            index_notin_states();
+        int nn = notin_keys.length;
+        if(nn>0){
+            veh_notin_target = new double[num_cells*nn];
+            demand_notin_target = new double[num_cells*nn];
+            lane_change_flow = new double[num_cells*nn];
+            lc_request = new double[num_cells*2];
+            flow_notin_target = new double[(num_cells+1)*nn];
+            back_flow_notin_target = new double[(num_cells+1)*nn];
+        } else {
+            veh_notin_target = null;
+            demand_notin_target = null;
+            lane_change_flow = null;
+            lc_request = null;
+            flow_notin_target = null;
+            back_flow_notin_target = null;
+        }
+
+        dormant = false;
     }
 
     ////////////////////////////////////////////
@@ -80,33 +191,40 @@ public class LaneGroup extends AbstractLaneGroup {
     @Override
     public void validate(OTMErrorLog errorLog) {
         super.validate(errorLog);
-        cells.forEach(c->c.validate(errorLog));
+        if (!link.is_source) {
+            if (ffspeed_norm < 0)
+                errorLog.addError("non-negativity");
+            if (jam_density_veh < 0)
+                errorLog.addError("non-negativity");
+            if (wspeed_norm < 0)
+                errorLog.addError("non-negativity");
+            if (wspeed_norm > 1)
+                errorLog.addError("CFL violated: link " + link.getId() + " wspeed_norm = " + wspeed_norm);
+            if (ffspeed_norm > 1)
+                errorLog.addError("CFL violated: link " + link.getId() + " ffspeed_norm = " + ffspeed_norm);
+        }
     }
 
     @Override
     public void initialize(Scenario scenario, RunParameters runParams) throws OTMException {
         super.initialize(scenario,runParams);
 
-        // populate in target boundary flows
-        flow_in_target = new ArrayList<>();
-        for(int i=0;i<cells.size()+1;i++)
-            flow_in_target.add(new HashMap<>());
-
-        // Additional configuration for lane changing
-        Set<AbstractLaneGroup> my_neighbors = get_my_neighbors();
-        if(my_neighbors!=null){
-
-            // populate not in target boundary flows
-            flow_notin_target = new ArrayList<>();
-            for(int i=0;i<cells.size()+1;i++)
-                flow_notin_target.add(new HashMap<>());
-
-            // tell cells who are their neighbors
-            models.ctm.LaneGroup neighbor_lg = (models.ctm.LaneGroup) my_neighbors.iterator().next();
-            for(int i=0;i<cells.size();i++)
-                cells.get(i).neighbor = neighbor_lg.cells.get(i);
+        // adjacent lanegroups, for lane changing. The not-in-target states are indexed
+        // in allocate_state, once all lanegroups of the link know their neighbors.
+        notin_keys = null;
+        notin_ordinal = null;
+        neighbors[INSIDE] = null;
+        neighbors[OUTSIDE] = null;
+        int lane_to_inside = Collections.min(lanes)-1;
+        int lane_to_outside = Collections.max(lanes)+1;
+        for(AbstractLaneGroup x : link.lanegroups.values()){
+            if(!(x instanceof LaneGroup))
+                continue;
+            if(neighbors[INSIDE]==null && x.lanes.contains(lane_to_inside))
+                neighbors[INSIDE] = (LaneGroup) x;
+            if(neighbors[OUTSIDE]==null && x.lanes.contains(lane_to_outside))
+                neighbors[OUTSIDE] = (LaneGroup) x;
         }
-
     }
 
     @Override
@@ -115,10 +233,14 @@ public class LaneGroup extends AbstractLaneGroup {
         models.ctm.PacketLaneGroup vp = (models.ctm.PacketLaneGroup) avp;
 
         // case sink or the packet is targeted for this lanegroup
+        boolean added;
         if(vp.target_lanegroups==null || vp.target_lanegroups.contains(this))
-            copy_to_flow(vp,flow_in_target);
+            added = add_to_flow(vp.state2vehicles,state_ordinal,flow_in_target);
         else    // case the packet is targeted for some other lanegroup
-            copy_to_flow(vp, flow_notin_target);
+            added = add_to_flow(vp.state2vehicles,notin_ordinal,flow_notin_target);
+
+        if(added)
+            dormant = false;
     }
 
     @Override
@@ -133,54 +255,155 @@ public class LaneGroup extends AbstractLaneGroup {
 
     @Override
     public float get_current_travel_time() {
+        return (float) (Double.isNaN(travel_time) ? num_cells * get_free_flow_cell_time() : travel_time);
+    }
 
-        double travel_time;
-        double sim_dt = link.network.scenario.sim_dt;
-        float sum = 0f;
-        for(int i=0;i<cells.size();i++){
-            Cell cell = cells.get(i);
+    @Override
+    public float vehicles_for_commodity(Long commodity_id) {
+        if(commodity_id==null)
+            return (float) veh_total;
+        Integer c = commodity_ordinal==null ? null : commodity_ordinal.get(commodity_id);
+        return c==null ? 0f : (float) veh_commodity[c];
+    }
+
+    @Override
+    public double get_supply(){
+        return CellFlows.upstream_supply(this,get_cell_vehicles(0));
+    }
+
+    ////////////////////////////////////////////
+    // update
+    ////////////////////////////////////////////
 
-            double veh = cell.get_vehicles();   // [veh]
+    // (veh_notin_target -> lc_request)
+    protected void update_lane_change_requests(){
 
-            if(veh>0) {
+        if(lc_request==null)
+            return;
 
-                Map<KeyCommPathOrLink,Double> bf = flow_in_target.get(i+1);
-                double out_flow = bf==null ? 0d : bf.values().stream().mapToDouble(x->x).sum();
+        int nn = notin_keys.length;
+        for(int i=0;i<num_cells;i++){
+            int o = i*nn;
+            lc_request[2*i+INSIDE] = sum(veh_notin_target,o,notin_split);
+            lc_request[2*i+OUTSIDE] = sum(veh_notin_target,o+notin_split,nn-notin_split);
+        }
+    }
 
-                if(out_flow==0)
-                    travel_time = link.is_source ? sim_dt : sim_dt / cell.ffspeed_norm;
-                else
-                    travel_time = sim_dt * veh / out_flow;
+    // (lc_request, veh_notin_target -> lane_change_flow)
+    // Requests from both sides of a lanegroup share its free space in proportion.
+    protected void update_lane_change_flow(){
 
-            } else
-                travel_time = link.is_source ? sim_dt : sim_dt / cell.ffspeed_norm;
+        if(lc_request==null)
+            return;
 
-            sum += travel_time;
+        int nn = notin_keys.length;
+        for(int i=0;i<num_cells;i++){
+            int o = i*nn;
+            update_lane_change_flow(i,INSIDE,o,notin_split);
+            update_lane_change_flow(i,OUTSIDE,o+notin_split,nn-notin_split);
         }
-        return sum;
     }
 
-    @Override
-    public float vehicles_for_commodity(Long commodity_id) {
-        return (float) cells.stream().mapToDouble(c->c.get_vehicles_for_commodity(commodity_id)).sum();
+    private void update_lane_change_flow(int i,int side,int from,int n){
+
+        if(n==0)
+            return;
+
+        double ratio = 0d;
+        double request = lc_request[2*i+side];
+        LaneGroup x = neighbors[side];
+        if(request>OTMUtils.epsilon && i<x.num_cells){
+            double total_request = x.get_lane_change_request(i);
+            if(x.neighbors[1-side]!=this)
+                total_request += request;
+            ratio = CellFlows.lane_change_ratio(x,x.get_cell_vehicles(i),request,total_request);
+        }
+
+        if(ratio>0d)
+            kernel.scale(veh_notin_target,from,ratio,lane_change_flow,from,n);
+        else
+            Arrays.fill(lane_change_flow,from,from+n,0d);
     }
 
-    @Override
-    public double get_supply(){
-        Cell upcell = get_upstream_cell();
+    // (lane_change_flow -> veh_notin_target, neighbors' veh_in_target and veh_notin_target)
+    protected void intermediate_state_update(){
 
-        return upcell.wspeed_norm * (upcell.jam_density_veh - upcell.get_vehicles());
+        if(lane_change_flow==null)
+            return;
 
-//        return get_upstream_cell().supply;
+        int nn = notin_keys.length;
+        for(int i=0;i<num_cells;i++){
+            for(int f=0;f<nn;f++){
+                int k = i*nn+f;
+                double veh = lane_change_flow[k];
+                if(veh>0 && notin_dest[f]>=0){
+                    LaneGroup x = neighbors[f<notin_split ? INSIDE : OUTSIDE];
+                    veh_notin_target[k] -= veh;
+                    veh_total -= veh;
+                    if(notin_arrives[f]) {
+                        x.veh_in_target[i*x.state_keys.length+notin_dest[f]] += veh;
+                        x.veh_commodity[x.state_commodity_ordinal[notin_dest[f]]] += veh;
+                    }
+                    else
+                        x.veh_notin_target[i*x.notin_keys.length+notin_dest[f]] += veh;
+                    x.veh_total += veh;
+                    x.dormant = false;
+                }
+            }
+        }
     }
 
-    ////////////////////////////////////////////
-    // update
-    ////////////////////////////////////////////
+    // (veh_in_target, veh_notin_target -> demand_in_target, demand_notin_target, supply)
+    protected void update_supply_demand(){
+
+        int ns = state_keys.length;
+        int nn = notin_keys.length;
+        double external_max_speed = Double.POSITIVE_INFINITY;
+
+        for(int i=0;i<num_cells;i++){
+
+            boolean am_dnstrm = i==num_cells-1;
+
+            double vehicles_in_target = sum(veh_in_target,i*ns,ns);
+            double vehicles_notin_target = veh_notin_target==null ? 0d : sum(veh_notin_target,i*nn,nn);
+
+            cell_factor[i] = CellFlows.demand_factor(this,vehicles_in_target,vehicles_notin_target,am_dnstrm,external_max_speed);
+            supply[i] = CellFlows.supply(this,vehicles_in_target+vehicles_notin_target,am_dnstrm);
+        }
+
+        // demand = vehicles * alpha of the cell
+        kernel.scale_rows(veh_in_target,0,cell_factor,demand_in_target,0,num_cells,ns);
+        if(demand_notin_target!=null)
+            kernel.scale_rows(veh_notin_target,0,cell_factor,demand_notin_target,0,num_cells,nn);
+    }
 
-    // not called for sinks
-    public void release_vehicles(Map<KeyCommPathOrLink,Double> X){
-        flow_in_target.set(cells.size(),X);
+    // not called for sinks. f holds the exit flow for each state, by ordinal, starting at from.
+    // Exit flows accumulate until update_state, which may be several node updates for period>1.
+    public void release_vehicles(double [] f,int from){
+        int ns = state_keys.length;
+        int o = num_cells*ns;
+        for(int s=0;s<ns;s++)
+            flow_in_target[o+s] += f[from+s];
+    }
+
+    /** Add vehicles of the state with this ordinal to the upstream boundary, in target or
+     * not. Used by the node exchange. A negative ordinal drops the vehicles, as
+     * add_native_vehicle_packet drops states the lanegroup does not carry. **/
+    void add_boundary_inflow(boolean in_target,int ordinal,double vehicles){
+        double [] flw = in_target ? flow_in_target : flow_notin_target;
+        if(ordinal<0 || flw==null || vehicles==0d)
+            return;
+        flw[ordinal] += vehicles;
+        dormant = false;
+    }
+
+    /** Add vehicles to the upstream boundary. Used by sources, whose inflow persists across time steps. **/
+    public void add_inflow(KeyCommPathOrLink state,double vehicles){
+        Integer s = state_ordinal.get(state);
+        if(s!=null && vehicles!=0d) {
+            flow_in_target[s] += vehicles;
+            dormant = false;
+        }
     }
 
     protected void update_cell_boundary_flows(){
@@ -190,45 +413,35 @@ public class LaneGroup extends AbstractLaneGroup {
         if(states.isEmpty())
             return;
 
-        // make a list of flow maps
-        // there are (#cells)+1 boundaries
-        // each map is from comm_path to value
-        for(int i=0;i<cells.size()-1;i++){
-            Map<KeyCommPathOrLink,Double> demand_in_target = cells.get(i).demand_in_target;
-            Map<KeyCommPathOrLink,Double> demand_notin_target = cells.get(i).demand_notin_target;
-
-
-            double total_demand = OTMUtils.sum(demand_in_target);
+        int ns = state_keys.length;
+        int nn = notin_keys.length;
 
-            total_demand += demand_notin_target==null ? 0d : OTMUtils.sum(demand_notin_target);
+        for(int i=0;i<num_cells-1;i++){
 
-            if(total_demand>OTMUtils.epsilon) {
-                double total_flow = Math.min( total_demand , cells.get(i+1).supply );
-                double gamma = total_flow / total_demand;
+            double total_demand = sum(demand_in_target,i*ns,ns);
+            if(demand_notin_target!=null)
+                total_demand += sum(demand_notin_target,i*nn,nn);
 
-                flow_in_target.set(i+1,OTMUtils.times(demand_in_target,gamma));
-
-                if(flow_notin_target!=null)
-                    flow_notin_target.set(i+1,OTMUtils.times(demand_notin_target,gamma));
-            }
-            else {
-                flow_in_target.set(i+1, null);
-                if(flow_notin_target!=null)
-                    flow_notin_target.set(i+1, null);
-            }
+            cell_factor[i] = CellFlows.boundary_factor(total_demand,supply[i+1]);
         }
 
+        // flow across the downstream boundary of cell i = demand * gamma of the cell
+        kernel.scale_rows(demand_in_target,0,cell_factor,flow_in_target,ns,num_cells-1,ns);
+        if(flow_notin_target!=null)
+            kernel.scale_rows(demand_notin_target,0,cell_factor,flow_notin_target,nn,num_cells-1,nn);
+
         if(link.end_node.is_sink) {
-            flow_in_target.set(cells.size(), cells.get(cells.size()-1).demand_in_target);
+            System.arraycopy(demand_in_target,(num_cells-1)*ns,flow_in_target,num_cells*ns,ns);
             if(flow_notin_target!=null)
-                flow_notin_target.set(cells.size(), cells.get(cells.size()-1).demand_notin_target);
+                System.arraycopy(demand_notin_target,(num_cells-1)*nn,flow_notin_target,num_cells*nn,nn);
         }
 
         // send lanegroup exit flow to flow accumulator
-        // TODO : Check this
-        for(Map.Entry<KeyCommPathOrLink,Double> e : flow_in_target.get(cells.size()).entrySet())
-            if(e.getValue()>0)
-                update_flow_accummulators(e.getKey(),e.getValue());
+        for(int s=0;s<ns;s++){
+            double f = flow_in_target[num_cells*ns+s];
+            if(f>0)
+                update_flow_accummulators(state_keys[s],f);
+        }
     }
 
     protected void update_state(float timestamp){
@@ -236,33 +449,117 @@ public class LaneGroup extends AbstractLaneGroup {
         if(states.isEmpty())
             return;
 
-        for(int i=0;i<cells.size();i++) {
-            cells.get(i).update_in_target_state(flow_in_target.get(i), flow_in_target.get(i + 1));
-            if(flow_notin_target!=null)
-                cells.get(i).update_notin_target_state(flow_notin_target.get(i), flow_notin_target.get(i + 1));
+        int ns = state_keys.length;
+        int nn = notin_keys.length;
+
+        // in target vehicles by commodity change with the boundary flows
+        in_flow = 0d;
+        out_flow = 0d;
+        for(int s=0;s<ns;s++){
+            double f_in = flow_in_target[s];
+            double f_out = flow_in_target[num_cells*ns+s];
+            in_flow += f_in;
+            out_flow += f_out;
+            veh_commodity[state_commodity_ordinal[s]] += f_in - f_out;
+        }
+        if(flow_notin_target!=null){
+            in_flow += sum(flow_notin_target,0,nn);
+            out_flow += sum(flow_notin_target,num_cells*nn,nn);
+        }
+
+        kernel.advance(veh_in_target,flow_in_target,ns,num_cells*ns);
+        if(flow_notin_target!=null)
+            kernel.advance(veh_notin_target,flow_notin_target,nn,num_cells*nn);
+
+        // cell totals: total vehicles, travel time and the idle test
+        double dt = link.network.scenario.sim_dt * period;
+        double ff_time = get_free_flow_cell_time();
+        double total = 0d;
+        double tt = 0d;
+        boolean empty = true;
+        for(int i=0;i<num_cells;i++){
+            double veh = sum(veh_in_target,i*ns,ns);
+            if(veh_notin_target!=null)
+                veh += sum(veh_notin_target,i*nn,nn);
+            total += veh;
+            if(veh>=OTMUtils.epsilon)
+                empty = false;
+            if(veh>0){
+                double f = sum(flow_in_target,(i+1)*ns,ns);
+                tt += f==0 ? ff_time : dt * veh / f;
+            } else
+                tt += ff_time;
+        }
+        veh_total = total;
+        travel_time = tt;
+
+        // swap boundary flow buffers. Internal boundaries are overwritten on every
+        // step, so only the end boundaries are cleared. The upstream boundary of a
+        // source holds its demand.
+        double [] x = back_flow_in_target;
+        back_flow_in_target = flow_in_target;
+        flow_in_target = x;
+        if(link.is_source)
+            System.arraycopy(back_flow_in_target,0,flow_in_target,0,ns);
+        else
+            Arrays.fill(flow_in_target,0,ns,0d);
+        Arrays.fill(flow_in_target,num_cells*ns,(num_cells+1)*ns,0d);
+
+        if(flow_notin_target!=null){
+            x = back_flow_notin_target;
+            back_flow_notin_target = flow_notin_target;
+            flow_notin_target = x;
+            Arrays.fill(flow_notin_target,0,nn,0d);
+            Arrays.fill(flow_notin_target,num_cells*nn,(num_cells+1)*nn,0d);
         }
 
-        // clear boundary flows
-        for(int i=link.is_source?1:0;i<=cells.size();i++)
-            flow_in_target.set(i,null);
+        // all cells are empty and nothing enters at the upstream boundary
+        if(empty && !has_inflow())
+            go_dormant();
+    }
 
+    private boolean has_inflow(){
+        for(int s=0;s<state_keys.length;s++)
+            if(flow_in_target[s]!=0d)
+                return true;
+        return false;
+    }
+
+    // clear what the skipped updates would have computed for empty cells, including
+    // the sub-epsilon residuals in the cells, so that veh_commodity agrees with the
+    // cell arrays on waking. The supply seen by the upstream node is still computed
+    // on demand by get_supply().
+    private void go_dormant(){
+        dormant = true;
+        veh_total = 0d;
+        Arrays.fill(veh_commodity,0d);
+        Arrays.fill(veh_in_target,0d);
+        if(veh_notin_target!=null)
+            Arrays.fill(veh_notin_target,0d);
+        travel_time = num_cells * get_free_flow_cell_time();
+        Arrays.fill(demand_in_target,0d);
+        Arrays.fill(flow_in_target,0d);
+        if(demand_notin_target!=null)
+            Arrays.fill(demand_notin_target,0d);
+        if(lane_change_flow!=null)
+            Arrays.fill(lane_change_flow,0d);
+        if(lc_request!=null)
+            Arrays.fill(lc_request,0d);
         if(flow_notin_target!=null)
-            for(int i=0;i<=cells.size();i++)
-                flow_notin_target.set(i,null);
+            Arrays.fill(flow_notin_target,0d);
     }
 
     ////////////////////////////////////////////
     // get
     ////////////////////////////////////////////
 
+    // vehicles that entered|left in the last state update
     public double get_total_in_flow(){
-        Map<KeyCommPathOrLink,Double> bf = flow_in_target.get(0);
-        return bf==null ? 0d : bf.values().stream().mapToDouble(x->x).sum();
+        return in_flow;
     }
 
     public double get_total_out_flow(){
-        Map<KeyCommPathOrLink,Double> bf = flow_in_target.get(flow_in_target.size()-1);
-        return bf==null ? 0d : bf.values().stream().mapToDouble(x->x).sum();
+        return out_flow;
     }
 
     public Cell get_upstream_cell(){
@@ -270,17 +567,63 @@ public class LaneGroup extends AbstractLaneGroup {
     }
 
     public Cell get_dnstream_cell(){
-        return cells.get(cells.size()-1);
+        return cells.get(num_cells-1);
     }
 
     public Double get_demand_in_target_for_state(KeyCommPathOrLink state){
-        return get_dnstream_cell().demand_in_target.get(state);
+        Integer s = state_ordinal.get(state);
+        return s==null ? null : demand_in_target[(num_cells-1)*state_keys.length+s];
+    }
+
+    public double get_cell_vehicles_in_target(int i){
+        if(veh_in_target==null)
+            return 0d;
+        int ns = state_keys.length;
+        return sum(veh_in_target,i*ns,ns);
+    }
+
+    public double get_cell_vehicles_notin_target(int i){
+        if(veh_notin_target==null)
+            return 0d;
+        int nn = notin_keys.length;
+        return sum(veh_notin_target,i*nn,nn);
+    }
+
+    // vehicles in cell i of the adjacent lanegroups requesting to change into this one
+    public double get_lane_change_request(int i){
+        double request = 0d;
+        for(int side=INSIDE;side<=OUTSIDE;side++){
+            LaneGroup x = neighbors[side];
+            if(x!=null && x.neighbors[1-side]==this && x.lc_request!=null && i<x.num_cells)
+                request += x.lc_request[2*i+1-side];
+        }
+        return request;
+    }
+
+    public double get_cell_vehicles(int i){
+        return get_cell_vehicles_in_target(i) + get_cell_vehicles_notin_target(i);
+    }
+
+    public double get_cell_vehicles_for_commodity(int i,Long commodity_id){
+
+        if (commodity_id == null)
+            return get_cell_vehicles(i);
+
+        if(veh_in_target==null)
+            return 0d;
+
+        int ns = state_keys.length;
+        double veh = 0d;
+        for(int s=0;s<ns;s++)
+            if(state_commodity[s]==commodity_id)
+                veh += veh_in_target[i*ns+s];
+        return veh;
     }
 
     public String print_cell_veh(){
         String str = "| ";
-        for(Cell cell : cells)
-            str += String.format("(%5.1f,%5.1f)",cell.get_vehicles_in_target(),cell.get_vehicles_notin_target()) + " | ";
+        for(int i=0;i<num_cells;i++)
+            str += String.format("(%5.1f,%5.1f)",get_cell_vehicles_in_target(i),get_cell_vehicles_notin_target(i)) + " | ";
         return str;
     }
 
@@ -288,17 +631,105 @@ public class LaneGroup extends AbstractLaneGroup {
     // private
     ///////////////////////////////////////////
 
-    private void copy_to_flow(models.ctm.PacketLaneGroup vp,List<Map<KeyCommPathOrLink,Double>> flw){
-        Map<KeyCommPathOrLink,Double> bf = flw.get(0);
-        if(bf==null)
-            flw.set(0,vp.state2vehicles);
-        else {
-            for(Map.Entry<KeyCommPathOrLink,Double> e : vp.state2vehicles.entrySet())
-                bf.put(e.getKey(), bf.containsKey(e.getKey()) ?  bf.get(e.getKey()) + e.getValue() : e.getValue() );
-//            flw.set(0,bf);
+    // assign dense ordinals to the states, sorted for determinism
+    private void index_states(){
+        if(state_keys!=null && state_keys.length==states.size())
+            return;
+        state_keys = states.stream().sorted().toArray(KeyCommPathOrLink[]::new);
+        state_ordinal = new HashMap<>();
+        state_commodity = new long[state_keys.length];
+        state_commodity_ordinal = new int[state_keys.length];
+        commodity_ordinal = new HashMap<>();
+        for(int s=0;s<state_keys.length;s++) {
+            state_ordinal.put(state_keys[s], s);
+            state_commodity[s] = state_keys[s].commodity_id;
+            Integer c = commodity_ordinal.get(state_commodity[s]);
+            if(c==null) {
+                c = commodity_ordinal.size();
+                commodity_ordinal.put(state_commodity[s], c);
+            }
+            state_commodity_ordinal[s] = c;
         }
-//        flw.set(0,vp.state2vehicles);
     }
 
+    // time to cross an empty cell
+    private double get_free_flow_cell_time(){
+        double sim_dt = link.network.scenario.sim_dt * period;
+        return link.is_source ? sim_dt : sim_dt / ffspeed_norm;
+    }
+
+    // index the states of the other lanegroups of the link by the side of their nearest target
+    private void index_notin_states(){
+
+        // walk outward on each side, the first lanegroup holding a state is its nearest target
+        Map<KeyCommPathOrLink,int[]> key2side = new HashMap<>();    // key -> {side,distance}
+        for(int side=INSIDE;side<=OUTSIDE;side++){
+            Set<LaneGroup> visited = new HashSet<>();
+            visited.add(this);
+            LaneGroup x = neighbors[side];
+            int dist = 1;
+            while(x!=null && visited.add(x)){
+                for(KeyCommPathOrLink key : x.states){
+                    if(states.contains(key))
+                        continue;
+                    int [] sd = key2side.get(key);
+                    if(sd==null || sd[1]>dist)
+                        key2side.put(key,new int[]{side,dist});
+                }
+                x = x.neighbors[side];
+                dist++;
+            }
+        }
+
+        notin_keys = key2side.keySet().stream()
+                .sorted(Comparator.comparingInt((KeyCommPathOrLink k)->key2side.get(k)[0]).thenComparing(Comparator.naturalOrder()))
+                .toArray(KeyCommPathOrLink[]::new);
+        notin_ordinal = new HashMap<>();
+        notin_split = 0;
+        for(int f=0;f<notin_keys.length;f++){
+            notin_ordinal.put(notin_keys[f],f);
+            if(key2side.get(notin_keys[f])[0]==INSIDE)
+                notin_split = f+1;
+        }
+
+        // destination ordinals in the adjacent lanegroups
+        notin_dest = new int[notin_keys.length];
+        notin_arrives = new boolean[notin_keys.length];
+        for(int f=0;f<notin_keys.length;f++){
+            LaneGroup x = neighbors[f<notin_split ? INSIDE : OUTSIDE];
+            x.index_states();
+            notin_arrives[f] = x.states.contains(notin_keys[f]);
+            if(notin_arrives[f])
+                notin_dest[f] = x.state_ordinal.get(notin_keys[f]);
+            else {
+                if(x.notin_ordinal==null)
+                    x.index_notin_states();
+                Integer o = x.notin_ordinal.get(notin_keys[f]);
+                notin_dest[f] = o==null ? -1 : o;   // the neighbor does not lead back here
+            }
+        }
+    }
+
+    // returns true if any vehicles were added
+    private static boolean add_to_flow(Map<KeyCommPathOrLink,Double> X,Map<KeyCommPathOrLink,Integer> ordinal,double [] flw){
+        if(flw==null || ordinal==null)
+            return false;
+        boolean added = false;
+        for(Map.Entry<KeyCommPathOrLink,Double> e : X.entrySet()){
+            Integer s = ordinal.get(e.getKey());
+            if(s!=null && e.getValue()!=0d) {
+                flw[s] += e.getValue();
+                added = true;
+            }
+        }
+        return added;
+    }
+
+    private static double sum(double [] x,int from,int n){
+        double s = 0d;
+        for(int k=from;k<from+n;k++)
+            s += x[k];
+        return s;
+    }
 
-}
\ No newline at end of file
+}
@@ -8,6 +8,7 @@ package models.ctm;
 
 import common.*;
 import error.OTMErrorLog;
+import packet.AbstractPacketLaneGroup;
 import utils.OTMUtils;
 
 import java.util.Collection;
@@ -20,6 +21,17 @@ public class LinkModel extends AbstractLinkModel {
     private float cell_length_meters;
     private float capacity_vps;
     private int cells_per_lanegroup;
+    private models.ctm.LaneGroup [] ctm_lanegroups;    // lanegroups of this link, for iteration in the update
+
+    // road params per lane, normalized with sim_dt
+    private float capacity_vehperlane;
+    private float jam_density_vehperlane;
+    private float ffspeed_veh;
+
+    // multi-rate: the link advances once every period sim_dt steps. tick counts the
+    // steps within the current period.
+    public int period = 1;
+    private int tick;
 
     ////////////////////////////////////////////
     // construction
@@ -27,7 +39,6 @@ public class LinkModel extends AbstractLinkModel {
 
     public LinkModel(common.Link link){
         super(link);
-        myPacketClass = models.ctm.PacketLaneGroup.class;
     }
 
     ////////////////////////////////////////////
@@ -53,6 +64,8 @@ public class LinkModel extends AbstractLinkModel {
         // create cells
         for(AbstractLaneGroup lg : link.lanegroups.values())
             ((models.ctm.LaneGroup)lg).create_cells(cells_per_lanegroup,cell_length_meters);
+
+        ctm_lanegroups = link.lanegroups.values().toArray(new models.ctm.LaneGroup[0]);
     }
 
     ////////////////////////////////////////////
@@ -65,27 +78,60 @@ public class LinkModel extends AbstractLinkModel {
         if(Float.isNaN(sim_dt_sec))
             return;
 
-        // adjustment for MN model
-        if(link.model_type==Link.ModelType.mn){
-            r.setJamDensity(Float.POSITIVE_INFINITY);
-        }
+        // adjustment for MN model. The road params are shared by all links that use them
+        // (and by scenarios built from the same configuration), so they are not modified.
+        float jam_density = link.model_type==Link.ModelType.mn ? Float.POSITIVE_INFINITY : r.getJamDensity();
 
         this.capacity_vps = r.getCapacity()/3600f;
 
         // normalize
         float dt_hr = sim_dt_sec/3600f;
-        float capacity_vehperlane = r.getCapacity()*dt_hr;
-        float jam_density_vehperlane = r.getJamDensity() * cell_length_meters / 1000f;
-        float ffspeed_veh = 1000f * r.getSpeed()*dt_hr / cell_length_meters;
+        capacity_vehperlane = r.getCapacity()*dt_hr;
+        jam_density_vehperlane = jam_density * cell_length_meters / 1000f;
+        ffspeed_veh = 1000f * r.getSpeed()*dt_hr / cell_length_meters;
 
         for(AbstractLaneGroup lg : link.lanegroups.values()) {
             lg.set_road_params(r);
-            ((models.ctm.LaneGroup) lg).cells.forEach(c -> c.set_road_params(capacity_vehperlane, jam_density_vehperlane, ffspeed_veh));
+            if(link.model_type==Link.ModelType.mn)
+                lg.max_vehicles = Float.POSITIVE_INFINITY;
         }
+        period = 1;
+        apply_road_params();
 
         ff_travel_time_sec = 3.6f * link.length / r.getSpeed();
     }
 
+    /** Choose the largest period, a power of two no greater than max_period, for which
+     * the link satisfies the CFL condition with step period*sim_dt. Sources and sinks
+     * keep period 1. The road params are renormalized with the new step. **/
+    public void set_period(int max_period){
+
+        period = 1;
+        apply_road_params();
+
+        if(!link.is_source && !link.is_sink) {
+            double v = 0d;
+            for (models.ctm.LaneGroup lg : ctm_lanegroups)
+                v = Math.max(v, Math.max(lg.ffspeed_norm, lg.wspeed_norm));
+            int p = 1;
+            while (2*p <= max_period && 2*p*v <= 1d)
+                p *= 2;
+            if (p > 1) {
+                period = p;
+                apply_road_params();
+            }
+        }
+    }
+
+    private void apply_road_params(){
+        tick = 0;
+        for(AbstractLaneGroup alg : link.lanegroups.values()){
+            models.ctm.LaneGroup lg = (models.ctm.LaneGroup) alg;
+            lg.period = period;
+            lg.set_road_params(capacity_vehperlane*period, jam_density_vehperlane, ffspeed_veh*period);
+        }
+    }
+
     @Override
     public void validate(OTMErrorLog errorLog) {
         if(ff_travel_time_sec<=0)
@@ -102,8 +148,6 @@ public class LinkModel extends AbstractLinkModel {
     public void reset() {
         for(AbstractLaneGroup alg : link.lanegroups.values()){
             models.ctm.LaneGroup lg = (models.ctm.LaneGroup) alg;
-            lg.cells.forEach(x->x.reset());
-            lg.flow_notin_target = null;
             lg.flow_notin_target = null;
         }
     }
@@ -121,50 +165,80 @@ public class LinkModel extends AbstractLinkModel {
     @Override
     public Map<AbstractLaneGroup,Double> lanegroup_proportions(Collection<AbstractLaneGroup> candidate_lanegroups) {
         Map<AbstractLaneGroup,Double> A = new HashMap<>();
-        double total_supply = candidate_lanegroups.stream().mapToDouble(x->x.get_supply()).sum();
+        double total_supply = 0d;
+        for(AbstractLaneGroup laneGroup : candidate_lanegroups)
+            total_supply += laneGroup.get_supply();
         for(AbstractLaneGroup laneGroup : candidate_lanegroups)
             A.put(laneGroup , laneGroup.get_supply() / total_supply);
         return A;
     }
 
+    @Override
+    public AbstractPacketLaneGroup create_lanegroup_packet() {
+        return new models.ctm.PacketLaneGroup();
+    }
+
     ////////////////////////////////////////////
     // update
     ///////////////////////////////////////////
 
-    // call update_supply_demand on each cell
+    // Dormant lanegroups (empty, nothing entering) are skipped in all update steps.
+    // With period>1, lane changes and supply and demand are computed on the first step of
+    // the period, and the boundary flows and state on the last. Node flows accumulate at
+    // the link boundaries in between.
+
+    public boolean is_period_start(){
+        return tick==0;
+    }
+
+    public boolean is_period_end(){
+        return tick==period-1;
+    }
+
+    // lane change requests of all lanegroups first, since a lanegroup's free space is
+    // shared by the requests from both its sides. Dormant lanegroups have no requests.
     public void update_lane_changes() {
-        for(AbstractLaneGroup lg : link.lanegroups.values()) {
-            models.ctm.LaneGroup ctmlg = (models.ctm.LaneGroup) lg;
-            if(!ctmlg.states.isEmpty())
-                ctmlg.cells.forEach(cell -> cell.update_lane_change_flow());
-        }
+        if(!is_period_start())
+            return;
+        for(models.ctm.LaneGroup lg : ctm_lanegroups)
+            if(!lg.dormant && !lg.states.isEmpty())
+                lg.update_lane_change_requests();
+        for(models.ctm.LaneGroup lg : ctm_lanegroups)
+            if(!lg.dormant && !lg.states.isEmpty())
+                lg.update_lane_change_flow();
     }
 
     public void intermediate_state_update(){
-        for(AbstractLaneGroup lg : link.lanegroups.values()) {
-            models.ctm.LaneGroup ctmlg = (models.ctm.LaneGroup) lg;
-            if(!ctmlg.states.isEmpty())
-                ctmlg.cells.forEach(cell -> cell.intermediate_state_update());
-        }
+        if(!is_period_start())
+            return;
+        for(models.ctm.LaneGroup lg : ctm_lanegroups)
+            if(!lg.dormant && !lg.states.isEmpty())
+                lg.intermediate_state_update();
     }
 
-    // call update_supply_demand on each cell
+    // call update_supply_demand on each lanegroup
     public void update_supply_demand() {
-        for(AbstractLaneGroup lg : link.lanegroups.values()) {
-            models.ctm.LaneGroup ctmlg = (models.ctm.LaneGroup) lg;
-            if(!ctmlg.states.isEmpty())
-                ctmlg.cells.forEach(cell -> cell.update_supply_demand());
-        }
+        if(!is_period_start())
+            return;
+        for(models.ctm.LaneGroup lg : ctm_lanegroups)
+            if(!lg.dormant && !lg.states.isEmpty())
+                lg.update_supply_demand();
     }
 
     public void update_cell_boundary_flows() {
-        for(AbstractLaneGroup lg : link.lanegroups.values())
-            ((LaneGroup) lg).update_cell_boundary_flows();
+        if(!is_period_end())
+            return;
+        for(models.ctm.LaneGroup lg : ctm_lanegroups)
+            if(!lg.dormant)
+                lg.update_cell_boundary_flows();
     }
 
     public void update_state(float timestamp) {
-        for(AbstractLaneGroup lg : link.lanegroups.values())
-            ((models.ctm.LaneGroup) lg).update_state(timestamp);
+        if(is_period_end())
+            for(models.ctm.LaneGroup lg : ctm_lanegroups)
+                if(!lg.dormant)
+                    lg.update_state(timestamp);
+        tick = (tick+1) % period;
     }
 
 //    ////////////////////////////////////////////
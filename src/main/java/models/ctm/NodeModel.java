@@ -9,8 +9,12 @@ package models.ctm;
 import common.AbstractLaneGroup;
 import common.Link;
 import common.Node;
+import common.SplitInfo;
 import error.OTMErrorLog;
+import error.OTMException;
 import keys.KeyCommPathOrLink;
+import keys.StateRegistry;
+import packet.PacketLink;
 import runner.Scenario;
 
 import java.util.*;
@@ -20,7 +24,7 @@ public class NodeModel {
     private static int MAX_ITERATIONS = 10;
     public static double eps = 1e-3;
 
-    private boolean doprint = false;
+    public enum Type {general,one_to_one,merge,diverge}
 
     public Node node;
 
@@ -28,6 +32,83 @@ public class NodeModel {
     public Map<Long,RoadConnection> rcs;  // road connections.
     public Map<Long,DnLaneGroup> dlgs; /// dnstrm lane groups.
 
+    ////////////////////////////////////////////
+    // compiled representation, built in initialize
+    ////////////////////////////////////////////
+    // (fields without an access modifier are read by EnsembleBatch)
+
+    public Type type;
+
+    // false forces solve_general for every type (used to check the fast paths)
+    public boolean use_fast_paths = true;
+
+    // true when the node sends nothing on this step: either all upstream lanegroups are
+    // dormant, or the step falls inside the node's period. The node is then skipped.
+    private boolean idle;
+
+    // multi-rate: the node is solved once every period sim_dt steps, the shortest period of
+    // its links. Demands and supplies of links with longer periods are scaled to this step.
+    public int period = 1;
+    private int tick;
+    private double [] u_scale;
+    private double [] j_scale;
+
+    // upstream lanegroups (u). Their states are indexed with the lanegroup's ordinals,
+    // flattened at u_off[u]. k_p[k] is the (u,r) pair that state k follows, or -1.
+    models.ctm.LaneGroup [] u_lg;
+    int [] u_off;
+    private int [] k_u, k_p;
+    private double [] d_is, delta_is;
+    double [] f_is;
+    private boolean [] u_blocked;
+    private double [] gamma_i;
+
+    // (u,r) pairs, grouped by u at u_p_off[u] and listed by r in r_p at r_p_off[r]
+    private int [] p_u, p_r;
+    private int [] u_p_off;
+    private int [] r_p, r_p_off;
+    private double [] d_ir;
+
+    // road connections (r)
+    RoadConnection [] r_rc;
+    private double [] fbar, d_r, gamma_r;
+    private boolean [] r_blocked;
+
+    // (r,j) pairs, grouped by r at r_m_off[r] and listed by j in j_m at j_m_off[j]
+    private int [] m_r, m_j;
+    private int [] r_m_off;
+    private int [] j_m, j_m_off;
+    private double [] lambda_rj, alpha_rj;
+
+    // downstream lanegroups (j)
+    models.ctm.LaneGroup [] j_lg;
+    private double [] s_j, gamma_j;
+    private boolean [] j_blocked;
+
+    // road connection states (q), grouped by r at r_q_off[r]. The flow of state q
+    // is the sum of delta_is over the upstream states listed at q_c_off[q].
+    KeyCommPathOrLink [] q_key;
+    int [] r_q_off;
+    private int [] q_c, q_c_off;
+    double [] f_rs;
+
+    // packet exchange, built when all road connections end in macroscopic links (x_lg is
+    // null otherwise). Road connection r arrives to lanegroups x_lg[r]. State q goes to
+    // the outlinks of the end link listed at q_d_off[q]. Destination d has one entry per
+    // arrival lanegroup at d_c_off[d]: the ordinal of the state in the lanegroup's
+    // flow_in_target (c_in_target) or flow_notin_target, or -1 if it is dropped there.
+    // Pathless states of links with a splitter (q_splits) are split at run time with q_split[q].
+    models.ctm.LaneGroup [][] x_lg;
+    private double [] x_prop;
+    int [] q_d_off;
+    private long [] d_outlink;
+    boolean [] d_missing;           // no lanegroup of the end link reaches the outlink
+    int [] d_c_off;
+    boolean [] c_in_target;
+    int [] c_ordinal;
+    private boolean [] q_splits;
+    private SplitInfo [] q_split;
+
     public NodeModel(Node node) {
 
         this.node = node;
@@ -136,280 +217,782 @@ public class NodeModel {
     public void initialize(Scenario scenario) {
         // allocate states in ulgs
         ulgs.values().forEach( ulg -> ulg.lg.states.forEach( state -> ulg.add_state(state)));
+        compile();
     }
 
+    ////////////////////////////////////////////
+    // update
+    ////////////////////////////////////////////
+
     public void update_flow(float timestamp) {
 
+        // not on this step
+        boolean due = tick==0;
+        tick = (tick+1) % period;
+        if(!due){
+            idle = true;
+            return;
+        }
 
-        if(doprint && node.getId()==3L)
-            System.out.println(timestamp + " -----------------------------------------------------------");
+        // nothing to send
+        if(all_upstream_dormant()) {
+            if(!idle)
+                clear_flows();
+            idle = true;
+            return;
+        }
+        idle = false;
+
+        // demands and supplies from the lanegroups
+        for(int u=0;u<u_lg.length;u++){
+            models.ctm.LaneGroup lg = u_lg[u];
+            int ns = u_off[u+1]-u_off[u];
+            int o = (lg.num_cells-1)*ns;
+            for(int s=0;s<ns;s++)
+                d_is[u_off[u]+s] = lg.demand_in_target[o+s] * u_scale[u];
+        }
+        for(int j=0;j<j_lg.length;j++)
+            s_j[j] = j_lg[j].get_supply() * j_scale[j];
 
-        // reset
-        ulgs.values().forEach(x->x.reset());
-        rcs.values().forEach(x->x.reset(node.network.scenario.sim_dt));
-        dlgs.values().forEach(x->x.reset());
+        solve();
 
-        // iteration
-        int it = 0;
-        while (it++ <= MAX_ITERATIONS) {
-            step0();
-            if (eval_stop(it))
-                break;
+        // road connection flows
+        for(int r=0;r<r_rc.length;r++)
+            r_rc[r].packet.set_amounts(f_rs,r_q_off[r]);
+    }
 
+    /** Solve the node for given demands and supplies, used by EnsembleBatch. d holds the
+     * demand of each upstream state, at u_off[u] + ordinal, and s the supply of each
+     * downstream lanegroup. The flows are left in f_is and f_rs. **/
+    public void solve(double [] d,double [] s){
+        System.arraycopy(d,0,d_is,0,d_is.length);
+        System.arraycopy(s,0,s_j,0,s_j.length);
+        solve();
+    }
 
-            if(doprint && node.getId()==3L)
-                System.out.println("**** ITERATION " + it + " ********");
+    private void solve(){
 
+        reset();
 
-            step1();
-            step2();
-            step3();
-            step4();
-            step5();
-            step6();
+        boolean solved;
+        switch(use_fast_paths ? type : Type.general){
+            case one_to_one:
+                solved = solve_one_to_one();
+                break;
+            case merge:
+                solved = solve_merge();
+                break;
+            case diverge:
+                solved = solve_diverge();
+                break;
+            default:
+                solved = false;
         }
 
-        // update flow accumulators
-        // TODO CHECK THIS
-//        update_flow_accumulators();
+        if(solved)
+            collect_road_connection_flows();
+        else
+            solve_general();
     }
 
-    private boolean eval_stop(int iteration){
-
-        if(iteration>MAX_ITERATIONS){
-            System.out.println("Reached iteration limit");
-            return true;
-        }
+    /** Set the period from the periods of the adjacent links, which must be powers of two. **/
+    public void set_period(){
+        int p = Integer.MAX_VALUE;
+        for(models.ctm.LaneGroup lg : u_lg)
+            p = Math.min(p,lg.period);
+        for(models.ctm.LaneGroup lg : j_lg)
+            p = Math.min(p,lg.period);
+        period = p==Integer.MAX_VALUE ? 1 : p;
+        tick = 0;
+        idle = false;
+        for(int u=0;u<u_lg.length;u++)
+            u_scale[u] = period / (double) u_lg[u].period;
+        for(int j=0;j<j_lg.length;j++)
+            j_scale[j] = period / (double) j_lg[j].period;
+    }
 
-        // stop if all ulgs lanegroups are either empty or blocked
-        return ulgs.values().stream().allMatch(ulg->ulg.is_empty_or_blocked);
+    public boolean is_idle(){
+        return idle;
     }
 
-    private void step0(){
-        /**
-         * dlgs.is_blocked
-         * rcs.is_blocked
-         * uplgs.is_empty_or_blocked
-         */
+    public int get_num_upstream_states(){
+        return d_is.length;
+    }
 
-        // block downstream lanegroups with zero supply
-        dlgs.values().forEach(dlg -> dlg.update_is_blocked());
+    public int get_num_dnstream_lanegroups(){
+        return j_lg.length;
+    }
 
-        // block road connections connecting to blocked links or with control rate = 0
-        rcs.values().forEach(rc->rc.update_is_blocked());
+    // flows of the upstream states and of the road connection states, from the last solve
+    public double [] get_f_is(){
+        return f_is;
+    }
 
-        // upstream lanegroup is empty if sum of demands is zero
-        // and blocked if any of it connectors is blocked
-        ulgs.values().forEach(ulg->ulg.update_is_empty_or_blocked());
+    public double [] get_f_rs(){
+        return f_rs;
+    }
 
+    public boolean has_exchange_table(){
+        return x_lg!=null;
     }
 
-    private void step1(){
-        /** d_r, alpha_rj
-         */
+    /** Send the road connection flows of the last update_flow to the upstream boundaries of
+     * the downstream lanegroups, and set the exit flows of the upstream lanegroups. Same
+     * result as sending the road connection packets to the end links' add_vehicle_packet,
+     * without building packets. Requires has_exchange_table(). **/
+    public void exchange_packets() throws OTMException {
+
+        for(int r=0;r<x_lg.length;r++){
+
+            // several arrival lanegroups share the flow in proportion to their supply,
+            // as in LinkModel.lanegroup_proportions
+            models.ctm.LaneGroup [] C = x_lg[r];
+            if(C.length>1){
+                double total_supply = 0d;
+                for(models.ctm.LaneGroup lg : C)
+                    total_supply += lg.get_supply();
+                for(int c=0;c<C.length;c++)
+                    x_prop[c] = C[c].get_supply() / total_supply;
+            }
 
-        for(RoadConnection rc : rcs.values()) {
+            for(int q=r_q_off[r];q<r_q_off[r+1];q++){
 
-            rc.d_r = rc.is_blocked ? 0d : rc.ulgs.stream()
-                                            .mapToDouble(x -> x.rc_infos.get(rc.id).d_ir).sum();
+                double vehicles = f_rs[q];
+                if(vehicles==0d)
+                    continue;
 
-            if(rc.d_r<NodeModel.eps)
-                continue;
+                if(!q_splits[q]) {
+                    send(r,q_d_off[q],vehicles);
+                    continue;
+                }
 
-            // s_r: downstream supply seen by this road connection
-            double s_r = rc.dnlg_infos.values().stream()
-                           .mapToDouble(x->x.lambda_rj*x.dlg.s_j).sum();
+                SplitInfo split = q_split[q];
+                if(split==null)
+                    throw new OTMException("No split info for commodity " + q_key[q].commodity_id + " on link " + r_rc[r].rc.end_link.getId());
+                else if(split.sole_downstream_link!=null)
+                    send(r,find_destination(q,split.sole_downstream_link),vehicles);
+                else if(split.outlink_ids!=null)
+                    for(Long outlink_id : split.outlink_ids)
+                        send(r,find_destination(q,outlink_id),vehicles*split.outlink2split.get(outlink_id));
+                else
+                    throw new OTMException("No splits for commodity " + q_key[q].commodity_id + " on link " + r_rc[r].rc.end_link.getId());
+            }
+        }
 
-            // alpha_rj: distribution amongst downstream lanegroups
-            rc.dnlg_infos.values().forEach( x -> x.alpha_rj = s_r==0d ? 0d : x.lambda_rj * x.dlg.s_j / s_r);
+        release_vehicles();
+    }
 
+    // set exit flows on the upstream lanegroups
+    public void release_vehicles(){
+        for(int u=0;u<u_lg.length;u++)
+            u_lg[u].release_vehicles(f_is,u_off[u]);
+    }
 
-            /////////////////////////////////
-            if(doprint && node.getId()==3L){
-                System.out.println("1 d_r rc from link " + rc.rc.start_link.getId() + " = " + rc.d_r);
-                rc.dnlg_infos.values().forEach( x -> System.out.println("\t" + x.dlg.lg.lanes.size() + " alphar_rj " + x.alpha_rj) );
+    ////////////////////////////////////////////
+    // private
+    ////////////////////////////////////////////
+
+    private void compile(){
+
+        List<UpLaneGroup> U = new ArrayList<>(ulgs.values());
+        List<RoadConnection> R = new ArrayList<>(rcs.values());
+        List<DnLaneGroup> J = new ArrayList<>(dlgs.values());
+
+        Map<RoadConnection,Integer> r_index = new HashMap<>();
+        for(int r=0;r<R.size();r++)
+            r_index.put(R.get(r),r);
+        Map<DnLaneGroup,Integer> j_index = new HashMap<>();
+        for(int j=0;j<J.size();j++)
+            j_index.put(J.get(j),j);
+
+        // upstream lanegroups and their (u,r) pairs
+        u_lg = new models.ctm.LaneGroup[U.size()];
+        u_off = new int[U.size()+1];
+        u_p_off = new int[U.size()+1];
+        List<Integer> pu = new ArrayList<>();
+        List<Integer> pr = new ArrayList<>();
+        List<Map<Long,Integer>> u_rcid2p = new ArrayList<>();
+        for(int u=0;u<U.size();u++){
+            UpLaneGroup ulg = U.get(u);
+            u_lg[u] = ulg.lg;
+            u_off[u+1] = u_off[u] + ulg.lg.state_keys.length;
+            Map<Long,Integer> rcid2p = new HashMap<>();
+            for(UpLaneGroup.RcInfo rcinfo : ulg.rc_infos.values()){
+                rcid2p.put(rcinfo.rc.id,pr.size());
+                pu.add(u);
+                pr.add(r_index.get(rcinfo.rc));
             }
-            /////////////////////////////////
-
+            u_rcid2p.add(rcid2p);
+            u_p_off[u+1] = pr.size();
+        }
+        p_u = pu.stream().mapToInt(x->x).toArray();
+        p_r = pr.stream().mapToInt(x->x).toArray();
+        d_ir = new double[p_r.length];
+
+        int K = u_off[U.size()];
+        d_is = new double[K];
+        f_is = new double[K];
+        delta_is = new double[K];
+        k_u = new int[K];
+        k_p = new int[K];
+        for(int u=0;u<U.size();u++){
+            models.ctm.LaneGroup lg = u_lg[u];
+            for(int s=0;s<lg.state_keys.length;s++){
+                k_u[u_off[u]+s] = u;
+                Long rc_id = lg.state2roadconnection.get(lg.state_keys[s]);
+                Integer p = rc_id==null ? null : u_rcid2p.get(u).get(rc_id);
+                k_p[u_off[u]+s] = p==null ? -1 : p;
+            }
+        }
+        u_blocked = new boolean[U.size()];
+        u_scale = new double[U.size()];
+        Arrays.fill(u_scale,1d);
+        gamma_i = new double[U.size()];
+
+        // pairs listed by r
+        r_p_off = new int[R.size()+1];
+        for(int p=0;p<p_r.length;p++)
+            r_p_off[p_r[p]+1]++;
+        for(int r=0;r<R.size();r++)
+            r_p_off[r+1] += r_p_off[r];
+        r_p = new int[p_r.length];
+        int [] fill = Arrays.copyOf(r_p_off,R.size());
+        for(int p=0;p<p_r.length;p++)
+            r_p[fill[p_r[p]]++] = p;
+
+        // road connections and their (r,j) pairs
+        r_rc = R.toArray(new RoadConnection[0]);
+        fbar = new double[R.size()];
+        d_r = new double[R.size()];
+        gamma_r = new double[R.size()];
+        r_blocked = new boolean[R.size()];
+        r_m_off = new int[R.size()+1];
+        List<Integer> mr = new ArrayList<>();
+        List<Integer> mj = new ArrayList<>();
+        List<Double> lambda = new ArrayList<>();
+        for(int r=0;r<R.size();r++){
+            for(RoadConnection.DnLgInfo info : R.get(r).dnlg_infos.values()){
+                mr.add(r);
+                mj.add(j_index.get(info.dlg));
+                lambda.add(info.lambda_rj);
+            }
+            r_m_off[r+1] = mj.size();
+        }
+        m_r = mr.stream().mapToInt(x->x).toArray();
+        m_j = mj.stream().mapToInt(x->x).toArray();
+        lambda_rj = lambda.stream().mapToDouble(x->x).toArray();
+        alpha_rj = new double[m_j.length];
+
+        // pairs listed by j
+        j_m_off = new int[J.size()+1];
+        for(int m=0;m<m_j.length;m++)
+            j_m_off[m_j[m]+1]++;
+        for(int j=0;j<J.size();j++)
+            j_m_off[j+1] += j_m_off[j];
+        j_m = new int[m_j.length];
+        fill = Arrays.copyOf(j_m_off,J.size());
+        for(int m=0;m<m_j.length;m++)
+            j_m[fill[m_j[m]]++] = m;
+
+        // downstream lanegroups
+        j_lg = new models.ctm.LaneGroup[J.size()];
+        for(int j=0;j<J.size();j++)
+            j_lg[j] = J.get(j).lg;
+        s_j = new double[J.size()];
+        gamma_j = new double[J.size()];
+        j_blocked = new boolean[J.size()];
+        j_scale = new double[J.size()];
+        Arrays.fill(j_scale,1d);
+
+        // road connection states and the upstream states that feed them
+        r_q_off = new int[R.size()+1];
+        List<KeyCommPathOrLink> qkey = new ArrayList<>();
+        List<int[]> qc = new ArrayList<>();
+        for(int r=0;r<R.size();r++){
+            for(KeyCommPathOrLink state : R.get(r).states){
+                qkey.add(state);
+                List<Integer> c = new ArrayList<>();
+                for(int i=r_p_off[r];i<r_p_off[r+1];i++){
+                    int u = p_u[r_p[i]];
+                    Integer s = u_lg[u].state_ordinal.get(state);
+                    if(s!=null)
+                        c.add(u_off[u]+s);
+                }
+                qc.add(c.stream().mapToInt(x->x).toArray());
+            }
+            r_q_off[r+1] = qkey.size();
+        }
+        q_key = qkey.toArray(new KeyCommPathOrLink[0]);
+        q_c_off = new int[q_key.length+1];
+        for(int q=0;q<q_key.length;q++)
+            q_c_off[q+1] = q_c_off[q] + qc.get(q).length;
+        q_c = new int[q_c_off[q_key.length]];
+        for(int q=0;q<q_key.length;q++)
+            System.arraycopy(qc.get(q),0,q_c,q_c_off[q],qc.get(q).length);
+        f_rs = new double[q_key.length];
+
+        // one reusable packet per road connection
+        for(int r=0;r<R.size();r++){
+            RoadConnection rc = R.get(r);
+            rc.packet = new PacketLink(Arrays.copyOfRange(q_key,r_q_off[r],r_q_off[r+1]),
+                                       rc.rc==null ? null : rc.rc.out_lanegroups);
         }
 
+        type = classify();
 
+        compile_exchange();
     }
 
-    private void step2(){
-        /**  gamma_j */
+    private void compile_exchange(){
+
+        x_lg = null;
+        for(RoadConnection rc : r_rc)
+            if(rc.rc==null || !(rc.rc.end_link.model instanceof models.ctm.LinkModel))
+                return;
+
+        int R = r_rc.length;
+        int Q = q_key.length;
+        models.ctm.LaneGroup [][] X = new models.ctm.LaneGroup[R][];
+        q_d_off = new int[Q+1];
+        q_splits = new boolean[Q];
+        q_split = new SplitInfo[Q];
+        List<Long> outlinks = new ArrayList<>();
+        List<Boolean> missing = new ArrayList<>();
+        List<Integer> c_off = new ArrayList<>();
+        List<Boolean> in_target = new ArrayList<>();
+        List<Integer> ordinal = new ArrayList<>();
+        c_off.add(0);
+        int max_c = 0;
+
+        for(int r=0;r<R;r++){
+            common.RoadConnection xrc = r_rc[r].rc;
+            Link end_link = xrc.end_link;
+            StateRegistry states = end_link.network.scenario.state_registry;
+
+            // arrival lanegroups, as in AbstractLinkModel.add_vehicle_packet
+            List<AbstractLaneGroup> C = new ArrayList<>();
+            if(end_link.packet_splitter==null)
+                C.add(xrc.out_lanegroups.iterator().next());
+            else
+                C.addAll(xrc.out_lanegroups);
+            X[r] = C.toArray(new models.ctm.LaneGroup[0]);
+            max_c = Math.max(max_c,C.size());
+
+            for(int q=r_q_off[r];q<r_q_off[r+1];q++){
+                KeyCommPathOrLink key = q_key[q];
+
+                // outlinks of the state and its key in the end link, as in PacketSplitter
+                List<Long> O = new ArrayList<>();
+                List<KeyCommPathOrLink> K = new ArrayList<>();
+                if(end_link.packet_splitter==null){
+                    // sinks use their own id as next link
+                    long o = end_link.is_sink ? end_link.getId() : end_link.end_node.out_links.values().iterator().next().getId();
+                    O.add(o);
+                    K.add(key.isPath ? key : states.get(key.commodity_id,o,false));
+                } else if(key.isPath){
+                    O.add(end_link.get_next_link_on_path(key.pathOrlink_id).getId());
+                    K.add(key);
+                } else {
+                    q_splits[q] = true;
+                    q_split[q] = end_link.packet_splitter.commodity2split.get(key.commodity_id);
+                    for(Link outlink : end_link.end_node.out_links.values()){
+                        O.add(outlink.getId());
+                        K.add(states.get(key.commodity_id,outlink.getId(),false));
+                    }
+                }
 
-        for(DnLaneGroup dlg : dlgs.values() ) {
+                for(int i=0;i<O.size();i++){
+                    Set<AbstractLaneGroup> target = end_link.packet_splitter==null ? null : end_link.outlink2lanegroups.get(O.get(i));
+                    outlinks.add(O.get(i));
+                    missing.add(end_link.packet_splitter!=null && target==null);
+                    for(models.ctm.LaneGroup lg : X[r]){
+                        boolean in = target==null || target.contains(lg);
+                        Map<KeyCommPathOrLink,Integer> ordinals = in ? lg.state_ordinal : lg.notin_ordinal;
+                        Integer o = ordinals==null ? null : ordinals.get(K.get(i));
+                        in_target.add(in);
+                        ordinal.add(o==null ? -1 : o);
+                    }
+                    c_off.add(ordinal.size());
+                }
+                q_d_off[q+1] = outlinks.size();
+            }
+        }
 
-            // for MN model
-            if(Double.isInfinite(dlg.s_j))
-                dlg.gamma_j = 0d;
+        d_outlink = outlinks.stream().mapToLong(x->x).toArray();
+        d_missing = new boolean[missing.size()];
+        for(int d=0;d<d_missing.length;d++)
+            d_missing[d] = missing.get(d);
+        d_c_off = c_off.stream().mapToInt(x->x).toArray();
+        c_in_target = new boolean[in_target.size()];
+        for(int c=0;c<c_in_target.length;c++)
+            c_in_target[c] = in_target.get(c);
+        c_ordinal = ordinal.stream().mapToInt(x->x).toArray();
+        x_prop = new double[max_c];
+        x_lg = X;
+    }
 
-            else if (dlg.is_blocked)
-                dlg.gamma_j = 1d;
+    // destination of state q for an outlink, or -1
+    private int find_destination(int q,long outlink_id){
+        for(int d=q_d_off[q];d<q_d_off[q+1];d++)
+            if(d_outlink[d]==outlink_id)
+                return d;
+        return -1;
+    }
 
-            else {
+    private void send(int r,int d,double vehicles) throws OTMException {
 
-                // total_demand = sum of demands in upstream road connections, times the proportion
-                // directed at this lanegroup
-                Double d_j = dlg.rcs.values().stream().mapToDouble(rc -> rc.dnlg_infos.get(dlg.lg.id).alpha_rj * Math.min(rc.d_r, rc.fbar)).sum();
+        if(vehicles==0d)
+            return;
 
-                dlg.gamma_j = d_j>dlg.s_j ? 1d-dlg.s_j/d_j : 0d;
+        if(d<0 || d_missing[d])
+            throw new OTMException("target_lanegroups==null.\nThis may be an error in split ratios. " +
+                    "There is no access from link " + r_rc[r].rc.end_link.getId() + " to " +
+                    (d<0 ? "one of its split outlinks" : "link " + d_outlink[d]) + ". A possible cause is that there is " +
+                    "a positive split ratio between these two links.");
+
+        models.ctm.LaneGroup [] C = x_lg[r];
+        int o = d_c_off[d];
+        if(C.length==1)
+            C[0].add_boundary_inflow(c_in_target[o],c_ordinal[o],vehicles);
+        else
+            for(int c=0;c<C.length;c++){
+                double prop = x_prop[c];
+                if(prop<=0d)
+                    continue;
+                C[c].add_boundary_inflow(c_in_target[o+c],c_ordinal[o+c],prop==1d ? vehicles : vehicles*prop);
             }
+    }
 
-            /////////////////////////////////
-            if(doprint && node.getId()==3L){
-                System.out.println("2 gamma_j lg with lanes " + dlg.lg.lanes.size() + " = " + dlg.gamma_j);
-            }
-            /////////////////////////////////
+    private Type classify(){
 
-        }
-    }
+        int U = u_lg.length;
+        int R = r_rc.length;
+        int J = j_lg.length;
 
-    private void step3(){
-        /** gamma_r */
+        if(U==0 || R==0 || J==0)
+            return Type.general;
 
-        for(RoadConnection rc : rcs.values() ) {
+        // every road connection has one upstream and one downstream lanegroup, with positive lambda
+        for(int r=0;r<R;r++)
+            if(r_p_off[r+1]-r_p_off[r]!=1 || r_m_off[r+1]-r_m_off[r]!=1 || lambda_rj[r_m_off[r]]<=0d)
+                return Type.general;
 
-            rc.gamma_r = rc.is_blocked ? 0d : rc.dnlg_infos.values().stream().mapToDouble(x -> x.dlg.gamma_j * x.alpha_rj).sum();
+        // one upstream lanegroup, one road connection, one downstream lanegroup
+        if(U==1 && R==1 && J==1)
+            return Type.one_to_one;
 
-            /////////////////////////////////
-            if(doprint && node.getId()==3L){
-                System.out.println("3 gamma_r " + rc.gamma_r);
-            }
-            /////////////////////////////////
+        // each upstream lanegroup has one road connection, and all go to a single downstream lanegroup
+        if(J==1 && U==R) {
+            boolean ok = true;
+            for (int u = 0; u < U; u++)
+                ok &= u_p_off[u+1]-u_p_off[u]==1;
+            if (ok)
+                return Type.merge;
         }
 
+        // one upstream lanegroup, each road connection goes to its own downstream lanegroup
+        if(U==1 && J==R)
+            return Type.diverge;
+
+        return Type.general;
     }
 
-    private void step4(){
-        /** gamma_i */
+    private boolean all_upstream_dormant(){
+        for(models.ctm.LaneGroup lg : u_lg)
+            if(!lg.dormant)
+                return false;
+        return true;
+    }
 
-        for(UpLaneGroup ulg : ulgs.values() ) {
-            ulg.gamma_i = ulg.is_empty_or_blocked ?
-                    0d :
-                    1d - ulg.rc_infos.values().stream().mapToDouble(rc -> rc.rc.gamma_r).max().getAsDouble();
+    private void clear_flows(){
+        Arrays.fill(f_is,0d);
+        Arrays.fill(f_rs,0d);
+        for(int r=0;r<r_rc.length;r++)
+            r_rc[r].packet.clear_amounts();
+    }
 
-            ////////////////////////////////
-            if(doprint && node.getId()==3L){
-                System.out.println("4 gamma_i " + ulg.gamma_i);
-            }
-            /////////////////////////////////
+    // d_is and s_j are set
+    private void reset(){
+
+        // upstream lanegroups
+        Arrays.fill(u_blocked,false);
+        Arrays.fill(gamma_i,Double.NaN);
+        Arrays.fill(f_is,0d);
+        Arrays.fill(delta_is,Double.NaN);
+
+        // d_ir
+        Arrays.fill(d_ir,0d);
+        for(int k=0;k<k_p.length;k++)
+            if(k_p[k]>=0)
+                d_ir[k_p[k]] += d_is[k];
+
+        // road connections
+        double sim_dt = node.network.scenario.sim_dt * period;
+        for(int r=0;r<r_rc.length;r++){
+            r_blocked[r] = false;
+            d_r[r] = Double.NaN;
+            gamma_r[r] = Double.NaN;
+            common.RoadConnection xrc = r_rc[r].rc;
+            if(xrc==null || Double.isInfinite(xrc.external_max_flow_vps))
+                fbar[r] = Double.POSITIVE_INFINITY;
+            else if(xrc.external_max_flow_vps<NodeModel.eps)
+                fbar[r] = 0d;
+            else
+                fbar[r] = xrc.external_max_flow_vps * sim_dt;
         }
+        Arrays.fill(alpha_rj,0d);
+        Arrays.fill(f_rs,0d);
 
+        // downstream lanegroups
+        Arrays.fill(j_blocked,false);
+        Arrays.fill(gamma_j,Double.NaN);
     }
 
-    private void step5(){
-        /** delta_is, f_is */
+    // iterative solution
+    private void solve_general(){
 
-        for(UpLaneGroup ulg : ulgs.values()){
+        for(int it=1;it<=MAX_ITERATIONS+1;it++){
 
-            if(!ulg.is_empty_or_blocked){
+            // dlgs.is_blocked, rcs.is_blocked, ulgs.is_empty_or_blocked
+            update_blocked();
 
-                for( Map.Entry<KeyCommPathOrLink,UpLaneGroup.StateInfo> e : ulg.state_infos.entrySet()){
+            if(it>MAX_ITERATIONS || all_upstream_blocked())
+                return;
 
-                    KeyCommPathOrLink state = e.getKey();
-                    UpLaneGroup.StateInfo stateInfo = e.getValue();
+            // d_r, alpha_rj
+            for(int r=0;r<r_rc.length;r++){
+                double d = 0d;
+                if(!r_blocked[r])
+                    for(int i=r_p_off[r];i<r_p_off[r+1];i++)
+                        d += d_ir[r_p[i]];
+                d_r[r] = d;
 
-                    stateInfo.delta_is = stateInfo.d_is * ulg.gamma_i;
-                    stateInfo.d_is -= stateInfo.delta_is;
-                    ulg.f_is.put(state,ulg.f_is.get(state)+stateInfo.delta_is);
+                if(d<NodeModel.eps)
+                    continue;
 
-                    // reduce d_ir
-                    if(ulg.lg.state2roadconnection.containsKey(state)){
-                        Long rc_id = ulg.lg.state2roadconnection.get(state);
-                        ulg.rc_infos.get(rc_id).d_ir -= stateInfo.delta_is;
-                    }
+                // s_r: downstream supply seen by this road connection
+                double s_r = 0d;
+                for(int m=r_m_off[r];m<r_m_off[r+1];m++)
+                    s_r += lambda_rj[m]*s_j[m_j[m]];
 
-                    /////////////////////////////////
-                    if(doprint && node.getId()==3L){
-                        System.out.println("5 delta_is " + stateInfo.delta_is);
+                // alpha_rj: distribution amongst downstream lanegroups
+                for(int m=r_m_off[r];m<r_m_off[r+1];m++)
+                    alpha_rj[m] = s_r==0d ? 0d : lambda_rj[m] * s_j[m_j[m]] / s_r;
+            }
+
+            // gamma_j
+            for(int j=0;j<j_lg.length;j++){
+
+                // for MN model
+                if(Double.isInfinite(s_j[j]))
+                    gamma_j[j] = 0d;
+
+                else if(j_blocked[j])
+                    gamma_j[j] = 1d;
+
+                else {
+                    // demand directed at this lanegroup
+                    double d_j = 0d;
+                    for(int i=j_m_off[j];i<j_m_off[j+1];i++){
+                        int m = j_m[i];
+                        int r = m_r[m];
+                        d_j += alpha_rj[m] * Math.min(d_r[r],fbar[r]);
                     }
-                    /////////////////////////////////
+                    gamma_j[j] = d_j>s_j[j] ? 1d-s_j[j]/d_j : 0d;
+                }
+            }
+
+            // gamma_r
+            for(int r=0;r<r_rc.length;r++){
+                double g = 0d;
+                if(!r_blocked[r])
+                    for(int m=r_m_off[r];m<r_m_off[r+1];m++)
+                        g += gamma_j[m_j[m]] * alpha_rj[m];
+                gamma_r[r] = g;
+            }
 
+            // gamma_i
+            for(int u=0;u<u_lg.length;u++){
+                if(u_blocked[u])
+                    gamma_i[u] = 0d;
+                else {
+                    double max = Double.NEGATIVE_INFINITY;
+                    for(int p=u_p_off[u];p<u_p_off[u+1];p++)
+                        max = Math.max(max,gamma_r[p_r[p]]);
+                    gamma_i[u] = 1d - max;
                 }
             }
 
+            // delta_is, f_is
+            for(int u=0;u<u_lg.length;u++){
+                if(u_blocked[u])
+                    continue;
+                for(int k=u_off[u];k<u_off[u+1];k++){
+                    double delta = d_is[k] * gamma_i[u];
+                    delta_is[k] = delta;
+                    d_is[k] -= delta;
+                    f_is[k] += delta;
+                    if(k_p[k]>=0)
+                        d_ir[k_p[k]] -= delta;
+                }
+            }
+
+            // delta_rs, f_rs, discount s_j
+            for(int r=0;r<r_rc.length;r++){
+                for(int q=r_q_off[r];q<r_q_off[r+1];q++){
+                    double delta_rs = 0d;
+                    for(int c=q_c_off[q];c<q_c_off[q+1];c++){
+                        int k = q_c[c];
+                        if(!u_blocked[k_u[k]])
+                            delta_rs += delta_is[k];
+                    }
+                    f_rs[q] += delta_rs;
+                    for(int m=r_m_off[r];m<r_m_off[r+1];m++)
+                        s_j[m_j[m]] -= delta_rs * alpha_rj[m];
+                }
+            }
+        }
+    }
+
+    private void update_blocked(){
+
+        // block downstream lanegroups with zero supply
+        for(int j=0;j<j_lg.length;j++)
+            if(!j_blocked[j])
+                j_blocked[j] = s_j[j] < NodeModel.eps;
 
+        // block road connections connecting to blocked links or with control rate = 0
+        for(int r=0;r<r_rc.length;r++){
+            if(r_blocked[r])
+                continue;
+            boolean all = true;
+            for(int m=r_m_off[r];m<r_m_off[r+1];m++)
+                all &= j_blocked[m_j[m]];
+            r_blocked[r] = all || fbar[r]<NodeModel.eps;
+        }
 
+        // upstream lanegroup is empty if sum of demands is zero
+        // and blocked if any of it connectors is blocked
+        for(int u=0;u<u_lg.length;u++){
+            if(u_blocked[u])
+                continue;
+            double d = 0d;
+            boolean any = false;
+            for(int p=u_p_off[u];p<u_p_off[u+1];p++){
+                d += d_ir[p];
+                any |= r_blocked[p_r[p]];
+            }
+            u_blocked[u] = d<NodeModel.eps || any;
         }
+    }
 
+    private boolean all_upstream_blocked(){
+        for(boolean b : u_blocked)
+            if(!b)
+                return false;
+        return true;
     }
 
-    private void step6(){
-        /** delta_rs, f_rs */
+    // The fast paths below give the result of solve_general in closed form. In each case
+    // the iteration stops after one round: either the upstream demand is served, or the
+    // binding downstream supply is used up and blocks it. They require finite supplies,
+    // and merge and diverge require road connections without a flow limit.
+    // They return false when these conditions do not hold.
 
-        for(RoadConnection rc : rcs.values()){
+    // one upstream lanegroup, one road connection, one downstream lanegroup
+    private boolean solve_one_to_one(){
 
-            for(KeyCommPathOrLink state : rc.f_rs.keySet()){
+        double s = s_j[0];
+        if(Double.isNaN(s) || Double.isInfinite(s))
+            return false;
 
-                // delta_rs, f_rs
-                double delta_rs = rc.ulgs.stream()
-                        .filter(x->!x.is_empty_or_blocked)
-                        .mapToDouble(x->x.state_infos.get(state).delta_is)
-                        .sum();
+        double d = d_ir[0];
+        if(s<NodeModel.eps || fbar[0]<NodeModel.eps || d<NodeModel.eps)
+            return true;
 
-                rc.f_rs.put( state , rc.f_rs.get(state) + delta_rs );
+        double dj = Math.min(d,fbar[0]);
+        double g = dj>s ? 1d-s/dj : 0d;
+        release_upstream(0,1d-g);
+        return true;
+    }
 
-                // discount s_j
-                for(RoadConnection.DnLgInfo rc_dnlg : rc.dnlg_infos.values())
-                    rc_dnlg.dlg.s_j -= delta_rs * rc_dnlg.alpha_rj;
+    // several upstream lanegroups, each with its own road connection into one downstream lanegroup
+    private boolean solve_merge(){
 
-                /////////////////////////////////
-                if(doprint && node.getId()==3L){
-                    System.out.println("6 delta_rs from link " + rc.rc.start_link.getId() + " = " + delta_rs);
-                }
-                /////////////////////////////////
-            }
+        double s = s_j[0];
+        if(Double.isNaN(s) || Double.isInfinite(s) || !unlimited_road_connections())
+            return false;
 
+        if(s<NodeModel.eps)
+            return true;
+
+        // total demand of non-empty upstream lanegroups. solve_general also leaves these out:
+        // they are blocked, and their road connections get alpha_rj = 0.
+        double D = 0d;
+        for(int u=0;u<u_lg.length;u++)
+            if(d_ir[u_p_off[u]]>=NodeModel.eps)
+                D += d_ir[u_p_off[u]];
+
+        double g = D>s ? 1d-s/D : 0d;
+        for(int u=0;u<u_lg.length;u++)
+            if(d_ir[u_p_off[u]]>=NodeModel.eps)
+                release_upstream(u,1d-g);
+        return true;
+    }
+
+    // one upstream lanegroup, each road connection into its own downstream lanegroup
+    private boolean solve_diverge(){
+
+        if(!unlimited_road_connections())
+            return false;
+        for(double s : s_j)
+            if(Double.isNaN(s) || Double.isInfinite(s))
+                return false;
+
+        // a blocked road connection blocks the upstream lanegroup
+        for(double s : s_j)
+            if(s<NodeModel.eps)
+                return true;
+
+        double d = 0d;
+        for(int p=0;p<d_ir.length;p++)
+            d += d_ir[p];
+        if(d<NodeModel.eps)
+            return true;
+
+        // the most restrictive road connection sets the flow for all
+        double max = 0d;
+        for(int r=0;r<r_rc.length;r++){
+            double dr = d_ir[r_p[r_p_off[r]]];
+            double sj = s_j[m_j[r_m_off[r]]];
+            if(dr>=NodeModel.eps && dr>sj)
+                max = Math.max(max,1d-sj/dr);
         }
+        release_upstream(0,1d-max);
+        return true;
+    }
+
+    private boolean unlimited_road_connections(){
+        for(double x : fbar)
+            if(!Double.isInfinite(x))
+                return false;
+        return true;
     }
 
-    private void update_flow_accumulators(){
-
-//        for(UpLaneGroup ulg : ulgs){
-//
-//            if(ulg.lg.commodity_flow_accumulators==null)
-//                continue;
-//
-//            Long lg_id = ulg.lg.id;
-//
-//            // iterate through the flow accumulators for this lanegroup
-//            for(Map.Entry<Long,FlowAccumulator> e : ulg.lg.commodity_flow_accumulators.entrySet()) {
-//
-//                // compute flow for this commodity
-//                Long comm_id = e.getKey();
-//
-//                double flow_comm = in_flows.containsKey(lg_id) ?
-//                        in_flows.get(lg_id).entrySet().stream()
-//                                .filter(k -> k.getKey().commodity_id == comm_id)
-//                                .mapToDouble(k -> k.getValue())
-//                                .sum()
-//                        : 0d;
-//
-//                // increment the accumulators
-//                FlowAccumulator fac = e.getValue();
-//                fac.increment(flow_comm);
-//                if (ulg.lg.global_flow_accumulator != null)
-//                    ulg.lg.global_flow_accumulator.increment(flow_comm);
-//            }
-//
-//        }
-//
-//        // update flow accumulators
-//        for(UpLaneGroup ulg : ulgs){
-//            if(ulg.lg.commodity_flow_accumulators==null)
-//                continue;
-//            for(Map.Entry<Long,FlowAccumulator> e : ulg.lg.commodity_flow_accumulators.entrySet()){
-//                Long comm_id = e.getKey();
-//                double flow = ulg.get_flow_for_commodity(comm_id);
-//                FlowAccumulator fac = e.getValue();
-//                fac.increment(flow);
-//                if(ulg.lg.global_flow_accumulator!=null)
-//                    ulg.lg.global_flow_accumulator.increment(flow);
-//            }
-//        }
+    // upstream lanegroup u sends a fraction of its demand in every state
+    private void release_upstream(int u,double gamma){
+        for(int k=u_off[u];k<u_off[u+1];k++)
+            f_is[k] = d_is[k] * gamma;
+    }
 
+    // road connection flows from the upstream flows, after a single round
+    private void collect_road_connection_flows(){
+        for(int q=0;q<q_key.length;q++){
+            double f = 0d;
+            for(int c=q_c_off[q];c<q_c_off[q+1];c++)
+                f += f_is[q_c[c]];
+            f_rs[q] = f;
+        }
     }
 
 }
@@ -30,9 +30,9 @@ public class PacketLaneGroup extends AbstractPacketLaneGroup {
     public void add_link_packet(PacketLink vp) {
 
         // process macro state
-        for (Map.Entry<KeyCommPathOrLink, Double> e : vp.state2vehicles.entrySet()) {
-            KeyCommPathOrLink key = e.getKey();
-            Double value = e.getValue();
+        for (int i=0;i<vp.num_states;i++) {
+            KeyCommPathOrLink key = vp.state_keys[i];
+            double value = vp.amounts[i];
             if(this.state2vehicles.containsKey(key)){
                 this.state2vehicles.put(key,this.state2vehicles.get(key)+value);
             } else {
@@ -41,8 +41,8 @@ public class PacketLaneGroup extends AbstractPacketLaneGroup {
         }
 
         // process micro state
-        for(AbstractVehicle vehicle : vp.vehicles ) {
-            KeyCommPathOrLink key = vehicle.get_key();
+        for(int i=0;i<vp.num_vehicles;i++) {
+            KeyCommPathOrLink key = vp.vehicles[i].get_key();
             if(state2vehicles.keySet().contains(key))
                 state2vehicles.put(key, state2vehicles.get(key) + 1d);
             else
@@ -75,9 +75,28 @@ public class PacketLaneGroup extends AbstractPacketLaneGroup {
         return z;
     }
 
+    @Override
+    public void add_scaled(AbstractPacketLaneGroup avp, double x) {
+        PacketLaneGroup vp = (PacketLaneGroup) avp;
+        target_lanegroups = vp.target_lanegroups;
+        for(Map.Entry<KeyCommPathOrLink,Double> e : vp.state2vehicles.entrySet())
+            add_macro(e.getKey(),e.getValue()*x);
+    }
+
+    @Override
+    public void clear() {
+        target_lanegroups = null;
+        state2vehicles.clear();
+    }
+
     @Override
     public boolean isEmpty(){
-        return state2vehicles==null || state2vehicles.values().stream().mapToDouble(x->x).sum()==0d;
+        if(state2vehicles==null)
+            return true;
+        double sum = 0d;
+        for(double value : state2vehicles.values())
+            sum += value;
+        return sum==0d;
     }
 
 }
@@ -7,6 +7,7 @@
 package models.ctm;
 
 import keys.KeyCommPathOrLink;
+import packet.PacketLink;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,7 +39,10 @@ public class RoadConnection {
 
     public Set<UpLaneGroup> ulgs;
     public Map<Long,DnLgInfo> dnlg_infos;
-    public Map<KeyCommPathOrLink,Double> f_rs;
+    public Set<KeyCommPathOrLink> states;
+
+    // flows of the states, sent to the end link. Built by the NodeModel and reused every time step.
+    public PacketLink packet;
 
     ////////////////////////////////////////////
     // construction
@@ -51,7 +55,7 @@ public class RoadConnection {
         this.gamma_r = Double.NaN;
         this.ulgs = new HashSet<>();
         this.dnlg_infos = new HashMap<>();
-        this.f_rs = new HashMap<>();
+        this.states = new HashSet<>();
     }
 
     public void add_up_lanegroup(UpLaneGroup x){
@@ -75,7 +79,7 @@ public class RoadConnection {
     }
 
     public void add_state(KeyCommPathOrLink state){
-        f_rs.put(state,0d);
+        states.add(state);
 
         for(DnLgInfo dnLgInfo : dnlg_infos.values()){
             dnLgInfo.dlg.add_state(state);
@@ -93,7 +97,8 @@ public class RoadConnection {
 
         dnlg_infos.values().forEach(x->x.reset());
 
-        f_rs.keySet().forEach(x->f_rs.put(x,0d));
+        if(packet!=null)
+            packet.clear_amounts();
 
         // fbar
         if(Double.isInfinite(rc.external_max_flow_vps))
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package models.ctm;
+
+public class ScalarCellKernel implements InterfaceCellKernel {
+
+    @Override
+    public void scale(double [] x,int from,double a,double [] y,int to,int n) {
+        for(int i=0;i<n;i++)
+            y[to+i] = x[from+i] * a;
+    }
+
+    @Override
+    public void scale_rows(double [] x,int from,double [] a,double [] y,int to,int rows,int w) {
+        if(w==1) {
+            for (int i=0;i<rows;i++)
+                y[to+i] = x[from+i] * a[i];
+            return;
+        }
+        for(int i=0;i<rows;i++) {
+            double ai = a[i];
+            int o = i*w;
+            for (int q=0;q<w;q++)
+                y[to+o+q] = x[from+o+q] * ai;
+        }
+    }
+
+    @Override
+    public void advance(double [] veh,double [] flow,int shift,int n) {
+        for(int i=0;i<n;i++) {
+            veh[i] += flow[i];
+            veh[i] -= flow[i+shift];
+        }
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+}
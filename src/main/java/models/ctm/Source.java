@@ -67,15 +67,13 @@ public class Source extends common.AbstractSource {
 
             models.ctm.LaneGroup lg = (models.ctm.LaneGroup) alg;
             Map<KeyCommPathOrLink,Double> old_values = source_flows==null ? null : source_flows.get(alg.id);
-            Map<KeyCommPathOrLink,Double> lg_values = lg.flow_in_target.get(0);
 
             // iterate through new values
             for(Map.Entry<KeyCommPathOrLink,Double> e : new_values.entrySet()){
                 KeyCommPathOrLink key = e.getKey();
                 Double new_value = e.getValue();
                 Double old_value = old_values==null || !old_values.containsKey(key) ? 0d : old_values.get(key);
-                Double lg_value = lg_values.containsKey(key) ? lg_values.get(key) : 0d;
-                lg_values.put(key,lg_value-old_value+new_value);
+                lg.add_inflow(key,new_value-old_value);
             }
         }
 
@@ -111,7 +109,7 @@ public class Source extends common.AbstractSource {
                 assert(link.end_node.is_many2one);
 
                 Link next_link = link.end_node.out_links.values().iterator().next();
-                KeyCommPathOrLink key = new KeyCommPathOrLink(comm_id,next_link.getId(),false);
+                KeyCommPathOrLink key = link.network.scenario.state_registry.get(comm_id,next_link.getId(),false);
 
                 AbstractLaneGroup lg = link.lanegroups.values().iterator().next();
                 Map<KeyCommPathOrLink,Double> x = new HashMap<>();
@@ -128,7 +126,7 @@ public class Source extends common.AbstractSource {
             for(Map.Entry<Long,Double> e : outlink2split.entrySet() ){
                 Long nextlink_id = e.getKey();
                 Double split = e.getValue();
-                KeyCommPathOrLink key = new KeyCommPathOrLink(comm_id,nextlink_id,false);
+                KeyCommPathOrLink key = link.network.scenario.state_registry.get(comm_id,nextlink_id,false);
 
                 if(!OTMUtils.greater_than(split,0d))
                     continue;
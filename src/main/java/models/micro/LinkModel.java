@@ -10,6 +10,7 @@ import common.*;
 import error.OTMErrorLog;
 import error.OTMException;
 import jaxb.Roadparam;
+import packet.AbstractPacketLaneGroup;
 import packet.PacketLink;
 import runner.Scenario;
 
@@ -38,6 +39,11 @@ public class LinkModel extends AbstractLinkModel {
         System.out.println(timestamp + "\t models.ctm.micro.add_native_vehicle_packet");
     }
 
+    @Override
+    public AbstractPacketLaneGroup create_lanegroup_packet() {
+        return null;
+    }
+
     @Override
     public void validate(OTMErrorLog errorLog) {
         System.out.println("Validate models.ctm.micro link model");
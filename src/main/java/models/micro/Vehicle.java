@@ -20,8 +20,8 @@ public class Vehicle extends AbstractVehicle {
 
     public Vehicle(){}
 
-    public Vehicle(KeyCommPathOrLink key, Set<InterfaceVehicleListener> vehicle_event_listeners) {
-        super(key,vehicle_event_listeners);
+    public Vehicle(long id,KeyCommPathOrLink key, Set<InterfaceVehicleListener> vehicle_event_listeners) {
+        super(id,key,vehicle_event_listeners);
     }
 
     public Vehicle(models.pq.Vehicle meso_vehicle) {
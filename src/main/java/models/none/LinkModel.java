@@ -9,6 +9,7 @@ package models.none;
 import common.AbstractLaneGroup;
 import common.AbstractLinkModel;
 import common.Link;
+import packet.AbstractPacketLaneGroup;
 import packet.PacketLink;
 import error.OTMErrorLog;
 import error.OTMException;
@@ -44,6 +45,11 @@ public class LinkModel extends AbstractLinkModel {
 
     }
 
+    @Override
+    public AbstractPacketLaneGroup create_lanegroup_packet() {
+        return null;
+    }
+
     @Override
     public void validate(OTMErrorLog errorLog) {
         if(ff_travel_time_sec<=0)
@@ -14,6 +14,7 @@ public class LaneChangeRequest {
     protected Vehicle requester;
     protected Queue from_queue;
     protected Queue to_queue;
+    protected boolean cancelled;        // the vehicle's requests were withdrawn, skipped when polled
 
     public LaneChangeRequest(float timestamp, Vehicle requester, Queue from_queue, Queue to_queue) throws OTMException {
         if(from_queue.lanegroup.link!=to_queue.lanegroup.link)
@@ -7,7 +7,6 @@
 package models.pq;
 
 import commodity.Commodity;
-import commodity.Path;
 import common.*;
 import dispatch.EventTransitToWaiting;
 import error.OTMErrorLog;
@@ -23,6 +22,7 @@ import packet.PartialVehicleMemory;
 import runner.RunParameters;
 import runner.Scenario;
 import utils.OTMUtils;
+import utils.StochasticProcess;
 
 import java.util.*;
 
@@ -35,6 +35,21 @@ public class LaneGroup extends AbstractLaneGroup {
     public float saturation_flow_rate_vps;
     public float transit_time_sec;
 
+    // vehicles leave the transit queue when a release is attempted, instead of with
+    // an EventTransitToWaiting each. The transit queue is then ordered by transit end time.
+    public boolean lazy_transit;
+    public long num_lazy_promotions;    // vehicles moved to the waiting queue without a transit event
+
+    // Releases are attempted on a schedule of waiting times at the current flow rate. The
+    // lanegroup stops the schedule (sleeps) while its waiting queue is empty, or while the
+    // head vehicle is blocked by full point queue lanegroups, which wake it when a vehicle
+    // leaves them. On waking it resumes at the first release of the interrupted schedule
+    // that is not in the past.
+    private EventReleaseVehicleFromLaneGroup release_event;
+    private float next_release_time;
+    private boolean asleep;
+    private Set<LaneGroup> blocked_upstream;    // asleep lanegroups blocked by this one
+
     // given a downstream link and a commodity, these are the lanegroups in the link that
     // are available to the commodity. these are all lanegroups in the link minus
     // a) lanegroups not reached by the road connection between the two
@@ -102,8 +117,13 @@ public class LaneGroup extends AbstractLaneGroup {
         transit_queue.initialize();
         waiting_queue.initialize();
         current_max_flow_rate_vps = saturation_flow_rate_vps;
+        lazy_transit = scenario.is_pq_lazy_transit();
+        num_lazy_promotions = 0L;
+        asleep = false;
+        blocked_upstream = new LinkedHashSet<>();
 
         // register first vehicle exit
+        release_event = null;
         schedule_release_vehicle(runParams.start_time,current_max_flow_rate_vps);
     }
 
@@ -120,20 +140,16 @@ public class LaneGroup extends AbstractLaneGroup {
         models.pq.PacketLaneGroup vp = (models.pq.PacketLaneGroup) avp;
 
         // add to what is in the pvm
-        vp.vehicles.addAll( pvm.process_packet(vp.pvm) );
+        vp.vehicles.addAll( pvm.process_packet(link.network.scenario,vp.pvm) );
 
         // for each vehicle
-        Dispatcher dispatcher = link.network.scenario.dispatcher;
         for(AbstractVehicle vehicle : vp.vehicles){
 
             if(!(vehicle instanceof Vehicle))
                 continue;
 
-            // tell the vehicle it has moved
-            ((Vehicle)vehicle).move_to_queue(timestamp,transit_queue);
-
-            // register_initial_events dispatch to go to waiting queue
-            dispatcher.register_event(new EventTransitToWaiting(dispatcher,timestamp + transit_time_sec,vehicle));
+            // move it to the transit queue
+            enter_transit_queue(timestamp,(Vehicle)vehicle);
 
             // inform the travel timers
             link.travel_timers.forEach(x->x.vehicle_enter(timestamp,vehicle));
@@ -156,9 +172,9 @@ public class LaneGroup extends AbstractLaneGroup {
                 saturation_flow_rate_vps :
                 current_max_flow_rate_vps;
 
-        // TODO: REMOVE FUTURE RELEASES?
-
-        // schedule a release for now+ half wait time
+        // restart the release schedule at the new rate, with a release in half a wait time
+        link.network.scenario.dispatcher.cancel_event(release_event);
+        asleep = false;
         schedule_release_vehicle(timestamp,current_max_flow_rate_vps*2);
 
     }
@@ -175,20 +191,31 @@ public class LaneGroup extends AbstractLaneGroup {
     @Override
     public void release_vehicle_packets(float timestamp) throws OTMException {
 
-        // schedule the next vehicle release dispatch
-        schedule_release_vehicle(timestamp,current_max_flow_rate_vps);
+        // time of the next release on the schedule
+        release_event = null;
+        asleep = false;
+        Float wait_time = link.network.scenario.get_waiting_time(current_max_flow_rate_vps);
+        next_release_time = wait_time==null ? Float.NaN : timestamp + wait_time;
+
+        // vehicles that have completed their transit
+        if(lazy_transit)
+            promote_transit_vehicles(timestamp);
 
-        // ignore if waiting queue is empty
-        if(waiting_queue.num_vehicles()==0)
+        // sleep if waiting queue is empty
+        if(waiting_queue.num_vehicles()==0) {
+            sleep();
             return;
+        }
 
         // otherwise get the first vehicle
         Vehicle vehicle = waiting_queue.peek_vehicle();
 
         // is this vehicle waiting to change lanes out of its queue?
         // if so, the lane group is blocked
-        if(vehicle.waiting_for_lane_change)
+        if(vehicle.waiting_for_lane_change) {
+            continue_schedule();
             return;
+        }
 
         if(link.is_sink) {
 
@@ -209,10 +236,7 @@ public class LaneGroup extends AbstractLaneGroup {
             KeyCommPathOrLink state = vehicle.get_key();
             Link next_link;
             if(state.isPath ) {
-
-                // TODO CHACHE THIS
-                Path path = (Path) link.network.scenario.subnetworks.get(state.pathOrlink_id);
-                next_link = path.get_link_following(link);
+                next_link = link.get_next_link_on_path(state.pathOrlink_id);
             } else {
                 next_link = link.network.links.get(state.pathOrlink_id);
             }
@@ -240,14 +264,33 @@ public class LaneGroup extends AbstractLaneGroup {
                 next_link.model.add_vehicle_packet(timestamp,vp);
 
             } else { // all targets are blocked
+
+                // point queues wake this lanegroup when they have space. Others are polled.
+                if(dwn_lanegroups.stream().allMatch(x->x instanceof LaneGroup)) {
+                    for(AbstractLaneGroup x : dwn_lanegroups)
+                        ((LaneGroup) x).blocked_upstream.add(this);
+                    asleep = true;
+                }
+                else
+                    continue_schedule();
                 return;
             }
 
         }
 
+        continue_schedule();
+
         // tell the flow accumulators
         update_flow_accummulators(vehicle.get_key(),1f);
 
+        // a vehicle has left, lanegroups blocked by this one may proceed
+        if(!blocked_upstream.isEmpty()){
+            LaneGroup [] X = blocked_upstream.toArray(new LaneGroup[0]);
+            blocked_upstream.clear();
+            for(LaneGroup x : X)
+                x.wake(timestamp);
+        }
+
         /** NOTE RESOLVE THIS. NEED TO CHECK
          * a) WHETHER THE NEXT LANE GROUP IS MACRO OR MESO.
          * b) IF MACRO, INCREMENT SOME DEMAND BUFFER
@@ -264,6 +307,18 @@ public class LaneGroup extends AbstractLaneGroup {
         return (float) (transit_queue.num_vehicles_for_commodity(c) + waiting_queue.num_vehicles_for_commodity(c));
     }
 
+    /** Vehicles in the waiting queue, including lazy transit vehicles whose transit has
+     * ended. Equals the waiting queue size with transit events. Nothing is moved. **/
+    public int get_num_waiting_vehicles(){
+        return waiting_queue.num_vehicles() + num_ready_transit_vehicles();
+    }
+
+    /** Vehicles in the transit queue, excluding lazy transit vehicles whose transit has
+     * ended. Equals the transit queue size with transit events. Nothing is moved. **/
+    public int get_num_transit_vehicles(){
+        return transit_queue.num_vehicles() - num_ready_transit_vehicles();
+    }
+
     @Override
     public float get_current_travel_time() {
         return Float.NaN;
@@ -274,19 +329,113 @@ public class LaneGroup extends AbstractLaneGroup {
         return get_space();
     }
 
+    /** Moves a vehicle into the transit queue. It reaches the waiting queue transit_time_sec later. **/
+    public void enter_transit_queue(float timestamp,Vehicle vehicle) throws OTMException {
+
+        vehicle.move_to_queue(timestamp,transit_queue);
+
+        // vehicles with listeners keep their transit event, so that their moves are
+        // reported in order. Promotion stops behind them.
+        if(lazy_transit && !has_listeners(vehicle)) {
+            vehicle.transit_end_time = timestamp + transit_time_sec;
+
+            // there is no arrival event to the waiting queue to wake a sleeping lanegroup
+            if(asleep) {
+                asleep = false;
+                schedule_release_at(resume_time(vehicle.transit_end_time));
+            }
+        }
+        else {
+            vehicle.transit_end_time = Float.NaN;
+            Dispatcher dispatcher = link.network.scenario.dispatcher;
+            dispatcher.register_event(new EventTransitToWaiting(dispatcher,timestamp + transit_time_sec,vehicle));
+        }
+    }
+
+    /** Lazy transit: move vehicles whose transit ended by timestamp to the waiting queue,
+     * each at its own transit end time. Stops at a vehicle that has a transit event. **/
+    public void promote_transit_vehicles(float timestamp) throws OTMException {
+        Vehicle vehicle = transit_queue.peek_vehicle();
+        while(vehicle!=null && vehicle.transit_end_time<=timestamp){
+            vehicle.move_to_queue(vehicle.transit_end_time,waiting_queue);
+            num_lazy_promotions++;
+            vehicle = transit_queue.peek_vehicle();
+        }
+    }
+
+    /** Resume the release schedule of a sleeping lanegroup. Vehicles promoted late carry
+     * a past timestamp, so the release is never scheduled before the current time. **/
+    protected void wake(float timestamp){
+        if(!asleep)
+            return;
+        asleep = false;
+        schedule_release_at(resume_time(Math.max(timestamp,link.network.scenario.dispatcher.current_time)));
+    }
+
     ///////////////////////////////////////////////////
     // private
     ///////////////////////////////////////////////////
 
     private void schedule_release_vehicle(float nowtime,float rate){
-        Scenario scenario = link.network.scenario;
-        Float wait_time = scenario.get_waiting_time(rate);
+        Float wait_time = link.network.scenario.get_waiting_time(rate);
+        schedule_release_at(wait_time==null ? Float.NaN : nowtime + wait_time);
+    }
 
-        if(wait_time!=null){
-            float timestamp = nowtime + wait_time;
-            scenario.dispatcher.register_event(
-                    new EventReleaseVehicleFromLaneGroup(scenario.dispatcher,timestamp,this));
-        }
+    private void schedule_release_at(float timestamp){
+        next_release_time = timestamp;
+        if(Float.isNaN(timestamp))
+            return;
+        Dispatcher dispatcher = link.network.scenario.dispatcher;
+        release_event = new EventReleaseVehicleFromLaneGroup(dispatcher,timestamp,this);
+        dispatcher.register_event(release_event);
+    }
+
+    private void continue_schedule(){
+        schedule_release_at(next_release_time);
+    }
+
+    // Nothing to release. With lazy transit, the next vehicle to reach the waiting queue
+    // is known, so the release at that time is scheduled instead. A vehicle with a
+    // transit event wakes the lanegroup when it arrives.
+    private void sleep(){
+        Vehicle vehicle = lazy_transit ? transit_queue.peek_vehicle() : null;
+        if(vehicle==null || Float.isNaN(vehicle.transit_end_time))
+            asleep = true;
+        else
+            schedule_release_at(resume_time(vehicle.transit_end_time));
+    }
+
+    // lazy transit vehicles at the head of the transit queue whose transit ended by the
+    // current time. Counting stops at a vehicle with a transit event, as promotion does.
+    private int num_ready_transit_vehicles(){
+        if(!lazy_transit)
+            return 0;
+        float now = link.network.scenario.dispatcher.current_time;
+        int n = 0;
+        for(Vehicle v = transit_queue.peek_vehicle(); v!=null && v.transit_end_time<=now; v=v.q_next)
+            n++;
+        return n;
+    }
+
+    private static boolean has_listeners(Vehicle vehicle){
+        return vehicle.get_event_listeners()!=null && !vehicle.get_event_listeners().isEmpty();
+    }
+
+    // first release of the interrupted schedule at or after timestamp. Poisson releases are
+    // memoryless, so a new waiting time is drawn from timestamp.
+    private float resume_time(float timestamp){
+        float x = next_release_time;
+        if(x>=timestamp)
+            return x;
+        Scenario scenario = link.network.scenario;
+        Float wait_time = scenario.get_waiting_time(current_max_flow_rate_vps);
+        if(wait_time==null)
+            return Float.NaN;
+        if(Float.isNaN(x) || scenario.get_stochastic_process()==StochasticProcess.poisson)
+            return timestamp + wait_time;
+        while(x<timestamp)
+            x += wait_time;
+        return x;
     }
 
 }
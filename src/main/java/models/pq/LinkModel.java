@@ -28,7 +28,6 @@ public class LinkModel extends AbstractLinkModel {
 
     public LinkModel(common.Link link){
         super(link);
-        myPacketClass = models.pq.PacketLaneGroup.class;
     }
 
     ////////////////////////////////////////////
@@ -89,6 +88,11 @@ public class LinkModel extends AbstractLinkModel {
             return null;
     }
 
+    @Override
+    public AbstractPacketLaneGroup create_lanegroup_packet() {
+        return new models.pq.PacketLaneGroup();
+    }
+
     ////////////////////////////////////////////
     // update
     ///////////////////////////////////////////
@@ -22,8 +22,8 @@ public class PacketLaneGroup extends AbstractPacketLaneGroup {
     public Set<AbstractVehicle> vehicles=new HashSet<>();
     public PartialVehicleMemory pvm = new PartialVehicleMemory();
 
-    // TODO: THis should also carry the partial vehicle memory, which should be accounted for in add_vehicles
-    // TODO: The partial vehicle memory should live in the pq LaneGroup
+    // Macroscopic flow is carried in the partial vehicle memory. Vehicles are
+    // created when the packet is added to a lanegroup (see LaneGroup.add_native_vehicle_packet)
 
     public PacketLaneGroup(){}
 
@@ -33,29 +33,26 @@ public class PacketLaneGroup extends AbstractPacketLaneGroup {
 
     @Override
     public boolean isEmpty(){
-        return vehicles==null || vehicles.isEmpty();
+        if(vehicles!=null && !vehicles.isEmpty())
+            return false;
+        // empty unless it carries at least one whole vehicle for some state
+        for(double value : pvm.remainder.values())
+            if(value>=1d)
+                return false;
+        return true;
     }
 
     @Override
     public void add_link_packet(PacketLink vp) {
-        if(vp.vehicles!=null)
-            vp.vehicles.forEach(v->add_micro(v.get_key(),v));
-        if(vp.state2vehicles!=null)
-            vp.state2vehicles.forEach( (k,v)->add_macro(k,v));
+        for(int i=0;i<vp.num_vehicles;i++)
+            add_micro(vp.vehicles[i].get_key(),vp.vehicles[i]);
+        for(int i=0;i<vp.num_states;i++)
+            add_macro(vp.state_keys[i],vp.amounts[i]);
     }
 
     @Override
     public void add_macro(KeyCommPathOrLink key, Double value) {
-
-        double add_value = pvm.get_value(key) + value;
-        int veh = (int) add_value;
-
-        // create vehicles
-        for(int i=0;i<veh;i++)
-            vehicles.add(new Vehicle(key,null));
-
-        // update pvm
-        pvm.set_value(key,add_value - veh);
+        pvm.set_value(key,pvm.get_value(key) + value);
     }
 
     @Override
@@ -69,4 +66,17 @@ public class PacketLaneGroup extends AbstractPacketLaneGroup {
         return null;
     }
 
+    @Override
+    public void add_scaled(AbstractPacketLaneGroup vp, double x) {
+        // pq packets carry vehicles, which cannot be scaled (see LinkModel.lanegroup_proportions)
+        throw new IllegalStateException("add_scaled called on a pq packet");
+    }
+
+    @Override
+    public void clear() {
+        target_lanegroups = null;
+        vehicles.clear();
+        pvm.remainder.clear();
+    }
+
 }
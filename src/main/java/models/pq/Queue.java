@@ -9,12 +9,13 @@ package models.pq;
 import error.OTMErrorLog;
 import error.OTMException;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.PriorityQueue;
-
-import static java.util.stream.Collectors.toSet;
+import java.util.*;
 
+/**
+ * FIFO of vehicles, linked through the vehicles themselves, so that removal of the head or
+ * of any given vehicle is O(1). Vehicle counts per commodity are kept as vehicles come and
+ * go. Lane change requests are indexed by vehicle and cancelled lazily in the heap.
+ */
 public class Queue {
 
     public enum Type {transit,waiting}
@@ -22,8 +23,14 @@ public class Queue {
     public final String id;
     public final Queue.Type type;
     public final LaneGroup lanegroup;
-    private List<Vehicle> vehicles;
+
+    private Vehicle head;
+    private Vehicle tail;
+    private int size;
+    private final Map<Long,int[]> commodity_count;    // commodity id -> {count}
+
     private PriorityQueue<LaneChangeRequest> lane_change_requests;
+    private Map<Vehicle,List<LaneChangeRequest>> vehicle2requests;
 
     ///////////////////////////////////////////////////
     // construction
@@ -32,8 +39,9 @@ public class Queue {
     public Queue(LaneGroup lanegroup, Queue.Type type) {
         this.type = type;
         this.lanegroup = lanegroup;
-        this.vehicles = new ArrayList<>();
+        this.commodity_count = new HashMap<>();
         this.lane_change_requests = new PriorityQueue<>(LaneChangeRequest::compareTimestamp);
+        this.vehicle2requests = new HashMap<>();
         switch(type){
             case transit:
                 id = "t" + lanegroup.id;
@@ -51,7 +59,11 @@ public class Queue {
     }
 
     public void initialize() throws OTMException {
-        vehicles = new ArrayList<>();
+        while(head!=null)
+            unlink(head);
+        commodity_count.clear();
+        lane_change_requests.clear();
+        vehicle2requests.clear();
     }
 
     ///////////////////////////////////////////////////
@@ -59,38 +71,101 @@ public class Queue {
     ///////////////////////////////////////////////////
 
     public Vehicle peek_vehicle() {
-        return vehicles.isEmpty() ? null : vehicles.get(0);
+        return head;
     }
 
     public void remove_given_vehicle(float timestamp, Vehicle v) throws OTMException {
-        this.vehicles.remove(v);
+        if(v.in_queue==this)
+            unlink(v);
 
         // process any lane change requests
-        ((LinkModel)lanegroup.link.model).process_lane_change_request(timestamp,lane_change_requests.poll());
+        ((LinkModel)lanegroup.link.model).process_lane_change_request(timestamp,poll_lane_change_request());
 
     }
 
     public void add_vehicle(Vehicle v) {
-        this.vehicles.add(v);
+        if(v.in_queue!=null)
+            v.in_queue.unlink(v);
+        v.in_queue = this;
+        v.q_prev = tail;
+        v.q_next = null;
+        if(tail==null)
+            head = v;
+        else
+            tail.q_next = v;
+        tail = v;
+        size++;
+        int [] c = commodity_count.get(v.get_commodity_id());
+        if(c==null)
+            commodity_count.put(v.get_commodity_id(),new int[]{1});
+        else
+            c[0]++;
     }
 
     public long num_vehicles_for_commodity(Long c) {
-        return c==null ? vehicles.size() : vehicles.stream().filter(x -> x.get_commodity_id()==c).count();
+        if(c==null)
+            return size;
+        int [] x = commodity_count.get(c);
+        return x==null ? 0 : x[0];
     }
 
     public int num_vehicles(){
-        return vehicles.size();
+        return size;
     }
 
     public void submit_lane_change_request(LaneChangeRequest r){
         this.lane_change_requests.add(r);
+        List<LaneChangeRequest> X = vehicle2requests.get(r.requester);
+        if(X==null) {
+            X = new ArrayList<>(1);
+            vehicle2requests.put(r.requester, X);
+        }
+        X.add(r);
     }
 
     protected void remove_lane_change_requests_for_vehicle(Vehicle vehicle){
-        lane_change_requests.removeAll(
-                lane_change_requests.stream()
-                        .filter(x->x.requester==vehicle)
-                        .collect(toSet()) );
+        List<LaneChangeRequest> X = vehicle2requests.remove(vehicle);
+        if(X!=null)
+            for(LaneChangeRequest r : X)
+                r.cancelled = true;
+    }
+
+    ///////////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////////
+
+    private void unlink(Vehicle v){
+        if(v.q_prev==null)
+            head = v.q_next;
+        else
+            v.q_prev.q_next = v.q_next;
+        if(v.q_next==null)
+            tail = v.q_prev;
+        else
+            v.q_next.q_prev = v.q_prev;
+        v.q_prev = null;
+        v.q_next = null;
+        v.in_queue = null;
+        size--;
+        int [] c = commodity_count.get(v.get_commodity_id());
+        if(c!=null)
+            c[0]--;
+    }
+
+    // earliest request that has not been cancelled
+    private LaneChangeRequest poll_lane_change_request(){
+        LaneChangeRequest r = lane_change_requests.poll();
+        while(r!=null && r.cancelled)
+            r = lane_change_requests.poll();
+        if(r!=null){
+            List<LaneChangeRequest> X = vehicle2requests.get(r.requester);
+            if(X!=null) {
+                X.remove(r);
+                if(X.isEmpty())
+                    vehicle2requests.remove(r.requester);
+            }
+        }
+        return r;
     }
 
 }
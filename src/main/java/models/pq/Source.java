@@ -11,7 +11,6 @@ import commodity.Path;
 import common.*;
 import dispatch.Dispatcher;
 import dispatch.EventCreateVehicle;
-import dispatch.EventTransitToWaiting;
 import error.OTMException;
 import profiles.DemandProfile;
 import runner.Scenario;
@@ -53,7 +52,7 @@ public class Source extends common.AbstractSource {
         scheduled_vehicle_event = null;
 
         // create a vehicle
-        Vehicle vehicle= new Vehicle(key,commodity.vehicle_event_listeners);
+        Vehicle vehicle= new Vehicle(link.network.scenario.get_vehicle_id(),key,commodity.vehicle_event_listeners);
 
         // sample its next link according to commodity
         Collection<AbstractLaneGroup> target_lanegroups;
@@ -68,7 +67,7 @@ public class Source extends common.AbstractSource {
         }
 
         // change the state of a pathless vehicle
-        vehicle.set_next_link_id(next_link_id);
+        vehicle.set_next_link_id(link.network.scenario.state_registry,next_link_id);
 
         // choose best one from target lanegroups
         if(target_lanegroups.isEmpty())
@@ -81,12 +80,8 @@ public class Source extends common.AbstractSource {
         // this map will have a single entry
         LaneGroup joinlanegroup = (LaneGroup) linkModel.lanegroup_proportions(target_lanegroups).keySet().iterator().next();
 
-        // move the vehicle
-        vehicle.move_to_queue(timestamp,joinlanegroup.transit_queue);
-
-        // register_initial_events dispatch to go to waiting queue
-        Dispatcher dispatcher = link.network.scenario.dispatcher;
-        dispatcher.register_event(new EventTransitToWaiting(dispatcher,timestamp + joinlanegroup.transit_time_sec,vehicle));
+        // move the vehicle to the transit queue
+        joinlanegroup.enter_transit_queue(timestamp,vehicle);
 
         // inform the travel timers
         link.travel_timers.forEach(z->z.vehicle_enter(timestamp,vehicle));
@@ -18,14 +18,23 @@ public class Vehicle extends AbstractVehicle {
     public Queue my_queue;
     public boolean waiting_for_lane_change = true;
 
+    // time at which the vehicle reaches the waiting queue, for lazy transit queues.
+    // NaN if the vehicle has a transit event.
+    float transit_end_time;
+
+    // links of the queue that holds this vehicle, maintained by Queue
+    Queue in_queue;
+    Vehicle q_prev;
+    Vehicle q_next;
+
     ///////////////////////////////////////////////////
     // construction
     ///////////////////////////////////////////////////
 
     public Vehicle(){}
 
-    public Vehicle(KeyCommPathOrLink key, Set<InterfaceVehicleListener> vehicle_event_listeners) {
-        super(key,vehicle_event_listeners);
+    public Vehicle(long id,KeyCommPathOrLink key, Set<InterfaceVehicleListener> vehicle_event_listeners) {
+        super(id,key,vehicle_event_listeners);
         this.waiting_for_lane_change = false;
     }
 
@@ -101,5 +110,9 @@ public class Vehicle extends AbstractVehicle {
         if(get_event_listeners()!=null)
             for(InterfaceVehicleListener ev : get_event_listeners())
                 ev.move_from_to_queue(timestamp,this,from_queue,to_queue);
+
+        // a sleeping lanegroup resumes releases
+        if(to_queue.type==Queue.Type.waiting)
+            to_queue.lanegroup.wake(timestamp);
     }
 }
@@ -11,7 +11,7 @@ import commodity.Subnetwork;
 import error.OTMErrorLog;
 import error.OTMException;
 import dispatch.Dispatcher;
-import dispatch.EventTimedWrite;
+import dispatch.InterfacePokable;
 import runner.RunParameters;
 import runner.Scenario;
 
@@ -19,7 +19,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
-public abstract class AbstractOutputTimed extends AbstractOutput {
+public abstract class AbstractOutputTimed extends AbstractOutput implements InterfacePokable {
 
     // timed output
     public float outDt;			// output frequency in seconds
@@ -118,10 +118,14 @@ public abstract class AbstractOutputTimed extends AbstractOutput {
 
     @Override
     public void register(RunParameters props, Dispatcher dispatcher) {
-        float start_time = props.start_time;
-        float end_time = props.start_time + props.duration;
-        for(float time=start_time ; time<=end_time ; time+=outDt )
-            dispatcher.register_event(new EventTimedWrite(dispatcher,time,this));
+        if(Float.isNaN(props.duration))
+            return;
+        dispatcher.register_periodic(this,props.start_time,outDt,2);
+    }
+
+    @Override
+    public void poke(Dispatcher dispatcher, float timestamp) throws OTMException {
+        write(timestamp,null);
     }
 
 }
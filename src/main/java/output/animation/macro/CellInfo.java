@@ -23,19 +23,22 @@ public class CellInfo {
     public CellInfo(Cell cell,int index){
         this.index = index;
 
+        Map<KeyCommPathOrLink,Double> veh_in_target = cell.get_veh_in_target();
+        Map<KeyCommPathOrLink,Double> veh_notin_target = cell.get_veh_notin_target();
+
         Set<KeyCommPathOrLink> keySet = new HashSet<>();
-        if(cell.veh_in_target!=null)
-            keySet.addAll(cell.veh_in_target.keySet());
-        if(cell.veh_notin_target!=null)
-            keySet.addAll(cell.veh_notin_target.keySet());
+        if(veh_in_target!=null)
+            keySet.addAll(veh_in_target.keySet());
+        if(veh_notin_target!=null)
+            keySet.addAll(veh_notin_target.keySet());
 
         comm_vehicles = new HashMap<>();
         for(KeyCommPathOrLink key : keySet){
             double val = 0d;
-            if(cell.veh_in_target!=null && cell.veh_in_target.containsKey(key))
-                val += cell.veh_in_target.get(key);
-            if(cell.veh_notin_target!=null && cell.veh_notin_target.containsKey(key))
-                val += cell.veh_notin_target.get(key);
+            if(veh_in_target!=null && veh_in_target.containsKey(key))
+                val += veh_in_target.get(key);
+            if(veh_notin_target!=null && veh_notin_target.containsKey(key))
+                val += veh_notin_target.get(key);
             comm_vehicles.put(key,val);
         }
     }
@@ -15,4 +15,6 @@ public interface InterfacePacketLaneGroup {
     void add_macro(KeyCommPathOrLink key, Double vehicles);
     void add_micro(KeyCommPathOrLink key, AbstractVehicle vehicle);
     AbstractPacketLaneGroup times(double x);
+    void add_scaled(AbstractPacketLaneGroup vp, double x);
+    void clear();
 }
@@ -11,8 +11,7 @@ import common.AbstractVehicle;
 import keys.KeyCommPathOrLink;
 import models.pq.Vehicle;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
@@ -22,8 +21,17 @@ public class PacketLink {
 
     // The packet arrives to a set of lanegroups
     public Set<AbstractLaneGroup> arrive_to_lanegroups;
-    public Set<AbstractVehicle> vehicles;
-    public Map<KeyCommPathOrLink,Double> state2vehicles;
+
+    // macro state: state_keys[i] carries amounts[i] vehicles, for i<num_states.
+    // The amounts are written with set_amounts, which keeps their total.
+    public KeyCommPathOrLink [] state_keys;
+    public double [] amounts;
+    public int num_states;
+    private double total;
+
+    // micro state: vehicles[i], for i<num_vehicles
+    public AbstractVehicle [] vehicles;
+    public int num_vehicles;
 
     // The packet may come with one of these. It is a default split among the
     // arrive_lane_groups. It is computed by the macro node model, and known to be a feasible solution
@@ -35,22 +43,55 @@ public class PacketLink {
 
     // empty constructor
     public PacketLink(Set<AbstractLaneGroup> arrive_to_lanegroups){
+        this(new KeyCommPathOrLink[0],arrive_to_lanegroups);
+    }
+
+    // macro constructor, with fixed states and zero amounts. The packet can be reused by
+    // setting new amounts, as is done for the road connections of the ctm node model.
+    public PacketLink(KeyCommPathOrLink [] state_keys, Set<AbstractLaneGroup> arrive_to_lanegroups){
         this.arrive_to_lanegroups = arrive_to_lanegroups;
-        this.state2vehicles = new HashMap<>();
-        this.vehicles = new HashSet<>();
+        this.state_keys = state_keys;
+        this.amounts = new double[state_keys.length];
+        this.num_states = state_keys.length;
+        this.vehicles = new AbstractVehicle[0];
     }
 
     // macro constructor
     public PacketLink(Map<KeyCommPathOrLink,Double> state2vehicles, Set<AbstractLaneGroup> arrive_to_lanegroups){
-        this.arrive_to_lanegroups = arrive_to_lanegroups;
-        this.state2vehicles = state2vehicles;
+        this(state2vehicles.keySet().toArray(new KeyCommPathOrLink[0]),arrive_to_lanegroups);
+        for(int i=0;i<num_states;i++)
+            amounts[i] = state2vehicles.get(state_keys[i]);
+        total = sum(amounts,0,num_states);
     }
 
     // single vehicle constructor
     public PacketLink(Vehicle vehicle, Set<AbstractLaneGroup> arrive_to_lanegroups){
         this.arrive_to_lanegroups = arrive_to_lanegroups;
-        this.vehicles = new HashSet<>();
-        this.vehicles.add(vehicle);
+        this.state_keys = new KeyCommPathOrLink[0];
+        this.amounts = new double[0];
+        this.vehicles = new AbstractVehicle[]{vehicle};
+        this.num_vehicles = 1;
+    }
+
+    /** Copy the amounts of all states from x, starting at offset. **/
+    public void set_amounts(double [] x, int offset){
+        System.arraycopy(x,offset,amounts,0,num_states);
+        total = sum(amounts,0,num_states);
+    }
+
+    public void clear_amounts(){
+        Arrays.fill(amounts,0,num_states,0d);
+        total = 0d;
+    }
+
+    public void add_vehicle(AbstractVehicle vehicle){
+        if(num_vehicles==vehicles.length)
+            vehicles = Arrays.copyOf(vehicles,Math.max(4,2*num_vehicles));
+        vehicles[num_vehicles++] = vehicle;
+    }
+
+    public double get_total_macro(){
+        return total;
     }
 
 //    public void set_nextlink_id(long nextlink_id){
@@ -77,11 +118,22 @@ public class PacketLink {
     }
 
     public boolean no_micro(){
-        return vehicles==null || vehicles.isEmpty();
+        return num_vehicles==0;
     }
 
     public boolean no_macro(){
-        return state2vehicles==null || state2vehicles.values().stream().mapToDouble(x->x).sum()==0d;
+        return total==0d;
+    }
+
+    ///////////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////////
+
+    private static double sum(double [] x,int from,int to){
+        double s = 0d;
+        for(int i=from;i<to;i++)
+            s += x[i];
+        return s;
     }
 
 }
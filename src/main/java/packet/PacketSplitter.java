@@ -7,10 +7,10 @@
 package packet;
 
 import commodity.Commodity;
-import commodity.Path;
 import common.*;
 import error.OTMErrorLog;
 import keys.KeyCommPathOrLink;
+import keys.StateRegistry;
 import utils.OTMUtils;
 
 import java.util.*;
@@ -22,6 +22,9 @@ public class PacketSplitter {
     public Map<Long,Set<AbstractLaneGroup>> outputlink_targetlanegroups;
     public Map<Long, SplitInfo> commodity2split;
 
+    // reused by split_packet
+    private final Map<Long, AbstractPacketLaneGroup> lanegroup_packets = new HashMap<>();
+
     //////////////////////////////////////////////////////////////
     // construction
     //////////////////////////////////////////////////////////////
@@ -65,10 +68,10 @@ public class PacketSplitter {
 //                    scenario.error_log.addError("link " + link.id + ": !target_lanegroup_splits.containsKey(commodity_id)");
 //                } else {
 //                    SplitInfo splitInfo = commodity2split.get(commodity.getId());
-//                    if (splitInfo == null || splitInfo.link_cumsplit == null)
+//                    if (splitInfo == null || splitInfo.outlink2split == null)
 //                        scenario.error_log.addError("missing splits on link " + link.getId() + " for commodity " + commodity.getId());
 //                    else {
-//                        Set<Long> info_links = splitInfo.link_cumsplit.stream().map(x -> x.link_id).collect(toSet());
+//                        Set<Long> info_links = splitInfo.outlink2split.keySet();
 //                        Set<Long> next_link_ids = comm_next_links.stream().map(x -> x.getId()).collect(toSet());
 //                        if (!info_links.equals(next_link_ids))
 //                            scenario.error_log.addError("!info_links.equals(next_link_ids)");
@@ -116,11 +119,14 @@ public class PacketSplitter {
     //////////////////////////////////////////////////////////////
 
     // split a packet according to downstream link.
-    // for pathfull commodities, the next link is trivial. For pathless, it is sampled from the split ratios
-    public Map<Long, AbstractPacketLaneGroup> split_packet(Class packet_class,PacketLink vp){
+    // for pathfull commodities, the next link is trivial. For pathless, it is sampled from the split ratios.
+    // The packets are taken from the link model's pool, and the returned map is only valid until the next call.
+    public Map<Long, AbstractPacketLaneGroup> split_packet(PacketLink vp){
+
+        StateRegistry states = link.network.scenario.state_registry;
 
         // initialize lanegroup_packets
-        Map<Long, AbstractPacketLaneGroup> lanegroup_packets = new HashMap<>();
+        lanegroup_packets.clear();
 
         boolean has_macro = !vp.no_macro();
         boolean has_micro = !vp.no_micro();
@@ -128,18 +134,18 @@ public class PacketSplitter {
         // process the macro state
         if(has_macro) {
 
-            for (Map.Entry<KeyCommPathOrLink, Double> e : vp.state2vehicles.entrySet()) {
+            for (int i=0;i<vp.num_states;i++) {
 
-                KeyCommPathOrLink key = e.getKey();
-                Double vehicles = e.getValue();
+                KeyCommPathOrLink key = vp.state_keys[i];
+                double vehicles = vp.amounts[i];
+                if(vehicles==0d)
+                    continue;
 
                 // pathfull case
                 if (key.isPath) {
 
-                    // TODO: Cache this
-                    Path path = (Path) link.network.scenario.subnetworks.get(key.pathOrlink_id);
-                    Long outlink_id = path.get_link_following(link).getId();
-                    add_to_lanegroup_packets(packet_class,lanegroup_packets,outlink_id,key,vehicles);
+                    Long outlink_id = link.get_next_link_on_path(key.pathOrlink_id).getId();
+                    add_to_lanegroup_packets(outlink_id,key,vehicles);
                 }
 
                 // pathless case
@@ -149,8 +155,8 @@ public class PacketSplitter {
 
                     if(splitinfo.sole_downstream_link!=null){
                         Long outlink_id = splitinfo.sole_downstream_link;
-                        add_to_lanegroup_packets(packet_class, lanegroup_packets, outlink_id,
-                                new KeyCommPathOrLink(key.commodity_id, outlink_id, false),
+                        add_to_lanegroup_packets(outlink_id,
+                                states.get(key.commodity_id, outlink_id, false),
                                 vehicles );
                     }
 
@@ -158,8 +164,8 @@ public class PacketSplitter {
                         for (Map.Entry<Long, Double> e2 : splitinfo.outlink2split.entrySet()) {
                             Long outlink_id = e2.getKey();
                             Double split = e2.getValue();
-                            add_to_lanegroup_packets(packet_class, lanegroup_packets, outlink_id,
-                                    new KeyCommPathOrLink(key.commodity_id, outlink_id, false),
+                            add_to_lanegroup_packets(outlink_id,
+                                    states.get(key.commodity_id, outlink_id, false),
                                     vehicles * split);
                         }
                     }
@@ -169,25 +175,24 @@ public class PacketSplitter {
 
         // process the micro state
         if(has_micro){
-            for(AbstractVehicle vehicle : vp.vehicles){
+            for(int i=0;i<vp.num_vehicles;i++){
 
+                AbstractVehicle vehicle = vp.vehicles[i];
                 KeyCommPathOrLink key = vehicle.get_key();
 
                 // pathfull case
                 Long outlink_id;
                 if(key.isPath){
-                    // TODO: Cache this
-                    Path path = (Path) link.network.scenario.subnetworks.get(key.pathOrlink_id);
-                    outlink_id = path.get_link_following(link).getId();
-                    add_to_lanegroup_packets(packet_class,lanegroup_packets,outlink_id,key,vehicle);
+                    outlink_id = link.get_next_link_on_path(key.pathOrlink_id).getId();
+                    add_to_lanegroup_packets(outlink_id,key,vehicle);
                 }
 
                 // pathless case
                 else {
-                    outlink_id = commodity2split.get(key.commodity_id).sample_output_link();
-                    vehicle.set_next_link_id(outlink_id);
-                    add_to_lanegroup_packets(packet_class,lanegroup_packets,outlink_id ,
-                            new KeyCommPathOrLink(key.commodity_id, outlink_id, false),
+                    outlink_id = commodity2split.get(key.commodity_id).sample_output_link(link.network.scenario.random_zero_to_one());
+                    vehicle.set_next_link_id(states,outlink_id);
+                    add_to_lanegroup_packets(outlink_id ,
+                            vehicle.get_key(),
                             vehicle);
                 }
             }
@@ -196,37 +201,32 @@ public class PacketSplitter {
         return lanegroup_packets;
     }
 
-    public static AbstractPacketLaneGroup cast_packet_null_splitter(Class packet_class,PacketLink vp,Long outlink_id){
+    public static AbstractPacketLaneGroup cast_packet_null_splitter(AbstractLinkModel model,PacketLink vp,Long outlink_id){
 
-        AbstractPacketLaneGroup split_packet;
-        try {
-            split_packet = (AbstractPacketLaneGroup) packet_class.newInstance();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            return null;
-        }
+        StateRegistry states = model.link.network.scenario.state_registry;
+        AbstractPacketLaneGroup split_packet = model.take_lanegroup_packet();
 
         boolean has_macro = !vp.no_macro();
         boolean has_micro = !vp.no_micro();
 
         // process the macro state
         if(has_macro) {
-            for (Map.Entry<KeyCommPathOrLink, Double> e : vp.state2vehicles.entrySet()) {
-                KeyCommPathOrLink key = e.getKey();
-                Double vehicles = e.getValue();
+            for (int i=0;i<vp.num_states;i++) {
+                KeyCommPathOrLink key = vp.state_keys[i];
+                double vehicles = vp.amounts[i];
+                if(vehicles==0d)
+                    continue;
                 if (key.isPath || outlink_id==null)  // null occurs for sinks
                     split_packet.add_macro(key,vehicles);
                 else
-                    split_packet.add_macro(new KeyCommPathOrLink(key.commodity_id, outlink_id, false),vehicles);
+                    split_packet.add_macro(states.get(key.commodity_id, outlink_id, false),vehicles);
             }
         }
 
         // process the micro state
         if(has_micro){
-            for(AbstractVehicle vehicle : vp.vehicles){
+            for(int i=0;i<vp.num_vehicles;i++){
+                AbstractVehicle vehicle = vp.vehicles[i];
                 KeyCommPathOrLink key = vehicle.get_key();
                 // NOTE: We do not update the next link id when it is null. This happens in
                 // sinks. This means that the state in a sink needs to be interpreted
@@ -234,8 +234,8 @@ public class PacketSplitter {
                 if(key.isPath || outlink_id==null)
                     split_packet.add_micro(key,vehicle);
                 else {
-                    vehicle.set_next_link_id(outlink_id);
-                    split_packet.add_micro(new KeyCommPathOrLink(key.commodity_id, outlink_id, false),vehicle);
+                    vehicle.set_next_link_id(states,outlink_id);
+                    split_packet.add_micro(vehicle.get_key(),vehicle);
                 }
             }
         }
@@ -252,13 +252,11 @@ public class PacketSplitter {
         // get next link id
         Long outlink_id;
         if(key.isPath) {
-            // TODO: Cache this
-            Path path = (Path) link.network.scenario.subnetworks.get(key.pathOrlink_id);
-            outlink_id = path.get_link_following(link).getId();
+            outlink_id = link.get_next_link_on_path(key.pathOrlink_id).getId();
         }
         // otherwise use split ratios
         else {
-            outlink_id = commodity2split.get(key.commodity_id).sample_output_link();
+            outlink_id = commodity2split.get(key.commodity_id).sample_output_link(link.network.scenario.random_zero_to_one());
         }
         return outlink_id;
     }
@@ -274,38 +272,22 @@ public class PacketSplitter {
     // private
     //////////////////////////////////////////////////////////////
 
-    private static void add_to_lanegroup_packets(Class packet_class,Map<Long, AbstractPacketLaneGroup> lanegroup_packets,Long outlink_id,KeyCommPathOrLink key,Double vehicles){
-        try {
-            AbstractPacketLaneGroup split_packet;
-            if(lanegroup_packets.containsKey(outlink_id)){
-                split_packet = lanegroup_packets.get(outlink_id);
-            } else {
-                split_packet = (AbstractPacketLaneGroup) packet_class.newInstance();
-                lanegroup_packets.put(outlink_id,split_packet);
-            }
-            split_packet.add_macro(key,vehicles);
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
+    private void add_to_lanegroup_packets(Long outlink_id,KeyCommPathOrLink key,Double vehicles){
+        AbstractPacketLaneGroup split_packet = lanegroup_packets.get(outlink_id);
+        if(split_packet==null){
+            split_packet = link.model.take_lanegroup_packet();
+            lanegroup_packets.put(outlink_id,split_packet);
         }
+        split_packet.add_macro(key,vehicles);
     }
 
-    private static void add_to_lanegroup_packets(Class packet_class,Map<Long, AbstractPacketLaneGroup> lanegroup_packets,Long outlink_id,KeyCommPathOrLink key,AbstractVehicle vehicle){
-        try {
-            AbstractPacketLaneGroup split_packet;
-            if(lanegroup_packets.containsKey(outlink_id)){
-                split_packet = lanegroup_packets.get(outlink_id);
-            } else {
-                split_packet = (AbstractPacketLaneGroup) packet_class.newInstance();
-                lanegroup_packets.put(outlink_id,split_packet);
-            }
-            split_packet.add_micro(key,vehicle);
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
+    private void add_to_lanegroup_packets(Long outlink_id,KeyCommPathOrLink key,AbstractVehicle vehicle){
+        AbstractPacketLaneGroup split_packet = lanegroup_packets.get(outlink_id);
+        if(split_packet==null){
+            split_packet = link.model.take_lanegroup_packet();
+            lanegroup_packets.put(outlink_id,split_packet);
         }
+        split_packet.add_micro(key,vehicle);
     }
 
 }
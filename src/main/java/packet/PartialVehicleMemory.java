@@ -8,6 +8,7 @@ package packet;
 
 import keys.KeyCommPathOrLink;
 import models.pq.Vehicle;
+import runner.Scenario;
 
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,7 +31,7 @@ public class PartialVehicleMemory {
     // public
     ////////////////////////////////////////////////////////////
 
-    public Set<Vehicle> process_packet(PartialVehicleMemory packet_pvm){
+    public Set<Vehicle> process_packet(Scenario scenario,PartialVehicleMemory packet_pvm){
 
         Set<Vehicle> vehicles = new HashSet<>();
 
@@ -42,7 +43,7 @@ public class PartialVehicleMemory {
                 int num_veh = (int) value;
                 remainder.put(key,value - num_veh);
                 for(int i=0;i<num_veh;i++)
-                    vehicles.add(new Vehicle(key,null));
+                    vehicles.add(new Vehicle(scenario.get_vehicle_id(),key,null));
             }
             else
                 remainder.put(key,value);
@@ -21,9 +21,9 @@ import java.util.Map;
 
 public class PluginLoader {
 
-    public static Map<String,Class<?>> loaded_plugins = new HashMap<>();
+    public Map<String,Class<?>> loaded_plugins = new HashMap<>();
 
-    public static void load_plugins( jaxb.Plugins plugins ) {
+    public void load_plugins( jaxb.Plugins plugins ) {
 
         if(plugins==null)
             return;
@@ -43,7 +43,7 @@ public class PluginLoader {
         }
     }
 
-    public static AbstractController get_controller_instance(String plugin_name, Scenario scenario, jaxb.Controller jaxb_controller) throws OTMException {
+    public AbstractController get_controller_instance(String plugin_name, Scenario scenario, jaxb.Controller jaxb_controller) throws OTMException {
 //        try {
 
 
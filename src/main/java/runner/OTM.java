@@ -7,9 +7,8 @@
 package runner;
 
 import api.API;
+import common.Network;
 import dispatch.Dispatcher;
-import dispatch.EventMacroFlowUpdate;
-import dispatch.EventMacroStateUpdate;
 import dispatch.EventStopSimulation;
 import error.OTMException;
 import jaxb.OutputRequests;
@@ -35,8 +34,6 @@ import java.util.Set;
 
 public class OTM {
 
-    private static Dispatcher dispatcher;
-
     public static void main(String[] args) {
 
         if (0 == args.length) {
@@ -164,7 +161,11 @@ public class OTM {
 
     public static void run(Scenario scenario,RunParameters runParams) throws OTMException {
         initialize(scenario,runParams);
-        advance(scenario,runParams.duration);
+        try {
+            advance(scenario,runParams.duration);
+        } finally {
+            scenario.network.shutdown_macro_workers();
+        }
         scenario.is_initialized = false;
     }
 
@@ -176,7 +177,8 @@ public class OTM {
     public static void initialize(Scenario scenario,RunParameters runParams) throws OTMException {
 
         // build and attach dispatcher
-        dispatcher = new Dispatcher(runParams.start_time);
+        Dispatcher.QueueType queue_type = runParams.event_queue!=null ? runParams.event_queue : scenario.get_event_queue_type();
+        Dispatcher dispatcher = new Dispatcher(runParams.start_time,queue_type);
 
         // append outputs from output request file ..................
         if(runParams.output_requests_file!=null && !runParams.output_requests_file.isEmpty()) {
@@ -190,6 +192,7 @@ public class OTM {
 
     public static void advance(Scenario scenario,float duration) throws OTMException {
 
+        Dispatcher dispatcher = scenario.dispatcher;
         dispatcher.set_continue_simulation(true);
 
         float now = dispatcher.current_time;
@@ -198,10 +201,21 @@ public class OTM {
         dispatcher.set_stop_time(now+duration);
         dispatcher.register_event(new EventStopSimulation(scenario,dispatcher,now+duration));
 
-        // register first models.ctm clock tick
-        if(!scenario.network.macro_link_models.isEmpty()) {
-            dispatcher.register_event(new EventMacroFlowUpdate(dispatcher, now + scenario.sim_dt, scenario.network));
-            dispatcher.register_event(new EventMacroStateUpdate(dispatcher, now + scenario.sim_dt, scenario.network));
+        // clear clock ticks from a previous advance
+        Network network = scenario.network;
+        dispatcher.remove_periodic(network.macro_flow_update);
+        dispatcher.remove_periodic(network.macro_state_update);
+
+        // fixed step loop for macroscopic scenarios
+        if(scenario.is_macro_fixed_step() && network.is_macro_only()){
+            advance_fixed_step(scenario,now);
+            return;
+        }
+
+        // register models.ctm clock ticks
+        if(!network.macro_link_models.isEmpty()) {
+            dispatcher.register_periodic(network.macro_flow_update, now + scenario.sim_dt, scenario.sim_dt, 1);
+            dispatcher.register_periodic(network.macro_state_update, now + scenario.sim_dt, scenario.sim_dt, 4);
         }
 
         // process all events
@@ -209,6 +223,37 @@ public class OTM {
 
     }
 
+    /**
+     * Run the macroscopic updates in a loop, at the same timestamps and in the same order
+     * (with respect to other events) as the periodic flow (order 1) and state (order 4) updates.
+     * The dispatcher is used only for the remaining events.
+     */
+    private static void advance_fixed_step(Scenario scenario,float now) throws OTMException {
+
+        Dispatcher dispatcher = scenario.dispatcher;
+        Network network = scenario.network;
+        float timestamp = now + scenario.sim_dt;
+
+        while(timestamp<=dispatcher.stop_time && dispatcher.get_continue_simulation()){
+
+            // events up to the flow update (dispatch order 1)
+            dispatcher.dispatch_events_to(timestamp,1);
+            dispatcher.current_time = timestamp;
+
+            network.update_macro_flow(timestamp);
+
+            // timed writes and stop (dispatch orders 2 and 3)
+            dispatcher.dispatch_events_to(timestamp,3);
+
+            network.update_macro_state(timestamp);
+
+            timestamp += scenario.sim_dt;
+        }
+
+        // events after the last tick
+        dispatcher.dispatch_events_to_stop();
+    }
+
     ///////////////////////////////////////////////////
     // static
     ///////////////////////////////////////////////////
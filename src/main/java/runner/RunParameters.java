@@ -6,6 +6,7 @@
  */
 package runner;
 
+import dispatch.Dispatcher;
 import error.OTMErrorLog;
 import error.OTMException;
 
@@ -22,6 +23,7 @@ public class RunParameters {
     public String output_folder;
     public float start_time;      // seconds after midnight
     public float duration;        // seconds
+    public Dispatcher.QueueType event_queue;     // null -> scenario default
 
     public RunParameters(String prefix,String output_requests_file,String output_folder,float start_time,float duration){
         this.prefix = prefix;
@@ -62,6 +64,7 @@ public class RunParameters {
 //        sim_dt = properties.getProperty("SIM_DT") == null ? 0 : Integer.parseInt(properties.getProperty("SIM_DT"));
         start_time = Integer.parseInt(properties.getProperty("START_TIME", "0"));
         duration = Integer.parseInt(properties.getProperty("DURATION", "86400"));
+        event_queue = properties.getProperty("EVENT_QUEUE") == null ? null : Dispatcher.QueueType.valueOf(properties.getProperty("EVENT_QUEUE"));
 //        verbose = Boolean.parseBoolean(properties.getProperty("VERBOSE", "false"));
     }
 
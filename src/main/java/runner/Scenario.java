@@ -19,7 +19,9 @@ import common.Network;
 import jaxb.Split;
 import keys.KeyCommodityDemandTypeId;
 import keys.KeyCommodityLink;
+import keys.StateRegistry;
 import output.AbstractOutput;
+import plugin.PluginLoader;
 import profiles.*;
 import sensor.AbstractSensor;
 import utils.OTMUtils;
@@ -55,6 +57,36 @@ public class Scenario {
     // process type
     private StochasticProcess stochastic_process;
 
+    // event queue used by the dispatcher
+    private Dispatcher.QueueType event_queue_type;
+
+    // run macroscopic updates in a fixed step loop when all links are macroscopic
+    private boolean macro_fixed_step;
+
+    // number of threads for the macroscopic update
+    private int macro_threads;
+
+    // multi-rate ctm: longest step of a macroscopic link, in multiples of sim_dt
+    private int macro_max_period;
+
+    // ctm: fraction of the free space in a cell that lane changes may fill in one step.
+    // NaN selects the default, 0.5*(1-wspeed_norm) of each lanegroup.
+    private float ctm_lane_change_xi;
+
+    // point queue: promote vehicles from transit to waiting lazily instead of with one event each
+    private boolean pq_lazy_transit;
+
+    // id generators and random numbers. These belong to the scenario so that
+    // several scenarios may be loaded and run independently in one JVM.
+    private long lanegroup_id_count;
+    private long vehicle_id_count;
+    private Random random;
+
+    public PluginLoader plugin_loader;
+
+    // interned state keys
+    public StateRegistry state_registry;
+
     ///////////////////////////////////////////////////
     // construction
     ///////////////////////////////////////////////////
@@ -62,7 +94,24 @@ public class Scenario {
     public Scenario(float sim_dt){
         this.sim_dt = sim_dt;
         this.is_initialized = false;
+        this.lanegroup_id_count = 0L;
+        this.plugin_loader = new PluginLoader();
+        this.state_registry = new StateRegistry();
+        reset_settings();
+    }
+
+    /** Restore the run settings, vehicle ids and random numbers to those of a new scenario.
+     * Used with ScenarioFactory.configure_scenario to run another member on the same network. **/
+    public void reset_settings(){
         this.stochastic_process = StochasticProcess.poisson;
+        this.event_queue_type = Dispatcher.QueueType.heap;
+        this.macro_fixed_step = true;
+        this.macro_threads = 1;
+        this.macro_max_period = 1;
+        this.ctm_lane_change_xi = Float.NaN;
+        this.pq_lazy_transit = false;
+        this.vehicle_id_count = 0L;
+        this.random = new Random();
     }
 
     public OTMErrorLog validate(){
@@ -309,10 +358,67 @@ public class Scenario {
             this.stochastic_process = stochastic_process;
     }
 
+    public void set_event_queue_type(Dispatcher.QueueType event_queue_type){
+        if(event_queue_type!=null)
+            this.event_queue_type = event_queue_type;
+    }
+
+    public void set_macro_fixed_step(boolean macro_fixed_step){
+        this.macro_fixed_step = macro_fixed_step;
+    }
+
+    public void set_macro_threads(int macro_threads){
+        this.macro_threads = Math.max(1,macro_threads);
+    }
+
+    public void set_macro_max_period(int macro_max_period){
+        this.macro_max_period = Math.max(1,macro_max_period);
+    }
+
+    public void set_ctm_lane_change_xi(float ctm_lane_change_xi){
+        this.ctm_lane_change_xi = ctm_lane_change_xi;
+    }
+
+    public void set_pq_lazy_transit(boolean pq_lazy_transit){
+        this.pq_lazy_transit = pq_lazy_transit;
+    }
+
+    public void set_random_seed(long seed){
+        random.setSeed(seed);
+    }
+
     ///////////////////////////////////////////////////
     // get
     ///////////////////////////////////////////////////
 
+    public boolean is_macro_fixed_step(){
+        return macro_fixed_step;
+    }
+
+    public int get_macro_threads(){
+        return macro_threads;
+    }
+
+    public int get_macro_max_period(){
+        return macro_max_period;
+    }
+
+    public float get_ctm_lane_change_xi(){
+        return ctm_lane_change_xi;
+    }
+
+    public StochasticProcess get_stochastic_process(){
+        return stochastic_process;
+    }
+
+    public boolean is_pq_lazy_transit(){
+        return pq_lazy_transit;
+    }
+
+    public Dispatcher.QueueType get_event_queue_type(){
+        return event_queue_type;
+    }
+
     public float get_current_time(){
         return dispatcher.current_time;
     }
@@ -368,7 +474,31 @@ public class Scenario {
     }
 
     public Float get_waiting_time(double rate){
-        return OTMUtils.get_waiting_time(rate,stochastic_process);
+        if(rate<=0d)
+            return null;
+        switch(stochastic_process){
+            case poisson:
+                return (float) (-Math.log(1d-random.nextDouble()) / rate);
+            case deterministic:
+                return (float) (1d / rate);
+        }
+        return null;
+    }
+
+    ///////////////////////////////////////////////////
+    // ids and random numbers
+    ///////////////////////////////////////////////////
+
+    public long get_lanegroup_id(){
+        return lanegroup_id_count++;
+    }
+
+    public long get_vehicle_id(){
+        return vehicle_id_count++;
+    }
+
+    public double random_zero_to_one(){
+        return random.nextDouble();
     }
 
 }
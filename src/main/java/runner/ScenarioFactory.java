@@ -24,7 +24,6 @@ import keys.DemandType;
 import keys.KeyCommodityDemandTypeId;
 import keys.KeyCommodityLink;
 import packet.PacketSplitter;
-import plugin.PluginLoader;
 import profiles.*;
 import sensor.AbstractSensor;
 import sensor.FixedSensor;
@@ -48,16 +47,34 @@ public class ScenarioFactory {
 
     public static runner.Scenario create_scenario(jaxb.Scenario js, float sim_dt, boolean validate,String global_model) throws OTMException {
 
-        OTMUtils.reset_counters();
-
-        Scenario scenario = new Scenario(sim_dt);
-
         // process global model
         if(global_model!=null)
             set_global_model(js,global_model);
 
+        Scenario scenario = create_topology(js,sim_dt);
+        configure_scenario(scenario,js);
+
+        // validate ................................................
+        if(validate) {
+            OTMErrorLog errorLog = scenario.validate();
+            errorLog.check();
+        }
+
+        return scenario;
+    }
+
+    /**
+     * Build the network, subnetworks and commodities of a scenario, without demands,
+     * splits, actuators, sensors or controllers. The configuration is only read, so several
+     * topologies may be built from one configuration. Complete the scenario with
+     * configure_scenario. Traffic state is allocated later, by Scenario.initialize.
+     */
+    public static runner.Scenario create_topology(jaxb.Scenario js, float sim_dt) throws OTMException {
+
+        Scenario scenario = new Scenario(sim_dt);
+
         // plugins ..........................................................
-        PluginLoader.load_plugins( js.getPlugins() );
+        scenario.plugin_loader.load_plugins( js.getPlugins() );
 
         // common ...........................................................
         scenario.network = ScenarioFactory.create_network_from_jaxb(
@@ -65,20 +82,6 @@ public class ScenarioFactory {
                 js.getNetwork() ,
                 js.getModel() );
 
-        // actuators & sensors ...............................................
-        scenario.actuators = ScenarioFactory.create_actuators_from_jaxb(
-                scenario,
-                js.getActuators() );
-
-        scenario.sensors = ScenarioFactory.create_sensors_from_jaxb(
-                scenario,
-                js.getSensors() );
-
-        // controllers ......................................................
-        scenario.controllers = ScenarioFactory.create_controllers_from_jaxb(
-                scenario,
-                js.getControllers() );
-
         // commodities ......................................................
         scenario.subnetworks = ScenarioFactory.create_subnetworks_from_jaxb(
                 scenario.network,
@@ -100,22 +103,63 @@ public class ScenarioFactory {
         for (Node node : scenario.network.nodes.values())
             node.set_commodities();
 
-        // populate link.path2outlink and lanegroup.path2roadconnections
+        // next link tables of the links on used paths
         Set<Subnetwork> used_paths = scenario.commodities.values().stream()
                 .filter(c->c.pathfull)
                 .map(c->c.subnetworks)
                 .flatMap(c->c.stream())
                 .collect(toSet());
 
+        Map<Link,Map<Long,Link>> path2nextlink = new HashMap<>();
         for(Subnetwork subnet : used_paths){
             if(!subnet.is_path)
                 continue; // this should not happen. They should all be paths
             Path path = (Path) subnet;
-            for(Link link : path.links){
-                Link next_link = path.get_link_following(link);
-                link.path2outlink.put(path.getId(),next_link==null?null:next_link.getId());
+            List<Link> links = path.ordered_links;
+            for(int i=0;i<links.size();i++){
+                Link next_link = i+1<links.size() ? links.get(i+1) : null;
+                path2nextlink.computeIfAbsent(links.get(i),x->new HashMap<>()).put(path.getId(),next_link);
             }
         }
+        for(Map.Entry<Link,Map<Long,Link>> e : path2nextlink.entrySet())
+            e.getKey().set_path_next_links(e.getValue());
+
+        return scenario;
+    }
+
+    /**
+     * Set the demands, splits, actuators, sensors and controllers of a scenario built with
+     * create_topology, as given in the configuration. Anything set on the scenario by a
+     * previous call, through the API, or by a previous run (outputs, run settings) is
+     * discarded, so one topology can be configured and run many times.
+     */
+    public static void configure_scenario(Scenario scenario,jaxb.Scenario js) throws OTMException {
+
+        // clear the previous configuration ................................
+        scenario.reset_settings();
+        scenario.outputs = new HashSet<>();
+        for(Link link : scenario.network.links.values()) {
+            link.sources = new HashSet<>();
+            link.travel_timers = new HashSet<>();
+        }
+        for(Node node : scenario.network.nodes.values()) {
+            node.splits = null;
+            node.actuator = null;
+        }
+
+        // actuators & sensors ...............................................
+        scenario.actuators = ScenarioFactory.create_actuators_from_jaxb(
+                scenario,
+                js.getActuators() );
+
+        scenario.sensors = ScenarioFactory.create_sensors_from_jaxb(
+                scenario,
+                js.getSensors() );
+
+        // controllers ......................................................
+        scenario.controllers = ScenarioFactory.create_controllers_from_jaxb(
+                scenario,
+                js.getControllers() );
 
         // branders ........................................................
         // build branders for non-sink non-one2one links
@@ -151,20 +195,10 @@ public class ScenarioFactory {
 //                        c.set_vehicle_event_listener(ev);
 //            }
 //        }
-
-        // validate ................................................
-        if(validate) {
-            OTMErrorLog errorLog = scenario.validate();
-            errorLog.check();
-        }
-
-        return scenario;
     }
 
     public static runner.Scenario create_scenario_for_static_traffic_assignment(jaxb.Scenario js) throws OTMException {
 
-        OTMUtils.reset_counters();
-
         Scenario scenario = new Scenario(Float.NaN);
 
         // common ...........................................................
@@ -323,7 +357,7 @@ public class ScenarioFactory {
                 default:
 
                     // it might be a plugin
-                    controller = PluginLoader.get_controller_instance(controller_type,scenario,jaxb_controller);
+                    controller = scenario.plugin_loader.get_controller_instance(controller_type,scenario,jaxb_controller);
                     break;
             }
             controllers.put(jaxb_controller.getId(),controller);
@@ -7,7 +7,6 @@
 package sensor;
 
 import dispatch.Dispatcher;
-import dispatch.EventPoke;
 import dispatch.InterfacePokable;
 import error.OTMErrorLog;
 import error.OTMException;
@@ -56,9 +55,9 @@ public abstract class AbstractSensor implements InterfacePokable, InterfaceScena
     public void poke(Dispatcher dispatcher, float timestamp) throws OTMException {
         take_measurement(dispatcher,timestamp);
 
-        // wake up in dt, if dt is defined
+        // wake up every dt, if dt is defined
         if(dt>0)
-            dispatcher.register_event(new EventPoke(dispatcher,1,timestamp+dt,this));
+            dispatcher.register_periodic(this,timestamp+dt,dt,1);
     }
 
     /////////////////////////////////////////////////////////////////////
@@ -7,32 +7,44 @@ import java.util.Map;
 
 public class FlowAccumulator {
 
-    public Map<KeyCommPathOrLink,Double> count = new HashMap<>();     // key -> count
+    // key -> count. The count is held in a one-element array so that
+    // incrementing an existing key does not allocate.
+    public Map<KeyCommPathOrLink,double[]> count = new HashMap<>();
 
     public void reset(){
-        count = new HashMap<>();
+        for(double [] x : count.values())
+            x[0] = 0d;
     }
 
     public void add_key(KeyCommPathOrLink key){
         if(!count.containsKey(key))
-            count.put(key,0d);
+            count.put(key,new double[1]);
     }
 
-    public void increment(KeyCommPathOrLink key, Double x){
-        if(x.isNaN())
+    public void increment(KeyCommPathOrLink key, double x){
+        if(Double.isNaN(x))
             return;
-        count.put(key,x + (count.containsKey(key)?count.get(key):0d));
+        double [] c = count.get(key);
+        if(c==null) {
+            c = new double[1];
+            count.put(key, c);
+        }
+        c[0] += x;
     }
 
     public double get_total_count(){
-        return count.values().stream().mapToDouble(x->x).sum();
+        double sum = 0d;
+        for(double [] x : count.values())
+            sum += x[0];
+        return sum;
     }
 
     public double get_count_for_commodity(Long comm_id){
-        return count.entrySet().stream()
-                .filter(x->x.getKey().commodity_id==comm_id)
-                .mapToDouble(x->x.getValue())
-                .sum();
+        double sum = 0d;
+        for(Map.Entry<KeyCommPathOrLink,double[]> e : count.entrySet())
+            if(e.getKey().commodity_id==comm_id)
+                sum += e.getValue()[0];
+        return sum;
     }
 
 }
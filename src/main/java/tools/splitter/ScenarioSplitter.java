@@ -35,12 +35,12 @@ import java.util.stream.Collectors;
 
 public class ScenarioSplitter {
 
-    public static APIopen api;
-    public static Set<SplitNode> split_nodes;
-    public static Set<Long> boundary_nodes = new HashSet<>();
-    public static Set<Long> boundary_links = new HashSet<>();
-    public static Set<Long> unplaced_nodes = new HashSet<>();
-    public static Set<Long> unplaced_links = new HashSet<>();
+    public APIopen api;
+    public Set<SplitNode> split_nodes;
+    public Set<Long> boundary_nodes = new HashSet<>();
+    public Set<Long> boundary_links = new HashSet<>();
+    public Set<Long> unplaced_nodes = new HashSet<>();
+    public Set<Long> unplaced_links = new HashSet<>();
 
     //////////////////////////////////////////////////
     public static void main(String [] args) {
@@ -51,20 +51,21 @@ public class ScenarioSplitter {
         // read the scenario
         float sim_dt = 0.5f;
         try {
-            api = new APIopen(OTM.load(cfg.config, sim_dt));
+            ScenarioSplitter splitter = new ScenarioSplitter();
+            splitter.api = new APIopen(OTM.load(cfg.config, sim_dt));
 
-            to_metis(api.scenario(),
+            to_metis(splitter.api.scenario(),
                     "C:\\Users\\gomes\\code\\beats\\metisfile.txt",
                     "C:\\Users\\gomes\\code\\beats\\nodemap.txt");
 
-//            split_nodes = cfg.split_nodes;
+//            splitter.split_nodes = cfg.split_nodes;
 //
 //            // split into two graphs (name->graph)
-//            Map<String,Graph> graphs = split_into_graphs();
+//            Map<String,Graph> graphs = splitter.split_into_graphs();
 //
 //            // graph->scenario and scenario->xml
 //            for(Graph graph : graphs.values()){
-//                jaxb.Scenario jsc = to_jaxb(graph,api.scenario());
+//                jaxb.Scenario jsc = to_jaxb(graph,splitter.api.scenario());
 //                jsc.setSensors(null);       // remove sensors, we don't care about sensors
 //                to_xml(jsc,graph.name);
 //            }
@@ -470,7 +471,7 @@ public class ScenarioSplitter {
     // private
     /////////////////////////////////////////////////////////////////////////////////////
 
-    private static Map<String,Graph> split_into_graphs() throws OTMException {
+    private Map<String,Graph> split_into_graphs() throws OTMException {
 
         Map<String, Graph> graphs = new HashMap<>();
 
@@ -545,7 +546,7 @@ public class ScenarioSplitter {
         return graphs;
     }
 
-    private static void grow_graph(Long curr_link_id, Graph graph) {
+    private void grow_graph(Long curr_link_id, Graph graph) {
 
         if (boundary_links.contains(curr_link_id))
             return;
@@ -580,7 +581,7 @@ public class ScenarioSplitter {
         }
     }
 
-    private static Long get_internal_link(Long blink_id, SplitNode splitNode, Graph g) {
+    private Long get_internal_link(Long blink_id, SplitNode splitNode, Graph g) {
 
         Link blink = api.scenario().network.links.get(blink_id);
         Long start_node = blink.start_node.getId();
@@ -599,7 +600,7 @@ public class ScenarioSplitter {
     // classes
     /////////////////////////////////////////////////////////////////////////////////////
 
-    public static class Graph {
+    public class Graph {
         public String name;
         public Set<Long> nodes = new HashSet<>();
         public List<Long> links = new ArrayList<>();
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package models.ctm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Cell kernel using the Java 17+ vector api. Lane-wise operations round exactly as the
+ * scalar ones, so both kernels give identical results.
+ */
+public class VectorCellKernel implements InterfaceCellKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public VectorCellKernel(){
+        // fail here, and fall back to the scalar kernel, if the module is not available
+        DoubleVector.zero(SPECIES);
+    }
+
+    @Override
+    public void scale(double [] x,int from,double a,double [] y,int to,int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for(;i<bound;i+=SPECIES.length())
+            DoubleVector.fromArray(SPECIES,x,from+i).mul(a).intoArray(y,to+i);
+        for(;i<n;i++)
+            y[to+i] = x[from+i] * a;
+    }
+
+    @Override
+    public void scale_rows(double [] x,int from,double [] a,double [] y,int to,int rows,int w) {
+
+        // one state per cell: element-wise product over the whole array
+        if(w==1) {
+            int i = 0;
+            int bound = SPECIES.loopBound(rows);
+            for (; i<bound; i+=SPECIES.length())
+                DoubleVector.fromArray(SPECIES,x,from+i)
+                        .mul(DoubleVector.fromArray(SPECIES,a,i))
+                        .intoArray(y,to+i);
+            for (; i<rows; i++)
+                y[to+i] = x[from+i] * a[i];
+            return;
+        }
+
+        // rows at least one vector wide are vectorized along the row, narrower rows are not
+        int bound = SPECIES.loopBound(w);
+        for(int i=0;i<rows;i++) {
+            double ai = a[i];
+            int o = i*w;
+            int q = 0;
+            for (; q<bound; q+=SPECIES.length())
+                DoubleVector.fromArray(SPECIES,x,from+o+q).mul(ai).intoArray(y,to+o+q);
+            for (; q<w; q++)
+                y[to+o+q] = x[from+o+q] * ai;
+        }
+    }
+
+    @Override
+    public void advance(double [] veh,double [] flow,int shift,int n) {
+        int i = 0;
+        int bound = SPECIES.loopBound(n);
+        for(;i<bound;i+=SPECIES.length())
+            DoubleVector.fromArray(SPECIES,veh,i)
+                    .add(DoubleVector.fromArray(SPECIES,flow,i))
+                    .sub(DoubleVector.fromArray(SPECIES,flow,i+shift))
+                    .intoArray(veh,i);
+        for(;i<n;i++) {
+            veh[i] += flow[i];
+            veh[i] -= flow[i+shift];
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector" + SPECIES.length();
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import api.API;
+import api.APIopen;
+import common.Network;
+import error.OTMException;
+import org.junit.Test;
+import runner.OTM;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/** A steady-state macroscopic tick (Network.update_macro_flow and update_macro_state),
+ * including the node model and the packet exchange, allocates nothing. **/
+public class TestAllocation {
+
+    @Test
+    public void test_ctm_tick_is_allocation_free() {
+        try {
+
+            float sim_dt = 2f;
+            API api = OTM.load_test("onramp_offramp_1",sim_dt,true,"ctm");
+            api.initialize(0f);
+
+            // reach a loaded state
+            api.advance(600f);
+
+            ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mx;
+            assumeTrue(bean.isThreadAllocatedMemorySupported());
+            bean.setThreadAllocatedMemoryEnabled(true);
+            long tid = Thread.currentThread().getId();
+
+            Network network = new APIopen(api).scenario().network;
+            assertTrue(network.macro_internal_nodes.stream().allMatch(node->node.node_model.has_exchange_table()));
+
+            // let the compiler settle
+            float time = 600f;
+            for(int k=0;k<20000;k++) {
+                time += sim_dt;
+                network.update_macro_flow(time);
+                network.update_macro_state(time);
+            }
+
+            // overhead of the measurement itself
+            long a = bean.getThreadAllocatedBytes(tid);
+            long b = bean.getThreadAllocatedBytes(tid);
+            long overhead = b-a;
+
+            long allocated = 0L;
+            for(int k=0;k<1000;k++) {
+                time += sim_dt;
+                long before = bean.getThreadAllocatedBytes(tid);
+                network.update_macro_flow(time);
+                network.update_macro_state(time);
+                allocated += Math.max(0L,bean.getThreadAllocatedBytes(tid)-before-overhead);
+            }
+
+            assertEquals(0L,allocated);
+
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import dispatch.*;
+import error.OTMException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDispatcher {
+
+    @Test
+    public void test_calendar_queue_order(){
+
+        Dispatcher dispatcher = new Dispatcher(0f);
+        InterfaceEventQueue heap = new EventQueueHeap();
+        InterfaceEventQueue calendar = new EventQueueCalendar();
+        Random random = new Random(1);
+
+        // hold model: keep a few thousand pending events, replace each extracted one
+        float now = 0f;
+        for(int i=0;i<5000;i++){
+            TestEvent e = new TestEvent(dispatcher,0,now + (float) (10d*random.nextDouble()),null);
+            heap.offer(e);
+            calendar.offer(e);
+        }
+        for(int i=0;i<100000;i++){
+            AbstractEvent e1 = heap.poll();
+            AbstractEvent e2 = calendar.poll();
+            assertEquals(e1.timestamp,e2.timestamp,0d);
+            assertTrue(e2.timestamp>=now);
+            now = e2.timestamp;
+            if(i<50000) {
+                // mix of near future, coincident and far future timestamps
+                float dt = i%100==0 ? 1000f : (i%7==0 ? 0f : (float) (2d*random.nextDouble()));
+                TestEvent e = new TestEvent(dispatcher, 0, now + dt, null);
+                heap.offer(e);
+                calendar.offer(e);
+            }
+            assertEquals(heap.size(),calendar.size());
+            if(heap.isEmpty())
+                break;
+        }
+        assertTrue(calendar.isEmpty());
+        assertEquals(null,calendar.poll());
+    }
+
+    @Test
+    public void test_dispatch_order() throws OTMException {
+        for(Dispatcher.QueueType type : Dispatcher.QueueType.values()){
+            Dispatcher dispatcher = new Dispatcher(0f,type);
+            dispatcher.initialize(0f);
+            List<String> log = new ArrayList<>();
+            dispatcher.register_event(new TestEvent(dispatcher,2,5f,"c",log));
+            dispatcher.register_event(new TestEvent(dispatcher,0,5f,"b",log));
+            dispatcher.register_event(new TestEvent(dispatcher,3,1f,"a",log));
+            dispatcher.register_event(new TestEvent(dispatcher,0,9f,"d",log));
+            for(int i=0;i<1000;i++)
+                dispatcher.register_event(new TestEvent(dispatcher,1,10f,String.valueOf(i),log));
+            dispatcher.dispatch_events_to_stop();
+            assertEquals("[a, b, c, d]",log.subList(0,4).toString());
+
+            // ties are dispatched in registration order
+            for(int i=0;i<1000;i++)
+                assertEquals(String.valueOf(i),log.get(4+i));
+        }
+    }
+
+    @Test
+    public void test_dispatch_to() throws OTMException {
+        Dispatcher dispatcher = new Dispatcher(0f);
+        dispatcher.initialize(0f);
+        List<String> log = new ArrayList<>();
+        dispatcher.register_event(new TestEvent(dispatcher,0,1f,"a",log));
+        dispatcher.register_event(new TestEvent(dispatcher,4,2f,"d",log));
+        dispatcher.register_event(new TestEvent(dispatcher,1,2f,"b",log));
+        dispatcher.register_event(new TestEvent(dispatcher,2,2f,"c",log));
+
+        dispatcher.dispatch_events_to(2f,1);
+        assertEquals("[a, b]",log.toString());
+        assertEquals(2f,dispatcher.current_time,0d);
+
+        dispatcher.dispatch_events_to(2f,3);
+        assertEquals("[a, b, c]",log.toString());
+
+        dispatcher.dispatch_events_to_stop();
+        assertEquals("[a, b, c, d]",log.toString());
+    }
+
+    @Test
+    public void test_cancel_events() throws OTMException {
+        Dispatcher dispatcher = new Dispatcher(0f);
+        dispatcher.initialize(0f);
+        List<String> log = new ArrayList<>();
+        dispatcher.register_event(new CancellableEvent(dispatcher,1f,"a",log));
+        dispatcher.register_event(new CancellableEvent(dispatcher,2f,"b",log));
+        dispatcher.register_event(new CancellableEvent(dispatcher,3f,"a",log));
+        dispatcher.register_event(new TestEvent(dispatcher,0,4f,"a",log));
+        AbstractEvent e = new TestEvent(dispatcher,0,5f,"c",log);
+        dispatcher.register_event(e);
+        dispatcher.register_event(new TestEvent(dispatcher,0,6f,"d",log));
+
+        dispatcher.remove_events_for_recipient(CancellableEvent.class,"a");
+        dispatcher.remove_events_for_recipient(TestEvent.class,"d");
+        dispatcher.cancel_event(e);
+        assertTrue(e.is_cancelled());
+
+        dispatcher.dispatch_events_to_stop();
+        assertEquals("[b, a]",log.toString());
+    }
+
+    @Test
+    public void test_periodic() throws OTMException {
+        Dispatcher dispatcher = new Dispatcher(0f);
+        dispatcher.initialize(0f);
+        List<String> log = new ArrayList<>();
+        InterfacePokable a = (d,t) -> log.add("a" + t);
+        InterfacePokable b = (d,t) -> log.add("b" + t);
+        InterfacePokable c = (d,t) -> log.add("c" + t);
+        dispatcher.register_periodic(a,0f,2f,1);
+        dispatcher.register_periodic(b,0f,2f,1);
+        dispatcher.register_periodic(c,1f,2f,0);
+        dispatcher.register_event(new TestEvent(dispatcher,3,5f,"stop",log){
+            @Override
+            public void action(boolean verbose) throws OTMException {
+                super.action(verbose);
+                dispatcher.stop();
+            }
+        });
+
+        // a and b share a single pending event
+        assertEquals(3,dispatcher.events.size());
+
+        dispatcher.dispatch_events_to_stop();
+        assertEquals("[a0.0, b0.0, c1.0, a2.0, b2.0, c3.0, a4.0, b4.0, c5.0, stop]",log.toString());
+
+        dispatcher.remove_periodic(a);
+        dispatcher.remove_periodic(c);
+        dispatcher.set_continue_simulation(true);
+        dispatcher.dispatch_events_to(6f,1);
+        assertEquals("b6.0",log.get(log.size()-1));
+    }
+
+    class CancellableEvent extends TestEvent {
+        CancellableEvent(Dispatcher dispatcher,float timestamp,Object recipient,List<String> log){
+            super(dispatcher,0,timestamp,recipient,log);
+        }
+        @Override
+        public boolean is_cancellable() {
+            return true;
+        }
+    }
+
+    class TestEvent extends AbstractEvent {
+        List<String> log;
+        TestEvent(Dispatcher dispatcher,int dispatch_order,float timestamp,Object recipient){
+            this(dispatcher,dispatch_order,timestamp,recipient,null);
+        }
+        TestEvent(Dispatcher dispatcher,int dispatch_order,float timestamp,Object recipient,List<String> log){
+            super(dispatcher,dispatch_order,timestamp,recipient);
+            this.log = log;
+        }
+        @Override
+        public void action(boolean verbose) throws OTMException {
+            if(log!=null)
+                log.add((String) recipient);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import api.API;
+import api.APIEnsemble;
+import api.APIopen;
+import api.InterfaceEnsembleMember;
+import api.info.DemandInfo;
+import api.info.Profile1DInfo;
+import error.OTMException;
+import org.junit.Test;
+import output.LinkVehicles;
+import runner.OTM;
+import runner.Scenario;
+import xml.JaxbLoader;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestEnsemble {
+
+    private static int num_members = 3;
+    private static float sim_dt = 2f;
+    private static float duration = 1800f;
+    private static float out_dt = 60f;
+    private static double tol = 1e-4;
+
+    /** Member k runs with its pathfull demands scaled by 1+k/4. **/
+    private static InterfaceEnsembleMember scale_demands = (k,api) -> {
+        double factor = 1d + 0.25d*k;
+        for(DemandInfo demand : api.get_demands()){
+            if(!demand.getType().equals("pathfull") || demand.getProfile()==null)
+                continue;
+            Profile1DInfo profile = demand.getProfile();
+            Float dt = profile.getDt();
+            List<Double> vph = profile.getValues().stream().map(x->x*3600d*factor).collect(Collectors.toList());
+            api.set_demand_on_path_in_vph(demand.getPath_id(),demand.getCommodity_id(),profile.getStart_time(),dt==null || dt.isNaN() ? duration : dt,vph);
+        }
+    };
+
+    /** Members run concurrently, on scenarios built from one parse, must match separate
+     * single runs loaded with OTM.load_test. **/
+    @Test
+    public void test_members_match_single_runs() {
+        try {
+            String testname = "onramp_offramp_1";
+            APIEnsemble ensemble = APIEnsemble.load_test(testname,sim_dt,true,"ctm");
+            ensemble.set_num_threads(num_members);
+            double [][][] members = ensemble.run(num_members,scale_demands,0f,duration,null,out_dt);
+            assert_equal(testname,single_runs(testname,"ctm",ensemble.get_link_ids()),members);
+            assertTrue(ensemble.get_num_topologies()<=num_members);
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    /** With one thread, all members run on the topology built by the constructor, and must
+     * still match fresh single runs. The mn model is included because building its links
+     * used to change the road params of the shared configuration. **/
+    @Test
+    public void test_members_reuse_topology() {
+        try {
+            String testname = "onramp_offramp_1";
+            for(String model : new String[]{"ctm","mn"}) {
+                APIEnsemble ensemble = APIEnsemble.load_test(testname, sim_dt, true, model);
+                ensemble.set_num_threads(1);
+                double [][][] members = ensemble.run(num_members, scale_demands, 0f, duration, null, out_dt);
+                assertEquals(1, ensemble.get_num_topologies());
+                assert_equal(testname + " " + model, single_runs(testname, model, ensemble.get_link_ids()), members);
+
+                // a second run of the same ensemble starts from a clean configuration
+                double [][][] again = ensemble.run(num_members, scale_demands, 0f, duration, null, out_dt);
+                assertEquals(1, ensemble.get_num_topologies());
+                assert_equal(testname + " " + model, members, again);
+            }
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    /** Each member of a batched run must match its own single run. **/
+    @Test
+    public void test_batched_matches_single_runs() {
+        try {
+            int num_tested = 0;
+            for(String testname : JaxbLoader.get_test_config_names()){
+
+                if(!supports_batch(testname))
+                    continue;
+
+                APIEnsemble ensemble = APIEnsemble.load_test(testname,sim_dt,true,"ctm");
+                double [][][] single = ensemble.run(num_members,scale_demands,0f,duration,null,out_dt);
+                double [][][] batched = ensemble.run_batched(num_members,scale_demands,0f,duration,null,out_dt);
+                assert_equal(testname,single,batched);
+                num_tested++;
+            }
+            assertTrue("No test configuration supports batched runs",num_tested>0);
+
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////
+
+    private static double [][][] single_runs(String testname,String model,long [] link_ids) throws OTMException {
+        double [][][] single = new double[num_members][][];
+        for(int k=0;k<num_members;k++){
+            API api = OTM.load_test(testname,sim_dt,true,model);
+            scale_demands.setup(k,api);
+            api.request_links_veh(null,Arrays.stream(link_ids).boxed().collect(Collectors.toList()),out_dt);
+            api.run(0f,duration);
+            LinkVehicles output = (LinkVehicles) api.get_output_data().stream().filter(x->x instanceof LinkVehicles).findFirst().get();
+            single[k] = new double[link_ids.length][];
+            for(int i=0;i<link_ids.length;i++)
+                single[k][i] = output.get_profile_for_linkid(link_ids[i]).values.stream().mapToDouble(v->v).toArray();
+        }
+        return single;
+    }
+
+    // pathfull commodities and nothing that reads the replicas' lanegroups
+    private static boolean supports_batch(String testname) throws OTMException {
+        Scenario scenario = new APIopen(OTM.load_test(testname,sim_dt,true,"ctm")).scenario();
+        return scenario.commodities.values().stream().allMatch(c->c.pathfull)
+                && scenario.sensors.isEmpty() && scenario.controllers.isEmpty() && scenario.actuators.isEmpty();
+    }
+
+    private static void assert_equal(String testname,double [][][] expected,double [][][] actual){
+        assertEquals(expected.length,actual.length);
+        for(int k=0;k<expected.length;k++){
+            assertEquals(expected[k].length,actual[k].length);
+            for(int i=0;i<expected[k].length;i++){
+                String msg = String.format("%s member %d link %d",testname,k,i);
+                assertEquals(msg,expected[k][i].length,actual[k][i].length);
+                for(int t=0;t<expected[k][i].length;t++)
+                    assertEquals(msg + " time " + t,expected[k][i][t],actual[k][i][t],tol);
+            }
+        }
+    }
+
+}
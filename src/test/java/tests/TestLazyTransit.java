@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import api.API;
+import api.APIopen;
+import api.events.AbstractEvent;
+import api.events.EventVehicleFromToQueue;
+import common.AbstractLaneGroup;
+import common.Link;
+import error.OTMException;
+import models.pq.LaneGroup;
+import org.junit.Test;
+import output.AbstractOutput;
+import output.EventsVehicle;
+import runner.OTM;
+import xml.JaxbLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Lazy transit queues must give the same vehicle moves and queue counts as transit events. **/
+public class TestLazyTransit {
+
+    private static String testname = "onramp_offramp_1";
+    private static float sim_dt = 2f;
+    private static float duration = 1800f;
+
+    /** Moves of the vehicles of one observed commodity, with the other commodities lazy,
+     * on every configuration with several commodities. **/
+    @Test
+    public void test_vehicle_events_match_eager() {
+        try {
+            int num_tested = 0;
+            long lazy_promotions = 0L;
+            for(String name : JaxbLoader.get_test_config_names()){
+                if(load(name,false).get_num_commodities()<2)
+                    continue;
+
+                API eager = run_vehicle_events(name,false);
+                API lazy = run_vehicle_events(name,true);
+                List<String> eager_log = get_log(eager);
+                List<String> lazy_log = get_log(lazy);
+                assertTrue(name,!eager_log.isEmpty());
+                assertEquals(name,eager_log.size(),lazy_log.size());
+                for(int i=0;i<eager_log.size();i++)
+                    assertEquals(name,eager_log.get(i),lazy_log.get(i));
+
+                lazy_promotions += num_lazy_promotions(lazy);
+                num_tested++;
+            }
+            assertTrue("No test configuration has several commodities",num_tested>0);
+            assertTrue("No vehicle took the lazy path",lazy_promotions>0);
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    /** Transit and waiting queue counts of every lanegroup, after every time step. **/
+    @Test
+    public void test_queue_counts_match_eager() {
+        try {
+            API eager = load(testname,false);
+            API lazy = load(testname,true);
+            eager.initialize(0f);
+            lazy.initialize(0f);
+
+            List<LaneGroup> eager_lgs = get_lanegroups(eager);
+            List<LaneGroup> lazy_lgs = get_lanegroups(lazy);
+            assertEquals(eager_lgs.size(),lazy_lgs.size());
+
+            for(float time=0f;time<duration;time+=sim_dt){
+                eager.advance(sim_dt);
+                lazy.advance(sim_dt);
+                for(int i=0;i<eager_lgs.size();i++){
+                    LaneGroup e = eager_lgs.get(i);
+                    LaneGroup l = lazy_lgs.get(i);
+                    String msg = String.format("lanegroup %d, time %f",e.id,lazy.get_current_time());
+                    assertEquals(msg,e.get_total_vehicles(),l.get_total_vehicles(),0f);
+                    assertEquals(msg,e.get_num_waiting_vehicles(),l.get_num_waiting_vehicles());
+                    assertEquals(msg,e.get_num_transit_vehicles(),l.get_num_transit_vehicles());
+                }
+            }
+            assertTrue("No vehicle took the lazy path",num_lazy_promotions(lazy)>0);
+            assertEquals(0L,num_lazy_promotions(eager));
+
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////
+
+    private static API load(String name,boolean lazy_transit) throws OTMException {
+        API api = OTM.load_test(name,sim_dt,true,"pq");
+        api.set_stochastic_process("deterministic");
+        api.set_random_seed(1L);
+        api.set_pq_lazy_transit(lazy_transit);
+        return api;
+    }
+
+    private static List<LaneGroup> get_lanegroups(API api){
+        List<LaneGroup> X = new ArrayList<>();
+        for(Link link : new APIopen(api).scenario().network.links.values())
+            for(AbstractLaneGroup lg : link.lanegroups.values())
+                if(lg instanceof LaneGroup)
+                    X.add((LaneGroup) lg);
+        X.sort((a,b)->Long.compare(a.id,b.id));
+        return X;
+    }
+
+    private static long num_lazy_promotions(API api){
+        return get_lanegroups(api).stream().mapToLong(lg->lg.num_lazy_promotions).sum();
+    }
+
+    // vehicle events of the first commodity
+    private static API run_vehicle_events(String name,boolean lazy_transit) throws OTMException {
+        API api = load(name,lazy_transit);
+        api.request_vehicle_events(null,null,api.get_commodity_ids().get(0));
+        api.run(0f,duration);
+        return api;
+    }
+
+    // chronological log of the observed moves
+    private static List<String> get_log(API api){
+        List<String> log = new ArrayList<>();
+        for(AbstractOutput output : api.get_output_data()){
+            if(!(output instanceof EventsVehicle))
+                continue;
+            float prev = Float.NEGATIVE_INFINITY;
+            for(AbstractEvent event : ((EventsVehicle) output).get_events()){
+                assertTrue("Vehicle events out of order",event.timestamp>=prev);
+                prev = event.timestamp;
+                EventVehicleFromToQueue e = (EventVehicleFromToQueue) event;
+                log.add(String.format("%f\t%s",e.timestamp,e));
+            }
+        }
+        return log;
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import api.API;
+import common.Link;
+import common.Node;
+import error.OTMException;
+import org.junit.Test;
+import runner.OTM;
+import runner.Scenario;
+import runner.ScenarioFactory;
+import utils.OTMUtils;
+import utils.StochasticProcess;
+import xml.JaxbLoader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** The threaded macroscopic update must reproduce the sequential one exactly. **/
+public class TestMacroThreads {
+
+    private static int num_threads = 4;
+    private static float sim_dt = 2f;
+    private static float duration = 1800f;
+
+    /** All links ctm, fixed step loop. **/
+    @Test
+    public void test_ctm_matches_sequential() {
+        try {
+            boolean lane_changes = false;
+            for(String testname : JaxbLoader.get_test_config_names()){
+                Scenario sequential = load(testname,false,1);
+                Scenario threaded = load(testname,false,num_threads);
+                lane_changes |= has_lane_changes(threaded);
+                compare(testname,sequential,threaded);
+            }
+            assertTrue("No test configuration has lane changes",lane_changes);
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    /** Alternating ctm and pq links. Nodes with a pq downstream link exchange their
+     * packets on the calling thread. **/
+    @Test
+    public void test_mixed_ctm_pq_matches_sequential() {
+        try {
+            boolean serial_exchange = false;
+            for(String testname : JaxbLoader.get_test_config_names()){
+                Scenario sequential = load(testname,true,1);
+                Scenario threaded = load(testname,true,num_threads);
+                serial_exchange |= has_serial_exchange(threaded);
+                compare(testname,sequential,threaded);
+            }
+            assertTrue("No test configuration has a ctm to pq boundary",serial_exchange);
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    /** A scenario advanced through the API keeps its threads until close(). **/
+    @Test
+    public void test_close_stops_threads() {
+        try {
+            String testname = JaxbLoader.get_test_config_names().iterator().next();
+            int before = count_macro_threads();
+            API api = OTM.load_test(testname,sim_dt,true,"ctm");
+            api.set_macro_threads(num_threads);
+            api.initialize(0f);
+            api.advance(10*sim_dt);
+            assertEquals(before+num_threads-1,count_macro_threads());
+            api.close();
+            assertEquals(before,count_macro_threads());
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////
+
+    private static Scenario load(String testname,boolean mixed,int threads) throws OTMException {
+        jaxb.Scenario js = JaxbLoader.load_test_scenario(testname,true);
+        if(mixed)
+            set_alternating_model(js);
+        Scenario scenario = ScenarioFactory.create_scenario(js,sim_dt,true,mixed ? null : "ctm");
+        scenario.set_stochastic_process(StochasticProcess.deterministic);
+        scenario.set_random_seed(1L);
+        scenario.set_macro_threads(threads);
+        return scenario;
+    }
+
+    // links sorted by id, even positions ctm and odd positions pq
+    private static void set_alternating_model(jaxb.Scenario js){
+        List<Long> link_ids = js.getNetwork().getLinks().getLink().stream().map(link->link.getId()).sorted().collect(Collectors.toList());
+        List<Long> ctm_ids = new ArrayList<>();
+        List<Long> pq_ids = new ArrayList<>();
+        for(int i=0;i<link_ids.size();i++)
+            (i%2==0 ? ctm_ids : pq_ids).add(link_ids.get(i));
+
+        jaxb.Model model = new jaxb.Model();
+        jaxb.Ctm ctm = new jaxb.Ctm();
+        ctm.setContent(OTMUtils.comma_format(ctm_ids));
+        ctm.setMaxCellLength(100f);
+        model.setCtm(ctm);
+        if(!pq_ids.isEmpty()){
+            jaxb.PointQueue pq = new jaxb.PointQueue();
+            pq.setContent(OTMUtils.comma_format(pq_ids));
+            model.setPointQueue(pq);
+        }
+        js.setModel(model);
+    }
+
+    // link vehicles after every time step
+    private static void compare(String testname,Scenario sequential,Scenario threaded) throws OTMException {
+        List<Long> link_ids = sequential.network.links.keySet().stream().sorted().collect(Collectors.toList());
+        try {
+            OTM.initialize(sequential,0f);
+            OTM.initialize(threaded,0f);
+            for(float time=0f;time<duration;time+=sim_dt){
+                OTM.advance(sequential,sim_dt);
+                OTM.advance(threaded,sim_dt);
+                for(Long link_id : link_ids){
+                    double expected = sequential.network.links.get(link_id).get_veh();
+                    double actual = threaded.network.links.get(link_id).get_veh();
+                    assertEquals(String.format("%s link %d time %f",testname,link_id,time+sim_dt),expected,actual,0d);
+                }
+            }
+        } finally {
+            sequential.network.shutdown_macro_workers();
+            threaded.network.shutdown_macro_workers();
+        }
+    }
+
+    private static int count_macro_threads(){
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                .filter(t->t.isAlive() && t.getName().startsWith("otm-macro-"))
+                .count();
+    }
+
+    private static boolean has_lane_changes(Scenario scenario){
+        return scenario.network.macro_link_models.stream().anyMatch(m->m.link.lanegroups.size()>1);
+    }
+
+    private static boolean has_serial_exchange(Scenario scenario){
+        for(Node node : scenario.network.macro_internal_nodes)
+            for(Link link : node.out_links.values())
+                if(!(link.model instanceof models.ctm.LinkModel))
+                    return true;
+        return false;
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import api.API;
+import api.APIopen;
+import common.Node;
+import error.OTMException;
+import models.ctm.NodeModel;
+import org.junit.Test;
+import runner.OTM;
+import xml.JaxbLoader;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestNodeModel {
+
+    private static int num_trials = 500;
+    private static double tol = 1e-9;
+
+    /** The closed-form solutions for one-to-one, merge and diverge nodes must match the
+     * general iteration, for random demands and supplies. **/
+    @Test
+    public void test_fast_paths_match_general_solver() {
+        try {
+
+            Random random = new Random(1);
+            Set<NodeModel.Type> tested = EnumSet.noneOf(NodeModel.Type.class);
+
+            for(String testname : JaxbLoader.get_test_config_names()){
+
+                API api = OTM.load_test(testname,2f,true,"ctm");
+                api.initialize(0f);
+
+                for(Node node : new APIopen(api).scenario().network.macro_internal_nodes){
+
+                    NodeModel nm = node.node_model;
+                    if(nm==null || nm.type==NodeModel.Type.general)
+                        continue;
+                    tested.add(nm.type);
+
+                    double [] d = new double[nm.get_num_upstream_states()];
+                    double [] s = new double[nm.get_num_dnstream_lanegroups()];
+
+                    for(int t=0;t<num_trials;t++){
+
+                        for(int i=0;i<d.length;i++)
+                            d[i] = sample(random,2d);
+                        for(int j=0;j<s.length;j++)
+                            s[j] = sample(random,3d);
+
+                        nm.use_fast_paths = true;
+                        nm.solve(d,s);
+                        double [] fast_f_is = nm.get_f_is().clone();
+                        double [] fast_f_rs = nm.get_f_rs().clone();
+
+                        nm.use_fast_paths = false;
+                        nm.solve(d,s);
+                        double [] general_f_is = nm.get_f_is();
+                        double [] general_f_rs = nm.get_f_rs();
+
+                        String msg = String.format("%s node %d (%s), d=%s, s=%s",testname,node.getId(),nm.type,Arrays.toString(d),Arrays.toString(s));
+                        for(int k=0;k<fast_f_is.length;k++)
+                            assertEquals(msg,general_f_is[k],fast_f_is[k],tol);
+                        for(int q=0;q<fast_f_rs.length;q++)
+                            assertEquals(msg,general_f_rs[q],fast_f_rs[q],tol);
+                    }
+
+                    nm.use_fast_paths = true;
+                }
+            }
+
+            Set<NodeModel.Type> missing = EnumSet.of(NodeModel.Type.one_to_one,NodeModel.Type.merge,NodeModel.Type.diverge);
+            missing.removeAll(tested);
+            assertTrue("Fast paths not covered by the test configurations: " + missing, missing.isEmpty());
+
+        } catch (OTMException e) {
+            System.out.print(e);
+            fail();
+        }
+    }
+
+    // zero, below NodeModel.eps, or uniform in [0,max)
+    private static double sample(Random random,double max){
+        double u = random.nextDouble();
+        if(u<0.1)
+            return 0d;
+        if(u<0.2)
+            return 0.5*NodeModel.eps*random.nextDouble();
+        return max*random.nextDouble();
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2018, Gabriel Gomes
+ * All rights reserved.
+ * This source code is licensed under the standard 3-clause BSD license found
+ * in the LICENSE file in the root directory of this source tree.
+ */
+package tests;
+
+import common.SplitInfo;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSplitInfo {
+
+    private static int num_draws = 200000;
+
+    @Test
+    public void test_frequencies_match_splits() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,0.2);
+        splits.put(2L,0.5);
+        splits.put(3L,0.3);
+        check_frequencies(splits);
+    }
+
+    @Test
+    public void test_zero_split_is_never_sampled() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,0.4);
+        splits.put(2L,0d);
+        splits.put(3L,0.6);
+        Map<Long,Integer> count = draw(splits);
+        assertEquals(0,(int) count.getOrDefault(2L,0));
+        check_frequencies(splits);
+    }
+
+    @Test
+    public void test_unnormalized_splits() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,2d);
+        splits.put(2L,6d);
+        splits.put(3L,0d);
+        splits.put(4L,2d);
+        check_frequencies(splits);
+    }
+
+    @Test
+    public void test_extreme_uniforms() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,0.5);
+        splits.put(2L,0d);
+        splits.put(3L,0.5);
+        SplitInfo info = new SplitInfo(null);
+        info.set_splits(splits);
+        for(double r : new double[]{0d,Math.nextDown(1d)}){
+            Long link_id = info.sample_output_link(r);
+            assertTrue(link_id!=null && link_id!=2L);
+        }
+    }
+
+    @Test
+    public void test_single_output_link() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(7L,1d);
+        SplitInfo info = new SplitInfo(null);
+        info.set_splits(splits);
+        assertEquals(7L,(long) info.sample_output_link(0.3));
+    }
+
+    /** split_vehicles: counts add up to n, zero splits get nothing, and each count has
+     * the binomial mean and variance of its normalized split. **/
+    @Test
+    public void test_split_vehicles_is_multinomial() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,2d);
+        splits.put(2L,0d);
+        splits.put(3L,5d);
+        splits.put(4L,3d);
+        splits.put(5L,0d);
+        SplitInfo info = new SplitInfo(null);
+        info.set_splits(splits);
+        Random random = new Random(1);
+
+        int n = 1000;
+        int num_splits = 20000;
+        int m = info.outlink_ids.length;
+        double [] sum = new double[m];
+        double [] sum2 = new double[m];
+        for(int k=0;k<num_splits;k++){
+            int [] count = info.split_vehicles(n,random::nextDouble);
+            assertEquals(m,count.length);
+            int total = 0;
+            for(int i=0;i<m;i++){
+                total += count[i];
+                sum[i] += count[i];
+                sum2[i] += count[i]*(double)count[i];
+            }
+            assertEquals(n,total);
+        }
+
+        for(int i=0;i<m;i++){
+            Long link_id = info.outlink_ids[i];
+            double p = splits.get(link_id) / 10d;
+            double mean = sum[i]/num_splits;
+            double var = sum2[i]/num_splits - mean*mean;
+            if(p==0d){
+                assertEquals("link " + link_id,0d,sum[i],0d);
+                continue;
+            }
+            double expected_var = n*p*(1d-p);
+            assertEquals("link " + link_id,n*p,mean,5d*Math.sqrt(expected_var/num_splits));
+            assertEquals("link " + link_id,expected_var,var,0.05*expected_var);
+        }
+    }
+
+    @Test
+    public void test_split_vehicles_edge_cases() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,0d);
+        splits.put(2L,1d);
+        splits.put(3L,0d);
+        SplitInfo info = new SplitInfo(null);
+        info.set_splits(splits);
+        Random random = new Random(1);
+        assertArrayEquals(new int[]{0,0,0},info.split_vehicles(0,random::nextDouble));
+        assertArrayEquals(new int[]{0,17,0},info.split_vehicles(17,random::nextDouble));
+
+        SplitInfo sole = new SplitInfo(7L);
+        assertArrayEquals(new int[]{17},sole.split_vehicles(17,random::nextDouble));
+    }
+
+    @Test
+    public void test_sample_output_links() {
+        Map<Long,Double> splits = new HashMap<>();
+        splits.put(1L,0.5);
+        splits.put(2L,0d);
+        splits.put(3L,0.5);
+        SplitInfo info = new SplitInfo(null);
+        info.set_splits(splits);
+        Random random = new Random(1);
+        Long [] X = info.sample_output_links(1000,random::nextDouble);
+        assertEquals(1000,X.length);
+        for(Long x : X)
+            assertTrue(x==1L || x==3L);
+    }
+
+    ///////////////////////////////////////////////
+    // private
+    ///////////////////////////////////////////////
+
+    // each frequency within 5 standard deviations of its normalized split
+    private static void check_frequencies(Map<Long,Double> splits){
+        double total = splits.values().stream().mapToDouble(x->x).sum();
+        Map<Long,Integer> count = draw(splits);
+        for(Map.Entry<Long,Double> e : splits.entrySet()){
+            double p = e.getValue() / total;
+            double freq = count.getOrDefault(e.getKey(),0) / (double) num_draws;
+            double sigma = Math.sqrt(p*(1d-p)/num_draws);
+            assertEquals("link " + e.getKey(),p,freq,5d*sigma + 1e-12);
+        }
+    }
+
+    private static Map<Long,Integer> draw(Map<Long,Double> splits){
+        SplitInfo info = new SplitInfo(null);
+        info.set_splits(splits);
+        Random random = new Random(1);
+        Map<Long,Integer> count = new HashMap<>();
+        for(int k=0;k<num_draws;k++)
+            count.merge(info.sample_output_link(random.nextDouble()),1,Integer::sum);
+        return count;
+    }
+
+}